@@ -78,19 +78,14 @@ export class CollaboraOnlineComponent implements OnInit, OnDestroy {
     // Get previous url
     this.previousUrl = this.collaboraOnlineService.getPreviousUrl();
 
-    // Get url du serveur collabora online
-    const wopiHostUrl =  await this.collaboraOnlineService.getLoolUrl();
-    const wopiFileUrl = wopiHostUrl + 'wopi/files/' + this.nodeId;
-
-    // Get token pour l'édition du document
-    var responseToken: any = await this.collaboraOnlineService.getAccessToken(this.nodeId, this.action);
-    this.accessToken = responseToken.access_token;
-    this.accessTokenTTL = responseToken.access_token_ttl;
-    if (!responseToken.wopi_src_url || responseToken.wopi_src_url == "") {
-      responseToken = await this.collaboraOnlineService.getAccessToken(this.nodeId, 'edit');
+    // Get token pour l'édition du document, et url de l'iframe
+    var responseOpen: any = await this.collaboraOnlineService.open(this.nodeId, this.action, this.locale);
+    if (!responseOpen.wopi_src_url || responseOpen.wopi_src_url == "") {
+      responseOpen = await this.collaboraOnlineService.open(this.nodeId, 'edit', this.locale);
     }
-    const wopiSrcUrl = responseToken.wopi_src_url;
-    this.iFrameUrl = wopiSrcUrl + 'WOPISrc=' + encodeURI(wopiFileUrl) + '&lang=' + this.locale;
+    this.accessToken = responseOpen.access_token;
+    this.accessTokenTTL = responseOpen.access_token_ttl;
+    this.iFrameUrl = responseOpen.action_url;
     if (this.action === 'view') {
       this.iFrameUrl += '&permission=readonly';
     }
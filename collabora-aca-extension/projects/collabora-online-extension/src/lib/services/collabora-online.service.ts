@@ -64,6 +64,28 @@ export class CollaboraOnlineService {
     this.router.navigate(["/collabora-online", 'view', node.id]);
   }
 
+  /**
+   * One request for the access token and the URLs of the iframe, the first CheckFileInfo is prepared at the same time
+   */
+  public open(nodeId: string, action: string, lang?: string) {
+    let path = 'lool/open?nodeRef=workspace://SpacesStore/' + nodeId + '&action=' + action;
+    if (lang) {
+      path += '&lang=' + encodeURIComponent(lang);
+    }
+    return new Promise(
+      (resolve, reject) => {
+        this.apiService.getInstance().webScript.executeWebScript('GET', path).then(
+          (response) => {
+            resolve(response);
+          },
+          (error) => {
+            reject(error);
+          }
+        );
+      }
+    );
+  }
+
   public getLoolUrl() {
     return new Promise(
       (resolve, reject) => {
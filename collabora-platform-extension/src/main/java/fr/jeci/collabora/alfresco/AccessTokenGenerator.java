@@ -0,0 +1,73 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Random access tokens : 144 bits, 24 base64url characters.
+ * <p>
+ * Each thread has its own DRBG, so minting many tokens at the same time does not contend on one
+ * {@link SecureRandom}. Each generator is reseeded from the entropy source after {@link #RESEED_INTERVAL} tokens.
+ */
+final class AccessTokenGenerator {
+	private static final Logger logger = LoggerFactory.getLogger(AccessTokenGenerator.class);
+
+	static final int TOKEN_BYTES = 18;
+	static final int RESEED_INTERVAL = 1 << 16;
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private static final ThreadLocal<Generator> GENERATOR = ThreadLocal.withInitial(Generator::new);
+
+	private AccessTokenGenerator() {
+		// static only
+	}
+
+	static String next() {
+		return GENERATOR.get().next();
+	}
+
+	private static final class Generator {
+		private final SecureRandom random = newRandom();
+		private final byte[] bytes = new byte[TOKEN_BYTES];
+		private int count;
+
+		String next() {
+			if (++this.count >= RESEED_INTERVAL) {
+				this.random.reseed();
+				this.count = 0;
+			}
+			this.random.nextBytes(this.bytes);
+			return ENCODER.encodeToString(this.bytes);
+		}
+
+		private static SecureRandom newRandom() {
+			try {
+				return SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException e) {
+				logger.warn("No DRBG, use the default SecureRandom");
+				return new SecureRandom();
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Availability of a Collabora Online backend.
+ * <p>
+ * The circuit opens after <code>failureThreshold</code> failed probes in a row : the backend is skipped without
+ * waiting for a timeout. After <code>openDurationMs</code>, the circuit is half-open and the next probe is a trial :
+ * a success closes the circuit, a failure opens it again.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openDurationMs;
+	private final LongSupplier clock;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+
+	public CircuitBreaker(int failureThreshold, long openDurationMs) {
+		this(failureThreshold, openDurationMs, System::currentTimeMillis);
+	}
+
+	CircuitBreaker(int failureThreshold, long openDurationMs, LongSupplier clock) {
+		this.failureThreshold = Math.max(1, failureThreshold);
+		this.openDurationMs = openDurationMs;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return false while the circuit is open, requests must fail fast
+	 */
+	public synchronized boolean isAvailable() {
+		return this.state == State.CLOSED;
+	}
+
+	/**
+	 * @return true if a probe must be sent : always when closed, once the open duration is over when open
+	 */
+	public synchronized boolean tryProbe() {
+		if (this.state == State.OPEN && this.clock.getAsLong() - this.openedAt >= this.openDurationMs) {
+			this.state = State.HALF_OPEN;
+		}
+		return this.state != State.OPEN;
+	}
+
+	public synchronized void onSuccess() {
+		this.state = State.CLOSED;
+		this.failures = 0;
+	}
+
+	public synchronized void onFailure() {
+		this.failures++;
+		if (this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+			this.state = State.OPEN;
+			this.openedAt = this.clock.getAsLong();
+		}
+	}
+
+	public synchronized State getState() {
+		return this.state;
+	}
+}
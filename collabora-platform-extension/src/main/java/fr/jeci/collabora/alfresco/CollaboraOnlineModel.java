@@ -21,6 +21,20 @@ public interface CollaboraOnlineModel {
 
 	QName PROP_AUTOSAVE = QName.createQName(COLLABORA_MODEL_1_0_URI, "autosave");
 
+	/** Autosave retention state of the current version, so a save doesn't read the version store */
+	QName ASPECT_COALESCED_VERSION = QName.createQName(COLLABORA_MODEL_1_0_URI, "coalescedVersion");
+	/** Label of the version described by the properties below, outdated if it isn't cm:versionLabel anymore */
+	QName PROP_AUTOSAVE_LABEL = QName.createQName(COLLABORA_MODEL_1_0_URI, "autosaveLabel");
+	QName PROP_AUTOSAVE_SNAPSHOT = QName.createQName(COLLABORA_MODEL_1_0_URI, "autosaveSnapshot");
+	QName PROP_AUTOSAVE_SINCE = QName.createQName(COLLABORA_MODEL_1_0_URI, "autosaveSince");
+
+	/** Current version written from the write-behind journal, accepted with the timestamp of the autosave */
+	QName ASPECT_JOURNALED_VERSION = QName.createQName(COLLABORA_MODEL_1_0_URI, "journaledVersion");
+	/** Label of the version written from the journal, outdated if it isn't cm:versionLabel anymore */
+	QName PROP_JOURNALED_LABEL = QName.createQName(COLLABORA_MODEL_1_0_URI, "journaledLabel");
+	/** X-LOOL-WOPI-Timestamp acknowledged to Collabora Online */
+	QName PROP_JOURNALED_TIMESTAMP = QName.createQName(COLLABORA_MODEL_1_0_URI, "journaledTimestamp");
+
 	/** @Deprecated Use LockService */
 	QName PROP_LOCK_ID = QName.createQName(COLLABORA_MODEL_1_0_URI, "lockId");
 	/** @Deprecated Use LockService */
@@ -18,6 +18,7 @@ package fr.jeci.collabora.alfresco;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collection;
 import java.util.Map;
 
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -36,6 +37,10 @@ public interface CollaboraOnlineService {
 	static final String SUPPORTS_LOCKS = "SupportsLocks";
 
 	static final String LOOL_AUTOSAVE = "collabora:autosave";
+	/** Version property of an autosave : kept when the next autosave is created */
+	static final String LOOL_AUTOSAVE_SNAPSHOT = "collabora:autosaveSnapshot";
+	/** Version property of an autosave : creation time of the snapshot of its window, in epoch ms */
+	static final String LOOL_AUTOSAVE_SINCE = "collabora:autosaveSince";
 	static final String AUTOSAVE_DESCRIPTION = "Edit with Collabora";
 
 	/**
@@ -49,6 +54,32 @@ public interface CollaboraOnlineService {
 	 */
 	WOPIAccessTokenInfo createAccessToken(NodeRef nodeRef);
 
+	/**
+	 * Generate and store the access tokens of many documents for the current user, with the permissions already
+	 * evaluated by the caller : READ must have been checked on every node, the value of the map is WRITE. The token
+	 * index is updated once for the whole batch.
+	 *
+	 * @param canWrite nodes and WRITE permission of the current user on each of them
+	 * @return Access Token of each node, in the iteration order of canWrite
+	 */
+	Map<NodeRef, WOPIAccessTokenInfo> createAccessTokens(Map<NodeRef, Boolean> canWrite);
+
+	/**
+	 * Enable versioning on a document that will be edited, so the first PutFile finds a version and CheckFileInfo
+	 * stays read-only. Nothing is done if the current user can't write the document or if it is already versionable.
+	 *
+	 * @param nodeRef document
+	 */
+	void ensureVersioningEnabled(NodeRef nodeRef);
+
+	/**
+	 * Same as {@link #ensureVersioningEnabled(NodeRef)} with the WRITE permission already evaluated by the caller.
+	 *
+	 * @param nodeRef  document
+	 * @param canWrite WRITE permission of the current user on the document
+	 */
+	void ensureVersioningEnabled(NodeRef nodeRef, boolean canWrite);
+
 	/**
 	 * Check if access token is valid and match nodeRef
 	 *
@@ -58,6 +89,66 @@ public interface CollaboraOnlineService {
 	 */
 	WOPIAccessTokenInfo checkAccessToken(final String accessToken, final NodeRef nodeRef);
 
+	/**
+	 * Remove all access tokens of a user. Editing sessions of this user will be closed by Collabora Online on the next
+	 * WOPI call.
+	 *
+	 * @param userName user name
+	 * @return number of tokens removed
+	 */
+	int evictTokens(String userName);
+
+	/**
+	 * Remove all access tokens of a document, for example when it is deleted.
+	 *
+	 * @param fileId id of the document nodeRef
+	 * @return number of tokens removed
+	 */
+	int revokeFileTokens(String fileId);
+
+	/**
+	 * Check again that the user of each token of a document can read it, and remove the tokens of the users who can't.
+	 * The WRITE permission of the other tokens is evaluated again. Must be called in a transaction.
+	 *
+	 * @return number of tokens removed
+	 */
+	int recheckFileTokens(NodeRef nodeRef);
+
+	/**
+	 * Check again the tokens of a user, after a change of its groups. Must be called in a transaction.
+	 *
+	 * @return number of tokens removed
+	 */
+	int recheckUserTokens(String userName);
+
+	/**
+	 * Check again the tokens of the documents under folders whose permissions changed (primary path). Only the
+	 * documents with tokens are read. Must be called in a transaction.
+	 *
+	 * @return number of tokens removed
+	 */
+	int recheckFolderTokens(Collection<NodeRef> folders);
+
+	/**
+	 * @return number of valid access tokens issued by this server, without a scan of the token map
+	 */
+	int getTokenCount();
+
+	/**
+	 * @return number of access tokens found by {@link #checkAccessToken(String, NodeRef)}
+	 */
+	long getTokenHits();
+
+	/**
+	 * @return number of access tokens not found by {@link #checkAccessToken(String, NodeRef)}
+	 */
+	long getTokenMisses();
+
+	/**
+	 * @return number of nodes with a WOPI lock taken on this server and not expired
+	 */
+	int getLockedNodeCount();
+
 	/**
 	 * Returns the WOPI src URL for a given nodeRef and action.
 	 *
@@ -107,6 +198,8 @@ public interface CollaboraOnlineService {
 
 	/**
 	 * <a href="https://wopi.readthedocs.io/projects/wopirest/en/latest/files/Unlock.html">...</a>
+	 * <p>
+	 * Idempotent : a node without lock is left as is, it may have been released by a save.
 	 *
 	 * @param nodeRef Node to lock
 	 * @param lockId  current lock-id
@@ -114,6 +207,13 @@ public interface CollaboraOnlineService {
 	 */
 	String lockUnlock(NodeRef nodeRef, String lockId) throws ConflictException;
 
+	/**
+	 * Remove the marker of a document open in Collabora Online
+	 *
+	 * @param nodeRef Node closed
+	 */
+	void clearDocumentMarker(NodeRef nodeRef);
+
 	/**
 	 * Remove lock without checking the current lockId but timestamp. (Use to clean old LOCK)
 	 *
@@ -17,6 +17,7 @@ limitations under the License.
 package fr.jeci.collabora.alfresco;
 
 import fr.jeci.collabora.alfresco.WopiDiscovery.DiscoveryAction;
+import fr.jeci.collabora.jfr.LockStealEvent;
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.cache.SimpleCache;
@@ -26,11 +27,15 @@ import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.cmr.lock.LockService;
 import org.alfresco.service.cmr.lock.LockType;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
 import org.alfresco.service.cmr.security.AccessStatus;
 import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.namespace.QName;
 import org.alfresco.service.transaction.TransactionService;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.LocalDateTime;
@@ -40,12 +45,17 @@ import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptException;
 
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.Serializable;
 import java.net.URL;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 
@@ -63,21 +73,31 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 	private static final int ONE_HOUR_MS = 1000 * 60 * 60;
 
 	private static final int DEFAULT_TOKEN_TTL_MS = ONE_HOUR_MS * 24;
+	private static final int LOCK_TIMEOUT_S = 30 * 60;
 	private int tokenTtlMs = -1;
 
 	private URL collaboraPublicUrl;
 	private URL alfrescoPublicURL;
 	private URL alfrescoPrivateURL;
 
-	private WopiDiscovery wopiDiscovery;
+	private WopiDiscoveryRing wopiDiscoveryRing;
 	private NodeService nodeService;
 	private PermissionService permissionService;
 	private LockService lockService;
+	private VersionService versionService;
 	private TransactionService transactionService;
 	private RetryingTransactionHelper txnHelper;
 	private SimpleCache<String, Boolean> collaboraMarkerCache;
 
-	private final SecureRandom random = new SecureRandom();
+	/**
+	 * Tokens issued by this server and not revoked, by expiry minute : counted without a scan of the token map, the
+	 * minutes in the past are dropped
+	 */
+	private final ConcurrentSkipListMap<Long, AtomicLong> issuedTokens = new ConcurrentSkipListMap<>();
+	private final AtomicLong tokenHits = new AtomicLong();
+	private final AtomicLong tokenMisses = new AtomicLong();
+
+	private WopiSessions wopiSessions = new WopiSessions();
 
 	public void init() {
 		if (collaboraPublicUrl == null) {
@@ -85,6 +105,10 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 		}
 	}
 
+	public void setWopiSessions(WopiSessions wopiSessions) {
+		this.wopiSessions = wopiSessions;
+	}
+
 	public void setCollaboraMarkerCache(SimpleCache<String, Boolean> collaboraMarkerCache) {
 		this.collaboraMarkerCache = collaboraMarkerCache;
 	}
@@ -93,6 +117,7 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 		collaboraMarkerCache.put(nodeRef.getId(), Boolean.TRUE);
 	}
 
+	@Override
 	public void clearDocumentMarker(NodeRef nodeRef) {
 		collaboraMarkerCache.remove(nodeRef.getId());
 	}
@@ -116,6 +141,8 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 	 */
 	private SimpleCache<String, WOPIAccessTokenInfo> tokenMap;
 
+	private TokenIndex tokenIndex;
+
 	public void setTokenMap(SimpleCache<String, WOPIAccessTokenInfo> tokenMap) {
 		this.tokenMap = tokenMap;
 	}
@@ -136,17 +163,71 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 			}
 		}
 
-		final String userName = AuthenticationUtil.getRunAsUser();
-		final String fileId = nodeRef.getId();
-		LocalDateTime now = LocalDateTime.now();
-		WOPIAccessTokenInfo tokenInfo = new WOPIAccessTokenInfo(generateAccessToken(), now, newExpiresAt(now), fileId,
-				userName);
+		final WOPIAccessTokenInfo tokenInfo = newAccessToken(nodeRef, LocalDateTime.now(), canWrite(nodeRef));
 		this.tokenMap.put(tokenInfo.getAccessToken(), tokenInfo);
+		this.tokenIndex.add(tokenInfo);
+		countToken(tokenInfo, 1);
+
+		logger.debug("Created Access Token for user '{}' and nodeRef '{}'", tokenInfo.getUserName(), nodeRef);
+		return tokenInfo;
+	}
+
+	@Override
+	public Map<NodeRef, WOPIAccessTokenInfo> createAccessTokens(final Map<NodeRef, Boolean> canWrite) {
+		final LocalDateTime now = LocalDateTime.now();
+		final Map<NodeRef, WOPIAccessTokenInfo> tokens = new LinkedHashMap<>(canWrite.size() * 2);
+		for (Map.Entry<NodeRef, Boolean> entry : canWrite.entrySet()) {
+			final WOPIAccessTokenInfo tokenInfo = newAccessToken(entry.getKey(), now,
+					Boolean.TRUE.equals(entry.getValue()));
+			this.tokenMap.put(tokenInfo.getAccessToken(), tokenInfo);
+			countToken(tokenInfo, 1);
+			tokens.put(entry.getKey(), tokenInfo);
+		}
+		// one update of the index of the user, one per file
+		this.tokenIndex.addAll(tokens.values());
+
+		logger.debug("Created {} Access Tokens for user '{}'", tokens.size(), AuthenticationUtil.getRunAsUser());
+		return tokens;
+	}
 
-		logger.debug("Created Access Token for user '{}' and nodeRef '{}'", userName, nodeRef);
+	private WOPIAccessTokenInfo newAccessToken(final NodeRef nodeRef, final LocalDateTime now,
+			final boolean canWrite) {
+		WOPIAccessTokenInfo tokenInfo = new WOPIAccessTokenInfo(generateAccessToken(), now, newExpiresAt(now),
+				nodeRef.getId(), AuthenticationUtil.getRunAsUser());
+		tokenInfo.setCanWrite(canWrite);
 		return tokenInfo;
 	}
 
+	@Override
+	public void ensureVersioningEnabled(final NodeRef nodeRef) {
+		if (this.nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) {
+			return;
+		}
+		if (canWrite(nodeRef)) {
+			enableVersioning(nodeRef);
+		}
+	}
+
+	@Override
+	public void ensureVersioningEnabled(final NodeRef nodeRef, final boolean canWrite) {
+		if (canWrite && !this.nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) {
+			enableVersioning(nodeRef);
+		}
+	}
+
+	private void enableVersioning(final NodeRef nodeRef) {
+		Map<QName, Serializable> props = new HashMap<>(2, 1.0f);
+
+		// should auto versioning be requested?
+		props.put(ContentModel.PROP_AUTO_VERSION, true);
+
+		// should auto versioning of properties be requested?
+		props.put(ContentModel.PROP_AUTO_VERSION_PROPS, false);
+
+		logger.debug("Enable versioning on {}", nodeRef);
+		this.versionService.ensureVersioningEnabled(nodeRef, props);
+	}
+
 	/**
 	 * Compute token time to live
 	 *
@@ -165,7 +246,7 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 	 * Generates a random access token.
 	 */
 	private String generateAccessToken() {
-		return new BigInteger(130, random).toString(32);
+		return AccessTokenGenerator.next();
 	}
 
 	/**
@@ -181,6 +262,7 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 		WOPIAccessTokenInfo tokenInfo = this.tokenMap.get(accessToken);
 
 		if (tokenInfo == null) {
+			this.tokenMisses.incrementAndGet();
 			throw new WebScriptException(Status.STATUS_UNAUTHORIZED, "No token access found for " + accessToken);
 		}
 
@@ -189,9 +271,202 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 					"Tokens stored for " + accessToken + ", not match the given file" + nodeRef);
 		}
 
+		this.tokenHits.incrementAndGet();
 		return tokenInfo;
 	}
 
+	private boolean canWrite(final NodeRef nodeRef) {
+		return AccessStatus.ALLOWED == this.permissionService.hasPermission(nodeRef, PermissionService.WRITE);
+	}
+
+	@Override
+	public int evictTokens(final String userName) {
+		int count = 0;
+		final List<String> gone = new ArrayList<>();
+		for (String accessToken : this.tokenIndex.getUserTokens(userName)) {
+			if (revoke(accessToken)) {
+				++count;
+			} else {
+				gone.add(accessToken);
+			}
+		}
+		this.tokenIndex.removeUserTokens(userName, gone);
+
+		logger.info("Evicted {} access token(s) of user '{}'", count, userName);
+		return count;
+	}
+
+	@Override
+	public int revokeFileTokens(final String fileId) {
+		int count = 0;
+		final List<String> gone = new ArrayList<>();
+		for (String accessToken : this.tokenIndex.getFileTokens(fileId)) {
+			if (revoke(accessToken)) {
+				++count;
+			} else {
+				gone.add(accessToken);
+			}
+		}
+		this.tokenIndex.removeFileTokens(fileId, gone);
+
+		logger.debug("Revoked {} access token(s) of file '{}'", count, fileId);
+		return count;
+	}
+
+	@Override
+	public int recheckFileTokens(final NodeRef nodeRef) {
+		int count = 0;
+		final List<String> gone = new ArrayList<>();
+		for (String accessToken : this.tokenIndex.getFileTokens(nodeRef.getId())) {
+			final WOPIAccessTokenInfo tokenInfo = this.tokenMap.get(accessToken);
+			if (tokenInfo == null) {
+				gone.add(accessToken);
+			} else if (recheck(tokenInfo, nodeRef)) {
+				++count;
+			}
+		}
+		this.tokenIndex.removeFileTokens(nodeRef.getId(), gone);
+		return count;
+	}
+
+	@Override
+	public int recheckUserTokens(final String userName) {
+		int count = 0;
+		final List<String> gone = new ArrayList<>();
+		for (String accessToken : this.tokenIndex.getUserTokens(userName)) {
+			final WOPIAccessTokenInfo tokenInfo = this.tokenMap.get(accessToken);
+			if (tokenInfo == null) {
+				gone.add(accessToken);
+				continue;
+			}
+
+			final NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, tokenInfo.getFileId());
+			if (!this.nodeService.exists(nodeRef) || recheck(tokenInfo, nodeRef)) {
+				++count;
+			}
+		}
+		this.tokenIndex.removeUserTokens(userName, gone);
+		return count;
+	}
+
+	@Override
+	public int recheckFolderTokens(final Collection<NodeRef> folders) {
+		int count = 0;
+		for (String fileId : this.tokenIndex.getFileIds()) {
+			final NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, fileId);
+			if (this.nodeService.exists(nodeRef) && isUnder(nodeRef, folders)) {
+				count += recheckFileTokens(nodeRef);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if a primary parent of the node is one of the folders, the ACLs are inherited from them
+	 */
+	private boolean isUnder(final NodeRef nodeRef, final Collection<NodeRef> folders) {
+		ChildAssociationRef parent = this.nodeService.getPrimaryParent(nodeRef);
+		while (parent != null && parent.getParentRef() != null) {
+			if (folders.contains(parent.getParentRef())) {
+				return true;
+			}
+			parent = this.nodeService.getPrimaryParent(parent.getParentRef());
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluate again the permissions of a token, as its user. The token is revoked if the user can no longer read the
+	 * document, else its WRITE permission is updated.
+	 *
+	 * @return true if the token was revoked
+	 */
+	private boolean recheck(final WOPIAccessTokenInfo tokenInfo, final NodeRef nodeRef) {
+		final String userName = tokenInfo.getUserName();
+		final AccessStatus read = AuthenticationUtil
+				.runAs(() -> this.permissionService.hasPermission(nodeRef, PermissionService.READ), userName);
+		if (AccessStatus.ALLOWED != read) {
+			logger.debug("User '{}' can no longer read '{}', token revoked", userName, nodeRef);
+			return revoke(tokenInfo.getAccessToken());
+		}
+
+		final boolean canWrite = AuthenticationUtil.runAs(() -> canWrite(nodeRef), userName);
+		if (canWrite != tokenInfo.isCanWrite()) {
+			logger.debug("User '{}' {} write '{}'", userName, canWrite ? "can now" : "can no longer", nodeRef);
+			tokenInfo.setCanWrite(canWrite);
+			// the cache returns a copy, put it back for the next requests
+			this.tokenMap.put(tokenInfo.getAccessToken(), tokenInfo);
+		}
+		return false;
+	}
+
+	/**
+	 * Remove a token from the token map and the indexes
+	 *
+	 * @return false if the token was already removed
+	 */
+	private boolean revoke(final String accessToken) {
+		final WOPIAccessTokenInfo tokenInfo = this.tokenMap.get(accessToken);
+		if (tokenInfo == null) {
+			return false;
+		}
+
+		this.tokenMap.remove(accessToken);
+		this.tokenIndex.remove(tokenInfo);
+		countToken(tokenInfo, -1);
+		return true;
+	}
+
+	private static long expiryMinute(final WOPIAccessTokenInfo tokenInfo) {
+		return TimeUnit.MILLISECONDS.toMinutes(tokenInfo.getExpiresAt().toDate().getTime());
+	}
+
+	/**
+	 * A token revoked here may have been issued by another server, its minute is never negative
+	 */
+	private void countToken(final WOPIAccessTokenInfo tokenInfo, final int delta) {
+		if (delta > 0) {
+			this.issuedTokens.computeIfAbsent(expiryMinute(tokenInfo), k -> new AtomicLong()).addAndGet(delta);
+		} else {
+			this.issuedTokens.computeIfPresent(expiryMinute(tokenInfo),
+					(k, v) -> v.addAndGet(delta) > 0 ? v : null);
+		}
+	}
+
+	/**
+	 * Not a scan of the token map : the tokens issued by this server, not revoked and not expired (at the minute).
+	 * The tokens of the cluster are the sum of the servers.
+	 */
+	@Override
+	public int getTokenCount() {
+		final long now = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+		this.issuedTokens.headMap(now).clear();
+		long count = 0;
+		for (AtomicLong issued : this.issuedTokens.values()) {
+			count += issued.get();
+		}
+		return (int) Math.min(Integer.MAX_VALUE, count);
+	}
+
+	@Override
+	public long getTokenHits() {
+		return this.tokenHits.get();
+	}
+
+	@Override
+	public long getTokenMisses() {
+		return this.tokenMisses.get();
+	}
+
+	@Override
+	public int getLockedNodeCount() {
+		return this.wopiSessions.count();
+	}
+
+	private void trackLock(final NodeRef nodeRef) {
+		this.wopiSessions.opened(nodeRef, LOCK_TIMEOUT_S * 1000L);
+	}
+
 	private HashMap<String, String> serverInfo = null;
 
 	@Override
@@ -231,8 +506,10 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 	 */
 	@Override
 	public String getWopiSrcURL(NodeRef nodeRef, String action) {
-		if (!this.wopiDiscovery.hasCollaboraOnline()) {
-			throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, "Collabora is Offline");
+		final WopiDiscovery wopiDiscovery = this.wopiDiscoveryRing.select(nodeRef.getId());
+		if (!wopiDiscovery.hasCollaboraOnline()) {
+			throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE,
+					"Collabora Online is unavailable: " + wopiDiscovery.getCollaboraPrivateUrl());
 		}
 
 		final String filename = (String) this.nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
@@ -244,10 +521,10 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 		if (lastDot < 0) {
 			logger.warn("This node has no extension: {} fileName={} use mimeType (legacy)", nodeRef, filename);
 			final ContentData contentData = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
-			return this.wopiDiscovery.getSrcURL(contentData.getMimetype(), action);
+			return wopiDiscovery.getSrcURL(contentData.getMimetype(), action);
 		}
 		String ext = filename.substring(lastDot + 1);
-		List<DiscoveryAction> actions = this.wopiDiscovery.getAction(ext.toLowerCase());
+		List<DiscoveryAction> actions = wopiDiscovery.getAction(ext.toLowerCase());
 
 		if (actions == null || actions.isEmpty()) {
 			throw new WebScriptException(Status.STATUS_NOT_IMPLEMENTED,
@@ -279,7 +556,8 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 			throw new ConflictException(EMPTY_STRING, lockFailureReason);
 		}
 
-		this.lockService.lock(nodeRef, LockType.WRITE_LOCK, 30 * 60, Lifetime.EPHEMERAL, lockId);
+		this.lockService.lock(nodeRef, LockType.WRITE_LOCK, LOCK_TIMEOUT_S, Lifetime.EPHEMERAL, lockId);
+		trackLock(nodeRef);
 
 		return lockId;
 	}
@@ -306,7 +584,8 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 		}
 
 		if (isNodeLock(nodeRef)) {
-			this.lockService.lock(nodeRef, LockType.NODE_LOCK, 30 * 60, Lifetime.EPHEMERAL, lockId);
+			this.lockService.lock(nodeRef, LockType.NODE_LOCK, LOCK_TIMEOUT_S, Lifetime.EPHEMERAL, lockId);
+			trackLock(nodeRef);
 		} else {
 			String lockFailureReason = String.format(CANT_REFRESH + NODE_NOT_LOCK, nodeRef);
 			throw new ConflictException(EMPTY_STRING, lockFailureReason);
@@ -324,9 +603,10 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 
 		if (isNodeLock(nodeRef)) {
 			this.lockService.unlock(nodeRef);
+			this.wopiSessions.closed(nodeRef);
 		} else {
-			String lockFailureReason = String.format(CANT_UNLOCK + NODE_NOT_LOCK, nodeRef);
-			throw new ConflictException(EMPTY_STRING, lockFailureReason);
+			// Already released, by the exit save of the save policy
+			logger.debug("No lock on {}, nothing to unlock", nodeRef);
 		}
 
 		return lockId;
@@ -337,30 +617,45 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 	public void lockSteal(NodeRef nodeRef, String lockId) throws ConflictException {
 		logger.debug("STEAL LOCK '{}'", nodeRef);
 
-		String cLockId = this.lockGet(nodeRef);
-		if (StringUtils.isBlank(cLockId)) {
-			logger.debug("No lock-id on {}. No steal", nodeRef);
-			return;
-		}
+		final LockStealEvent event = new LockStealEvent();
+		event.begin();
+		String owner = null;
+		try {
+			String cLockId = this.lockGet(nodeRef);
+			if (StringUtils.isBlank(cLockId)) {
+				logger.debug("No lock-id on {}. No steal", nodeRef);
+				return;
+			}
 
-		if (!cLockId.equals(lockId)) {
-			throw new ConflictException(cLockId, "Lock-id on " + nodeRef + " is not " + lockId);
-		}
+			if (!cLockId.equals(lockId)) {
+				throw new ConflictException(cLockId, "Lock-id on " + nodeRef + " is not " + lockId);
+			}
 
-		final LockState lockState = this.lockService.getLockState(nodeRef);
+			final LockState lockState = this.lockService.getLockState(nodeRef);
+			owner = lockState.getOwner();
+
+			String runAsUser = AuthenticationUtil.getRunAsUser();
+			if (!runAsUser.equals(lockState.getOwner())) {
+				AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+					@Override
+					public Void doWork() throws Exception {
+						lockService.unlock(nodeRef);
+						return null;
+					}
+				}, lockState.getOwner());
+				event.setStolen(true);
+			}
 
-		String runAsUser = AuthenticationUtil.getRunAsUser();
-		if (!runAsUser.equals(lockState.getOwner())) {
-			AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
-				@Override
-				public Void doWork() throws Exception {
-					lockService.unlock(nodeRef);
-					return null;
-				}
-			}, lockState.getOwner());
+			this.lockService.lock(nodeRef, LockType.WRITE_LOCK, LOCK_TIMEOUT_S, Lifetime.EPHEMERAL, lockId);
+			trackLock(nodeRef);
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.setNodeRef(nodeRef.toString());
+				event.setOwner(owner);
+				event.commit();
+			}
 		}
-
-		this.lockService.lock(nodeRef, LockType.WRITE_LOCK, 30 * 60, Lifetime.EPHEMERAL, lockId);
 	}
 
 	@Override
@@ -368,6 +663,7 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 		logger.debug("UNLOCK '{}'", nodeRef);
 
 		this.lockService.unlock(nodeRef);
+		this.wopiSessions.closed(nodeRef);
 	}
 
 	private boolean isNodeLock(NodeRef nodeRef) {
@@ -414,14 +710,29 @@ public class CollaboraOnlineServiceImpl implements CollaboraOnlineService {
 		this.alfrescoPublicURL = alfrescoPublicURL;
 	}
 
+	public void setTokenIndex(TokenIndex tokenIndex) {
+		this.tokenIndex = tokenIndex;
+	}
+
+	public void setWopiDiscoveryRing(WopiDiscoveryRing wopiDiscoveryRing) {
+		this.wopiDiscoveryRing = wopiDiscoveryRing;
+	}
+
+	/**
+	 * Use only one Collabora Online backend
+	 */
 	public void setWopiDiscovery(WopiDiscovery wopiDiscovery) {
-		this.wopiDiscovery = wopiDiscovery;
+		this.wopiDiscoveryRing = WopiDiscoveryRing.of(wopiDiscovery);
 	}
 
 	public void setLockService(LockService lockService) {
 		this.lockService = lockService;
 	}
 
+	public void setVersionService(VersionService versionService) {
+		this.versionService = versionService;
+	}
+
 	public void setTransactionService(TransactionService transactionService) {
 		this.transactionService = transactionService;
 		this.txnHelper = transactionService.getRetryingTransactionHelper();
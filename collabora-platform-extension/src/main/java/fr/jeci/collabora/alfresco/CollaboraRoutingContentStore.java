@@ -0,0 +1,244 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.alfresco.repo.content.AbstractRoutingContentStore;
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.NodeContentContext;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content store writing the content of documents open in Collabora Online to a
+ * fast local store, and everything else to the primary store.
+ * <p>
+ * Autosaves of a document under edition land in the hot store. Once the WOPI
+ * session ends (unlock, after the exit save, or lock expiration) a background
+ * task copies them to the primary store under the same content URL, then deletes
+ * the hot copy. Reads go to whichever store has the URL.
+ * <p>
+ * The hot store must use the same content URL protocol as the primary store
+ * (store://), and be shared by all the servers of a cluster.
+ */
+public class CollaboraRoutingContentStore extends AbstractRoutingContentStore {
+	private static final Logger logger = LoggerFactory.getLogger(CollaboraRoutingContentStore.class);
+
+	private static final String STORE_PROTOCOL = "store";
+
+	private ContentStore primaryStore;
+	private ContentStore hotStore;
+	private WopiSessions wopiSessions;
+	private long migrateIntervalMs = 30_000L;
+
+	/** Content URLs written to the hot store, by node */
+	private final Map<NodeRef, Set<String>> hotUrls = new ConcurrentHashMap<>();
+	/** Content URLs found in the hot store at startup, whatever their node */
+	private final Set<String> orphanUrls = ConcurrentHashMap.newKeySet();
+
+	private ScheduledExecutorService migrator;
+
+	public void init() {
+		PropertyCheck.mandatory(this, "primaryStore", this.primaryStore);
+		PropertyCheck.mandatory(this, "hotStore", this.hotStore);
+		PropertyCheck.mandatory(this, "wopiSessions", this.wopiSessions);
+
+		recover();
+
+		this.migrator = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "collabora-hot-store-migrator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.migrator.scheduleWithFixedDelay(this::migrate, this.migrateIntervalMs, this.migrateIntervalMs,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public void shutdown() {
+		if (this.migrator != null) {
+			// Whatever is left is moved at next startup
+			this.migrator.shutdownNow();
+		}
+	}
+
+	@Override
+	protected List<ContentStore> getAllStores() {
+		// The hot store first, it is small and local
+		return Arrays.asList(this.hotStore, this.primaryStore);
+	}
+
+	@Override
+	protected ContentStore selectWriteStore(ContentContext ctx) {
+		return isHot(ctx) != null ? this.hotStore : this.primaryStore;
+	}
+
+	@Override
+	public ContentWriter getWriter(ContentContext context) {
+		final ContentWriter writer = super.getWriter(context);
+		final NodeRef nodeRef = isHot(context);
+		if (nodeRef != null) {
+			// At worst the URL went to the primary store, then the migrator skips it
+			this.hotUrls.compute(nodeRef, (k, urls) -> {
+				final Set<String> set = urls != null ? urls : ConcurrentHashMap.newKeySet();
+				set.add(writer.getContentUrl());
+				return set;
+			});
+			logger.debug("Write {} of {} to the hot store", writer.getContentUrl(), nodeRef);
+		}
+		return writer;
+	}
+
+	/**
+	 * @return the node of the content, if it has an active WOPI session
+	 */
+	private NodeRef isHot(ContentContext ctx) {
+		if (!(ctx instanceof NodeContentContext)) {
+			return null;
+		}
+		final NodeRef nodeRef = ((NodeContentContext) ctx).getNodeRef();
+		return nodeRef != null && this.wopiSessions.isActive(nodeRef) ? nodeRef : null;
+	}
+
+	/**
+	 * Move the content of every node without an active WOPI session to the
+	 * primary store.
+	 */
+	void migrate() {
+		try {
+			this.orphanUrls.removeIf(this::migrateUrl);
+
+			final Iterator<Map.Entry<NodeRef, Set<String>>> it = this.hotUrls.entrySet().iterator();
+			while (it.hasNext()) {
+				final Map.Entry<NodeRef, Set<String>> entry = it.next();
+				if (this.wopiSessions.isActive(entry.getKey())) {
+					continue;
+				}
+				entry.getValue().removeIf(this::migrateUrl);
+				// Kept if a new session wrote in between
+				this.hotUrls.computeIfPresent(entry.getKey(), (k, urls) -> urls.isEmpty() ? null : urls);
+			}
+		} catch (RuntimeException e) {
+			// Never let the scheduled task die
+			logger.error("Hot store migration failed", e);
+		}
+	}
+
+	/**
+	 * @return true when the content URL is no longer in the hot store
+	 */
+	boolean migrateUrl(String contentUrl) {
+		try {
+			if (!this.hotStore.exists(contentUrl)) {
+				return true;
+			}
+
+			final ContentReader reader = this.hotStore.getReader(contentUrl);
+			if (System.currentTimeMillis() - reader.getLastModified() < this.migrateIntervalMs) {
+				// May still be written
+				return false;
+			}
+
+			if (!this.primaryStore.isContentUrlSupported(contentUrl)) {
+				// Still readable from the hot store
+				logger.error("The primary store does not accept {}, kept in the hot store", contentUrl);
+				return true;
+			}
+
+			if (!this.primaryStore.exists(contentUrl)) {
+				final ContentWriter writer = this.primaryStore.getWriter(new ContentContext(null, contentUrl));
+				writer.putContent(reader);
+			}
+
+			this.hotStore.delete(contentUrl);
+			logger.debug("Content {} moved to the primary store", contentUrl);
+			return true;
+		} catch (RuntimeException e) {
+			logger.warn("Failed to move {} to the primary store, will retry: {}", contentUrl, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Content left in the hot store by a previous run.
+	 */
+	private void recover() {
+		final String rootLocation = this.hotStore.getRootLocation();
+		if (rootLocation == null) {
+			return;
+		}
+
+		final Path root = Paths.get(rootLocation);
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+
+		try (Stream<Path> files = Files.walk(root)) {
+			files.filter(Files::isRegularFile).forEach(file -> this.orphanUrls.add(contentUrl(root, file)));
+		} catch (IOException e) {
+			logger.error("Failed to list the hot store {}", root, e);
+		}
+
+		if (!this.orphanUrls.isEmpty()) {
+			logger.info("{} content(s) left in the hot store, moving them to the primary store",
+					this.orphanUrls.size());
+		}
+	}
+
+	static String contentUrl(Path root, Path file) {
+		return STORE_PROTOCOL + ContentStore.PROTOCOL_DELIMITER
+				+ root.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+	}
+
+	int hotUrlCount() {
+		return this.orphanUrls.size() + this.hotUrls.values().stream().mapToInt(Set::size).sum();
+	}
+
+	public void setPrimaryStore(ContentStore primaryStore) {
+		this.primaryStore = primaryStore;
+	}
+
+	public void setHotStore(ContentStore hotStore) {
+		this.hotStore = hotStore;
+	}
+
+	public void setWopiSessions(WopiSessions wopiSessions) {
+		this.wopiSessions = wopiSessions;
+	}
+
+	public void setMigrateIntervalMs(long migrateIntervalMs) {
+		this.migrateIntervalMs = Math.max(1000L, migrateIntervalMs);
+	}
+}
@@ -0,0 +1,113 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hash ring with virtual nodes. A key always goes to the same member while the members don't change, and
+ * skipping a member moves only the keys of this member to the next ones on the ring.
+ * <p>
+ * The ring is immutable, the hash does not depend on the JVM so every Alfresco node picks the same member.
+ *
+ * @param <T> member of the ring
+ */
+public final class ConsistentHashRing<T> {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final NavigableMap<Long, T> ring = new TreeMap<>();
+	private final List<T> members;
+
+	/**
+	 * @param members      members of the ring, by identifier (the identifier must be stable, for example an URL)
+	 * @param virtualNodes number of points of each member on the ring
+	 */
+	public ConsistentHashRing(final Map<String, T> members, final int virtualNodes) {
+		if (virtualNodes < 1) {
+			throw new IllegalArgumentException("virtualNodes must be positive");
+		}
+
+		this.members = Collections.unmodifiableList(new ArrayList<>(members.values()));
+		for (Map.Entry<String, T> member : members.entrySet()) {
+			for (int i = 0; i < virtualNodes; i++) {
+				this.ring.put(hash(member.getKey() + '#' + i), member.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return member of the key, null if the ring is empty
+	 */
+	public T get(final String key) {
+		return get(key, m -> true);
+	}
+
+	/**
+	 * Walk the ring from the key to the first accepted member
+	 *
+	 * @param key    key to place on the ring
+	 * @param accept usually a health check of the member
+	 * @return first accepted member, null if none is accepted
+	 */
+	public T get(final String key, final Predicate<T> accept) {
+		if (this.ring.isEmpty()) {
+			return null;
+		}
+
+		final long h = hash(key);
+		for (T member : this.ring.tailMap(h, true).values()) {
+			if (accept.test(member)) {
+				return member;
+			}
+		}
+		for (T member : this.ring.headMap(h, false).values()) {
+			if (accept.test(member)) {
+				return member;
+			}
+		}
+		return null;
+	}
+
+	public List<T> getMembers() {
+		return this.members;
+	}
+
+	/**
+	 * 64-bit FNV-1a with the finalizer of MurmurHash3, close keys like nodeRef ids are spread on the ring
+	 */
+	static long hash(final String key) {
+		long h = FNV_OFFSET;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xff;
+			h *= FNV_PRIME;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,317 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local disk copy of documents about to be opened in Collabora Online.
+ * <p>
+ * When a token is issued, Collabora Online asks for the content a few milliseconds later. With a slow content store
+ * (S3, NAS), the content is copied in background to a local directory, so GetFile can stream the local copy. Entries
+ * are keyed by content URL : a new version has a new URL, a cached copy is never stale.
+ * <p>
+ * The prefetch is bounded : few threads, a small queue (requests are dropped when it is full), a maximum file size, a
+ * maximum total size and a maximum age.
+ */
+public class ContentPrefetchCache {
+	private static final Logger logger = LoggerFactory.getLogger(ContentPrefetchCache.class);
+
+	private static final String TEMP_DIR = "collabora-prefetch";
+
+	private ContentService contentService;
+
+	private boolean enabled;
+	private String directory;
+	private int threads = 2;
+	private int queueSize = 32;
+	private long maxFileBytes = 100L * 1024 * 1024;
+	private long maxTotalBytes = 1024L * 1024 * 1024;
+	private long maxAgeMs = 10L * 60 * 1000;
+
+	private File cacheDir;
+	private ThreadPoolExecutor executor;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+	private final AtomicLong totalBytes = new AtomicLong();
+
+	public void init() {
+		if (!this.enabled) {
+			logger.info("Content prefetch disabled");
+			return;
+		}
+
+		this.cacheDir = StringUtils.isBlank(this.directory) ? TempFileProvider.getTempDir(TEMP_DIR)
+				: new File(this.directory);
+		if (!this.cacheDir.isDirectory() && !this.cacheDir.mkdirs()) {
+			logger.warn("Can't create prefetch directory {}, content prefetch disabled", this.cacheDir);
+			this.enabled = false;
+			return;
+		}
+
+		// Files left by a previous run are not indexed
+		final File[] files = this.cacheDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				deleteFile(file);
+			}
+		}
+
+		this.executor = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(this.queueSize), r -> {
+					Thread thread = new Thread(r, "collabora-prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}, (task, executor) -> {
+					// Queue is full, the document will be read from the content store
+					this.pending.remove(((FetchTask) task).contentUrl);
+					logger.debug("Prefetch queue is full");
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+
+		logger.info("Content prefetch in {} (max {} bytes)", this.cacheDir, this.maxTotalBytes);
+	}
+
+	public void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Copy the content of a node in background. Must be called in a transaction, by a user who can read the node.
+	 *
+	 * @param nodeRef document about to be opened
+	 */
+	public void prefetch(final NodeRef nodeRef) {
+		if (!this.enabled) {
+			return;
+		}
+
+		final ContentReader reader = this.contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+		if (reader == null || reader.getSize() <= 0 || reader.getSize() > this.maxFileBytes) {
+			return;
+		}
+
+		final String contentUrl = reader.getContentUrl();
+		final Entry entry = this.entries.get(contentUrl);
+		if (entry != null && !entry.isExpired(System.currentTimeMillis(), this.maxAgeMs)) {
+			return;
+		}
+
+		if (this.pending.add(contentUrl)) {
+			this.executor.execute(new FetchTask(contentUrl));
+		}
+	}
+
+	/**
+	 * Open the local copy of a content.
+	 *
+	 * @param contentUrl content URL, from a reader obtained with the permissions of the user
+	 * @return stream on the local copy, or null if there is no valid copy
+	 */
+	public InputStream open(final String contentUrl) {
+		if (!this.enabled || contentUrl == null) {
+			return null;
+		}
+
+		final Entry entry = this.entries.get(contentUrl);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(System.currentTimeMillis(), this.maxAgeMs)) {
+			remove(contentUrl);
+			return null;
+		}
+
+		try {
+			return new FileInputStream(entry.file);
+		} catch (IOException e) {
+			logger.debug("Prefetched file is gone {}", entry.file);
+			remove(contentUrl);
+			return null;
+		}
+	}
+
+	private void fetch(final String contentUrl) {
+		File tmp = null;
+		try {
+			// The user was checked by prefetch(), raw readers are reserved to admins
+			final ContentReader reader = AuthenticationUtil
+					.runAsSystem(() -> this.contentService.getRawReader(contentUrl));
+			if (reader == null || !reader.exists()) {
+				return;
+			}
+
+			final String name = fileName(contentUrl);
+			tmp = new File(this.cacheDir, name + ".part");
+			reader.getContent(tmp);
+
+			final File file = new File(this.cacheDir, name);
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Can't rename " + tmp);
+			}
+			tmp = null;
+
+			final Entry previous = this.entries.put(contentUrl, new Entry(file, file.length()));
+			if (previous != null) {
+				this.totalBytes.addAndGet(-previous.size);
+			}
+			this.totalBytes.addAndGet(file.length());
+			logger.debug("Prefetched {} ({} bytes)", contentUrl, file.length());
+
+			evict();
+		} catch (Exception e) {
+			logger.warn("Can't prefetch {} : {}", contentUrl, e.getMessage());
+		} finally {
+			if (tmp != null) {
+				deleteFile(tmp);
+			}
+			this.pending.remove(contentUrl);
+		}
+	}
+
+	/**
+	 * Remove expired entries, then the oldest ones until the total size is under maxTotalBytes
+	 */
+	private void evict() {
+		final long now = System.currentTimeMillis();
+		this.entries.entrySet().stream().filter(e -> e.getValue().isExpired(now, this.maxAgeMs))
+				.map(Map.Entry::getKey).forEach(this::remove);
+
+		if (this.totalBytes.get() <= this.maxTotalBytes) {
+			return;
+		}
+
+		this.entries.entrySet().stream().sorted(Comparator.comparingLong(e -> e.getValue().createdAt))
+				.map(Map.Entry::getKey).filter(key -> this.totalBytes.get() > this.maxTotalBytes)
+				.forEach(this::remove);
+	}
+
+	private void remove(final String contentUrl) {
+		final Entry entry = this.entries.remove(contentUrl);
+		if (entry != null) {
+			this.totalBytes.addAndGet(-entry.size);
+			// An open stream can still read a deleted file
+			deleteFile(entry.file);
+		}
+	}
+
+	private static void deleteFile(final File file) {
+		if (!file.delete() && file.exists()) {
+			logger.debug("Can't delete {}", file);
+		}
+	}
+
+	private static String fileName(final String contentUrl) throws NoSuchAlgorithmException {
+		final byte[] digest = MessageDigest.getInstance("SHA-256")
+				.digest(contentUrl.getBytes(StandardCharsets.UTF_8));
+		final StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setContentService(ContentService contentService) {
+		this.contentService = contentService;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void setDirectory(String directory) {
+		this.directory = directory;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public void setMaxFileBytes(long maxFileBytes) {
+		this.maxFileBytes = maxFileBytes;
+	}
+
+	public void setMaxTotalBytes(long maxTotalBytes) {
+		this.maxTotalBytes = maxTotalBytes;
+	}
+
+	public void setMaxAgeMs(long maxAgeMs) {
+		this.maxAgeMs = maxAgeMs;
+	}
+
+	private final class FetchTask implements Runnable {
+		private final String contentUrl;
+
+		private FetchTask(final String contentUrl) {
+			this.contentUrl = contentUrl;
+		}
+
+		@Override
+		public void run() {
+			fetch(this.contentUrl);
+		}
+	}
+
+	private static final class Entry {
+		private final File file;
+		private final long size;
+		private final long createdAt = System.currentTimeMillis();
+
+		private Entry(final File file, final long size) {
+			this.file = file;
+			this.size = size;
+		}
+
+		private boolean isExpired(final long now, final long maxAgeMs) {
+			return now - this.createdAt > maxAgeMs;
+		}
+	}
+}
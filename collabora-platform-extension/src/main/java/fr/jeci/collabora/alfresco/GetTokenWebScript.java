@@ -35,6 +35,7 @@ public class GetTokenWebScript extends DeclarativeWebScript {
 	private static final String PARAM_NODE_REF = "nodeRef";
 
 	protected CollaboraOnlineService collaboraOnlineService;
+	protected ContentPrefetchCache contentPrefetchCache;
 
 	@Override
 	protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
@@ -50,10 +51,7 @@ public class GetTokenWebScript extends DeclarativeWebScript {
 			throw new WebScriptException("No 'action' parameter supplied");
 		}
 
-		final WOPIAccessTokenInfo tokenInfo = this.collaboraOnlineService.createAccessToken(nodeRef);
-		model.put(ACCESS_TOKEN, tokenInfo.getAccessToken());
-		model.put(ACCESS_TOKEN_TTL, tokenInfo.getExpiresAt().toDate().getTime());
-
+		// Before the token, so it fails fast with 503 while Collabora Online is unavailable
 		try {
 			String wopiSrcUrl = this.collaboraOnlineService.getWopiSrcURL(nodeRef, action);
 			logger.debug("Get Token {} for wopiSrcUrl {}", action, wopiSrcUrl);
@@ -61,6 +59,14 @@ public class GetTokenWebScript extends DeclarativeWebScript {
 		} catch (IOException e) {
 			status.setCode(Status.STATUS_INTERNAL_SERVER_ERROR, "Failed to get wopiSrcURL");
 		}
+
+		final WOPIAccessTokenInfo tokenInfo = this.collaboraOnlineService.createAccessToken(nodeRef);
+		// Done here, in the write transaction of this webscript, so CheckFileInfo doesn't need one
+		this.collaboraOnlineService.ensureVersioningEnabled(nodeRef);
+		// Collabora Online will ask for the content in a few milliseconds
+		this.contentPrefetchCache.prefetch(nodeRef);
+		model.put(ACCESS_TOKEN, tokenInfo.getAccessToken());
+		model.put(ACCESS_TOKEN_TTL, tokenInfo.getExpiresAt().toDate().getTime());
 		return model;
 	}
 
@@ -68,4 +74,7 @@ public class GetTokenWebScript extends DeclarativeWebScript {
 		this.collaboraOnlineService = collaboraOnlineService;
 	}
 
-}
\ No newline at end of file
+	public void setContentPrefetchCache(ContentPrefetchCache contentPrefetchCache) {
+		this.contentPrefetchCache = contentPrefetchCache;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tokens and WOPI src URLs of many nodes in one request, for pages with several documents opened in Collabora Online.
+ * A node in error (no permission, no extension) has a status instead of a token, the other nodes are not affected.
+ */
+public class GetTokensWebScript extends DeclarativeWebScript {
+	private static final Logger logger = LoggerFactory.getLogger(GetTokensWebScript.class);
+
+	private static final String PARAM_ACTION = "action";
+	private static final String PARAM_NODE_REF = "nodeRef";
+	private static final int DEFAULT_MAX_NODES = 50;
+
+	private CollaboraOnlineService collaboraOnlineService;
+	private NodeService nodeService;
+	private PermissionService permissionService;
+	private ContentPrefetchCache contentPrefetchCache;
+	private int maxNodes = DEFAULT_MAX_NODES;
+
+	@Override
+	protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+		final String action = req.getParameter(PARAM_ACTION);
+		if (action == null) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No 'action' parameter supplied");
+		}
+
+		final String[] nodeRefs = req.getParameterValues(PARAM_NODE_REF);
+		if (nodeRefs == null || nodeRefs.length == 0) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No 'nodeRef' parameter supplied");
+		}
+		// the same document twice gets one token
+		final Set<String> unique = new LinkedHashSet<>(nodeRefs.length);
+		for (String nodeRef : nodeRefs) {
+			unique.add(nodeRef);
+		}
+		if (unique.size() > this.maxNodes) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+					"Too many nodes: " + unique.size() + " (max " + this.maxNodes + ")");
+		}
+
+		// permissions of each node are evaluated once, then the tokens are stored in one batch
+		final List<Map<String, Object>> tokens = new ArrayList<>(unique.size());
+		final Map<NodeRef, Boolean> canWrite = new LinkedHashMap<>(unique.size() * 2);
+		final Map<NodeRef, Map<String, Object>> granted = new HashMap<>(unique.size() * 2);
+		for (String nodeRef : unique) {
+			final Map<String, Object> result = check(nodeRef, action, canWrite);
+			tokens.add(result);
+			if (result.get("status") == null) {
+				granted.put(new NodeRef(nodeRef), result);
+			}
+		}
+
+		if (!canWrite.isEmpty()) {
+			final Map<NodeRef, WOPIAccessTokenInfo> created = this.collaboraOnlineService.createAccessTokens(canWrite);
+			for (Map.Entry<NodeRef, WOPIAccessTokenInfo> entry : created.entrySet()) {
+				final NodeRef nodeRef = entry.getKey();
+				final WOPIAccessTokenInfo tokenInfo = entry.getValue();
+				this.collaboraOnlineService.ensureVersioningEnabled(nodeRef, tokenInfo.isCanWrite());
+				this.contentPrefetchCache.prefetch(nodeRef);
+
+				final Map<String, Object> result = granted.get(nodeRef);
+				result.put("status", Status.STATUS_OK);
+				result.put("access_token", tokenInfo.getAccessToken());
+				result.put("access_token_ttl", tokenInfo.getExpiresAt().toDate().getTime());
+			}
+		}
+
+		final Map<String, Object> model = new HashMap<>();
+		model.put("tokens", tokens);
+		return model;
+	}
+
+	/**
+	 * Same checks as {@link GetTokenWebScript}, errors are returned in the result of the node. READ and WRITE are
+	 * evaluated here only, a node allowed to READ is added to canWrite and its result has no status yet.
+	 */
+	private Map<String, Object> check(final String nodeRefStr, final String action,
+			final Map<NodeRef, Boolean> canWrite) {
+		final Map<String, Object> result = new HashMap<>();
+		result.put(PARAM_NODE_REF, nodeRefStr);
+		try {
+			if (!NodeRef.isNodeRef(nodeRefStr)) {
+				throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid nodeRef");
+			}
+			final NodeRef nodeRef = new NodeRef(nodeRefStr);
+			// checked before the services, an access denied there would roll back the tokens of the other nodes
+			if (!this.nodeService.exists(nodeRef)) {
+				throw new WebScriptException(Status.STATUS_NOT_FOUND, "Node not found");
+			}
+			if (AccessStatus.ALLOWED != this.permissionService.hasPermission(nodeRef, PermissionService.READ)) {
+				throw new WebScriptException(Status.STATUS_UNAUTHORIZED, "Not allow to READ " + nodeRef);
+			}
+
+			result.put("wopi_src_url", this.collaboraOnlineService.getWopiSrcURL(nodeRef, action));
+			canWrite.put(nodeRef, AccessStatus.ALLOWED == this.permissionService.hasPermission(nodeRef,
+					PermissionService.WRITE));
+		} catch (WebScriptException e) {
+			logger.debug("No token for {} : {}", nodeRefStr, e.getMessage());
+			result.put("status", e.getStatus());
+			result.put("message", e.getMessage());
+		} catch (IOException e) {
+			logger.warn("No token for {}", nodeRefStr, e);
+			result.put("status", Status.STATUS_INTERNAL_SERVER_ERROR);
+			result.put("message", "Failed to get wopiSrcURL");
+		}
+		return result;
+	}
+
+	public void setCollaboraOnlineService(CollaboraOnlineService collaboraOnlineService) {
+		this.collaboraOnlineService = collaboraOnlineService;
+	}
+
+	public void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	public void setPermissionService(PermissionService permissionService) {
+		this.permissionService = permissionService;
+	}
+
+	public void setContentPrefetchCache(ContentPrefetchCache contentPrefetchCache) {
+		this.contentPrefetchCache = contentPrefetchCache;
+	}
+
+	public void setMaxNodes(int maxNodes) {
+		this.maxNodes = maxNodes;
+	}
+}
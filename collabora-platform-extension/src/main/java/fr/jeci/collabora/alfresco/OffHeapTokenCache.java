@@ -0,0 +1,419 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.alfresco.repo.cache.SimpleCache;
+import org.joda.time.LocalDateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Access tokens of a single Alfresco node, in a hash table outside of the Java heap.
+ * <p>
+ * Open addressing with linear probing, one fixed-width record per slot. A token is removed on read once it has
+ * expired for longer than <code>graceMs</code> (an expired token can still be renewed during the grace period). When
+ * the table is full, a clock hand evicts expired tokens first, then the tokens not read since its last pass.
+ * <p>
+ * Tokens whose fields don't fit in a record (very long user name) are kept on the heap. Not for clusters : use the
+ * shared cache <code>lool-fileIdAccessTokenMapSharedCache</code>.
+ */
+public class OffHeapTokenCache implements SimpleCache<String, WOPIAccessTokenInfo> {
+	private static final Logger logger = LoggerFactory.getLogger(OffHeapTokenCache.class);
+
+	private static final byte EMPTY = 0;
+	private static final byte USED = 1;
+	private static final byte DELETED = 2;
+	/** Live record not yet placed by {@link #rehash()} */
+	private static final byte MOVING = 3;
+	/** Length of a null user name */
+	private static final short NULL_USER = -1;
+
+	// Record layout
+	private static final int STATE = 0;
+	private static final int REFERENCED = 1;
+	private static final int KEY_LEN = 2;
+	private static final int FILE_LEN = 3;
+	private static final int USER_LEN = 4;
+	private static final int CAN_WRITE = 6;
+	private static final int HASH = 8;
+	private static final int ISSUED_AT = 16;
+	private static final int EXPIRES_AT = 24;
+	private static final int KEY = 32;
+	private static final int KEY_MAX = 32;
+	private static final int FILE_ID = KEY + KEY_MAX;
+	private static final int FILE_ID_MAX = 48;
+	private static final int USER = FILE_ID + FILE_ID_MAX;
+	private static final int USER_MAX = 144;
+	static final int RECORD_SIZE = USER + USER_MAX;
+
+	private int capacity = 1 << 17;
+	private long graceMs = 3_600_000L;
+
+	private ByteBuffer table;
+	private int mask;
+	private int used;
+	private int deleted;
+	private int clockHand;
+
+	private final Map<String, WOPIAccessTokenInfo> overflow = new HashMap<>();
+
+	public synchronized void init() {
+		if (Integer.bitCount(this.capacity) != 1) {
+			this.capacity = Integer.highestOneBit(this.capacity) << 1;
+		}
+		this.table = ByteBuffer.allocateDirect(this.capacity * RECORD_SIZE);
+		this.mask = this.capacity - 1;
+		this.used = 0;
+		this.deleted = 0;
+		this.clockHand = 0;
+		logger.info("Off-heap token store of {} tokens ({} MB)", this.capacity,
+				(long) this.capacity * RECORD_SIZE >> 20);
+	}
+
+	@Override
+	public synchronized boolean contains(final String key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public synchronized Collection<String> getKeys() {
+		final long now = System.currentTimeMillis();
+		final Collection<String> keys = new ArrayList<>(this.used + this.overflow.size());
+		for (int slot = 0; slot < this.capacity; slot++) {
+			final int base = slot * RECORD_SIZE;
+			if (this.table.get(base + STATE) == USED && !isDead(base, now)) {
+				keys.add(readString(base + KEY, this.table.get(base + KEY_LEN) & 0xff));
+			}
+		}
+		keys.addAll(this.overflow.keySet());
+		return keys;
+	}
+
+	@Override
+	public synchronized WOPIAccessTokenInfo get(final String key) {
+		if (key == null) {
+			return null;
+		}
+
+		final int slot = find(hash(key), utf8(key));
+		if (slot < 0) {
+			final WOPIAccessTokenInfo tokenInfo = this.overflow.get(key);
+			if (tokenInfo != null && isDead(tokenInfo.getExpiresAt().toDateTime().getMillis(),
+					System.currentTimeMillis())) {
+				this.overflow.remove(key);
+				return null;
+			}
+			return tokenInfo;
+		}
+
+		final int base = slot * RECORD_SIZE;
+		if (isDead(base, System.currentTimeMillis())) {
+			delete(base);
+			return null;
+		}
+
+		this.table.put(base + REFERENCED, (byte) 1);
+		return read(base, key);
+	}
+
+	/**
+	 * The used and deleted slots stay under 3/4 of the table, so a probe sequence always ends on an empty slot. Over
+	 * it, the deleted slots are dropped by a rehash, or the table is evicted down to half if it is nearly full of live
+	 * tokens : at least capacity/8 slots are used or deleted between two of these passes.
+	 */
+	@Override
+	public synchronized void put(final String key, final WOPIAccessTokenInfo value) {
+		final int hash = hash(key);
+		final byte[] keyBytes = utf8(key);
+		remove(hash, keyBytes, key);
+
+		final byte[] fileBytes = utf8(value.getFileId());
+		final byte[] userBytes = utf8(value.getUserName());
+		if (keyBytes.length > KEY_MAX || fileBytes.length > FILE_ID_MAX || userBytes.length > USER_MAX) {
+			this.overflow.put(key, value);
+			return;
+		}
+
+		final int maxLoad = this.capacity * 3 / 4;
+		if (this.used + this.deleted + 1 > maxLoad) {
+			if (this.used + 1 > maxLoad - this.capacity / 8) {
+				evict();
+			} else {
+				rehash();
+			}
+		}
+
+		int slot = hash & this.mask;
+		while (this.table.get(slot * RECORD_SIZE + STATE) == USED) {
+			slot = (slot + 1) & this.mask;
+		}
+
+		final int base = slot * RECORD_SIZE;
+		if (this.table.get(base + STATE) == DELETED) {
+			this.deleted--;
+		}
+		write(base, hash, keyBytes, fileBytes, userBytes, value);
+		this.used++;
+	}
+
+	@Override
+	public synchronized void remove(final String key) {
+		if (key != null) {
+			remove(hash(key), utf8(key), key);
+		}
+	}
+
+	private void remove(final int hash, final byte[] keyBytes, final String key) {
+		final int slot = find(hash, keyBytes);
+		if (slot >= 0) {
+			delete(slot * RECORD_SIZE);
+		}
+		this.overflow.remove(key);
+	}
+
+	@Override
+	public synchronized void clear() {
+		for (int slot = 0; slot < this.capacity; slot++) {
+			this.table.put(slot * RECORD_SIZE + STATE, EMPTY);
+		}
+		this.used = 0;
+		this.deleted = 0;
+		this.overflow.clear();
+	}
+
+	/**
+	 * @return number of tokens off-heap, including the expired ones not yet removed
+	 */
+	public synchronized int size() {
+		return this.used;
+	}
+
+	/**
+	 * @return slots neither used nor deleted, where a probe sequence ends
+	 */
+	synchronized int emptySlots() {
+		return this.capacity - this.used - this.deleted;
+	}
+
+	private int find(final int hash, final byte[] keyBytes) {
+		int slot = hash & this.mask;
+		for (int probe = 0; probe < this.capacity; probe++) {
+			final int base = slot * RECORD_SIZE;
+			final byte state = this.table.get(base + STATE);
+			if (state == EMPTY) {
+				return -1;
+			}
+			if (state == USED && this.table.getInt(base + HASH) == hash && keyEquals(base, keyBytes)) {
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Second chance clock : expired tokens are removed, referenced ones lose their bit, the first one not referenced
+	 * is evicted. Stops when half of the table is free, then drops the deleted slots.
+	 */
+	private void evict() {
+		final long now = System.currentTimeMillis();
+		final int target = this.capacity / 2;
+		int evicted = 0;
+		for (int step = 0; step < 2 * this.capacity && this.used > target; step++) {
+			final int base = this.clockHand * RECORD_SIZE;
+			this.clockHand = (this.clockHand + 1) & this.mask;
+			if (this.table.get(base + STATE) != USED) {
+				continue;
+			}
+
+			if (isDead(base, now)) {
+				delete(base);
+			} else if (this.table.get(base + REFERENCED) != 0) {
+				this.table.put(base + REFERENCED, (byte) 0);
+			} else {
+				delete(base);
+				evicted++;
+			}
+		}
+
+		if (evicted > 0) {
+			logger.warn("Off-heap token store is full, {} valid tokens evicted (capacity {})", evicted, this.capacity);
+		}
+		if (this.deleted > 0) {
+			rehash();
+		}
+	}
+
+	/**
+	 * Place again the live records in the same table, to drop the deleted slots of the probe sequences. No new
+	 * buffer : a record is moved to the first free slot of its probe sequence, or swapped with a record not placed
+	 * yet, which is then placed in turn.
+	 */
+	private void rehash() {
+		for (int slot = 0; slot < this.capacity; slot++) {
+			final int base = slot * RECORD_SIZE;
+			final byte state = this.table.get(base + STATE);
+			this.table.put(base + STATE, state == USED ? MOVING : EMPTY);
+		}
+
+		final byte[] record = new byte[RECORD_SIZE];
+		final byte[] other = new byte[RECORD_SIZE];
+		for (int slot = 0; slot < this.capacity; slot++) {
+			final int base = slot * RECORD_SIZE;
+			while (this.table.get(base + STATE) == MOVING) {
+				int target = this.table.getInt(base + HASH) & this.mask;
+				while (this.table.get(target * RECORD_SIZE + STATE) == USED) {
+					target = (target + 1) & this.mask;
+				}
+
+				if (target == slot) {
+					this.table.put(base + STATE, USED);
+					break;
+				}
+
+				final int targetBase = target * RECORD_SIZE;
+				getRecord(base, record);
+				if (this.table.get(targetBase + STATE) == EMPTY) {
+					this.table.put(base + STATE, EMPTY);
+				} else {
+					// Not placed yet, it takes this slot and is placed at the next turn
+					getRecord(targetBase, other);
+					putRecord(base, other);
+				}
+				putRecord(targetBase, record);
+				this.table.put(targetBase + STATE, USED);
+			}
+		}
+		this.deleted = 0;
+	}
+
+	private void getRecord(final int base, final byte[] record) {
+		for (int i = 0; i < RECORD_SIZE; i++) {
+			record[i] = this.table.get(base + i);
+		}
+	}
+
+	private void putRecord(final int base, final byte[] record) {
+		for (int i = 0; i < RECORD_SIZE; i++) {
+			this.table.put(base + i, record[i]);
+		}
+	}
+
+	private void delete(final int base) {
+		this.table.put(base + STATE, DELETED);
+		this.used--;
+		this.deleted++;
+	}
+
+	private boolean isDead(final int base, final long now) {
+		return isDead(this.table.getLong(base + EXPIRES_AT), now);
+	}
+
+	private boolean isDead(final long expiresAt, final long now) {
+		return now > expiresAt + this.graceMs;
+	}
+
+	private void write(final int base, final int hash, final byte[] keyBytes, final byte[] fileBytes,
+			final byte[] userBytes, final WOPIAccessTokenInfo value) {
+		this.table.put(base + STATE, USED);
+		this.table.put(base + REFERENCED, (byte) 0);
+		this.table.put(base + KEY_LEN, (byte) keyBytes.length);
+		this.table.put(base + FILE_LEN, (byte) fileBytes.length);
+		this.table.putShort(base + USER_LEN, value.getUserName() == null ? NULL_USER : (short) userBytes.length);
+		this.table.put(base + CAN_WRITE, (byte) (value.isCanWrite() ? 1 : 0));
+		this.table.putInt(base + HASH, hash);
+		this.table.putLong(base + ISSUED_AT, value.getIssuedAt().toDateTime().getMillis());
+		this.table.putLong(base + EXPIRES_AT, value.getExpiresAt().toDateTime().getMillis());
+		putBytes(base + KEY, keyBytes);
+		putBytes(base + FILE_ID, fileBytes);
+		putBytes(base + USER, userBytes);
+	}
+
+	/**
+	 * A new object on each read, like the shared cache : changes must be put back
+	 */
+	private WOPIAccessTokenInfo read(final int base, final String key) {
+		final WOPIAccessTokenInfo tokenInfo = new WOPIAccessTokenInfo(key,
+				new LocalDateTime(this.table.getLong(base + ISSUED_AT)),
+				new LocalDateTime(this.table.getLong(base + EXPIRES_AT)),
+				readString(base + FILE_ID, this.table.get(base + FILE_LEN) & 0xff),
+				readUser(base));
+		tokenInfo.setCanWrite(this.table.get(base + CAN_WRITE) != 0);
+		return tokenInfo;
+	}
+
+	private boolean keyEquals(final int base, final byte[] keyBytes) {
+		if ((this.table.get(base + KEY_LEN) & 0xff) != keyBytes.length) {
+			return false;
+		}
+		for (int i = 0; i < keyBytes.length; i++) {
+			if (this.table.get(base + KEY + i) != keyBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void putBytes(final int offset, final byte[] bytes) {
+		for (int i = 0; i < bytes.length; i++) {
+			this.table.put(offset + i, bytes[i]);
+		}
+	}
+
+	private String readUser(final int base) {
+		final short length = this.table.getShort(base + USER_LEN);
+		return length == NULL_USER ? null : readString(base + USER, length);
+	}
+
+	private String readString(final int offset, final int length) {
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = this.table.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] utf8(final String value) {
+		return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static int hash(final String key) {
+		final int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param capacity number of records, rounded up to a power of 2 (256 bytes each)
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @param graceMs delay after the expiration of a token before it is removed, it can be renewed meanwhile
+	 */
+	public void setGraceMs(long graceMs) {
+		this.graceMs = graceMs;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import fr.jeci.collabora.wopi.CheckFileInfoBuilder;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything a client needs to open a document in one request : the token, the URL of the WOPI host and the action URL
+ * of the iframe, with the WOPISrc already encoded. Replace the calls to /lool/host/url and /lool/token.
+ * <p>
+ * The CheckFileInfo response is built in the same transaction, Collabora Online will ask for it right after.
+ */
+public class OpenWebScript extends DeclarativeWebScript {
+	private static final Logger logger = LoggerFactory.getLogger(OpenWebScript.class);
+
+	private static final String ACTION_URL = "action_url";
+	private static final String WOPI_FILE_URL = "wopi_file_url";
+	private static final String LOOL_HOST_URL = "lool_host_url";
+	private static final String WOPI_SRC_URL = "wopi_src_url";
+	private static final String ACCESS_TOKEN_TTL = "access_token_ttl";
+	private static final String ACCESS_TOKEN = "access_token";
+	private static final String PARAM_LANG = "lang";
+	private static final String PARAM_ACTION = "action";
+	private static final String PARAM_NODE_REF = "nodeRef";
+	private static final String ALFRESCO_SERVICE = "service/";
+	private static final String WOPI_FILES = "wopi/files/";
+
+	protected CollaboraOnlineService collaboraOnlineService;
+	protected ContentPrefetchCache contentPrefetchCache;
+	protected CheckFileInfoBuilder checkFileInfoBuilder;
+
+	@Override
+	protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+		final String nodeRefStr = req.getParameter(PARAM_NODE_REF);
+		if (nodeRefStr == null) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No 'nodeRef' parameter supplied");
+		}
+		final String action = req.getParameter(PARAM_ACTION);
+		if (action == null) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No 'action' parameter supplied");
+		}
+		final NodeRef nodeRef = new NodeRef(nodeRefStr);
+
+		// Before the token, so it fails fast with 503 while Collabora Online is unavailable
+		final String wopiSrcUrl;
+		try {
+			wopiSrcUrl = this.collaboraOnlineService.getWopiSrcURL(nodeRef, action);
+		} catch (IOException e) {
+			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Failed to get wopiSrcURL", e);
+		}
+		final URL hostUrl = hostUrl();
+		final String wopiFileUrl = hostUrl + WOPI_FILES + nodeRef.getId();
+
+		final WOPIAccessTokenInfo tokenInfo = this.collaboraOnlineService.createAccessToken(nodeRef);
+		this.collaboraOnlineService.ensureVersioningEnabled(nodeRef);
+		this.contentPrefetchCache.prefetch(nodeRef);
+		this.checkFileInfoBuilder.precompute(nodeRef, tokenInfo);
+
+		final StringBuilder actionUrl = new StringBuilder(wopiSrcUrl);
+		actionUrl.append("WOPISrc=").append(URLEncoder.encode(wopiFileUrl, StandardCharsets.UTF_8));
+		final String lang = req.getParameter(PARAM_LANG);
+		if (lang != null && !lang.isEmpty()) {
+			actionUrl.append("&lang=").append(URLEncoder.encode(lang, StandardCharsets.UTF_8));
+		}
+		logger.debug("Open {} with {}", nodeRef, actionUrl);
+
+		final Map<String, Object> model = new HashMap<>(8);
+		model.put(ACCESS_TOKEN, tokenInfo.getAccessToken());
+		model.put(ACCESS_TOKEN_TTL, tokenInfo.getExpiresAt().toDate().getTime());
+		model.put(WOPI_SRC_URL, wopiSrcUrl);
+		model.put(LOOL_HOST_URL, hostUrl.toString());
+		model.put(WOPI_FILE_URL, wopiFileUrl);
+		model.put(ACTION_URL, actionUrl.toString());
+		return model;
+	}
+
+	/**
+	 * Same as /lool/host/url
+	 */
+	private URL hostUrl() {
+		final URL alfrescoPrivateURL = this.collaboraOnlineService.getAlfrescoPrivateURL();
+		try {
+			return new URL(alfrescoPrivateURL, ALFRESCO_SERVICE);
+		} catch (MalformedURLException e) {
+			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR,
+					"Invalid Wopi Server URL :" + alfrescoPrivateURL);
+		}
+	}
+
+	public void setCollaboraOnlineService(CollaboraOnlineService collaboraOnlineService) {
+		this.collaboraOnlineService = collaboraOnlineService;
+	}
+
+	public void setContentPrefetchCache(ContentPrefetchCache contentPrefetchCache) {
+		this.contentPrefetchCache = contentPrefetchCache;
+	}
+
+	public void setCheckFileInfoBuilder(CheckFileInfoBuilder checkFileInfoBuilder) {
+		this.checkFileInfoBuilder = checkFileInfoBuilder;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Secondary indexes of the access tokens : fileId to tokens and user to tokens, so the tokens of a document or of a
+ * user are revoked without scanning the token map.
+ * <p>
+ * Each token is indexed with the time it can stay in the token store (<code>retentionMs</code> after it was put), so
+ * the index drops the tokens that can no longer be in the store without asking the store. The index caches must not
+ * evict entries (eviction-policy NONE) and keep them at least as long as the token store.
+ * <p>
+ * The maps are copied on write, the shared caches return copies. Updates of a key are serialized on this node, and
+ * also in the cluster with the {@link JobLockService}, so a concurrent update never drops a token. The cluster lock is
+ * taken when Alfresco is clustered (<code>alfresco.cluster.enabled=true</code>) or when
+ * <code>collabora.token.index.cluster=true</code>.
+ */
+public class TokenIndex {
+	private static final Logger logger = LoggerFactory.getLogger(TokenIndex.class);
+
+	private static final int STRIPES = 64;
+	private static final long CLUSTER_LOCK_TTL_MS = 10_000;
+	private static final long CLUSTER_RETRY_WAIT_MS = 20;
+	private static final int CLUSTER_RETRY_COUNT = 250;
+
+	private SimpleCache<String, HashMap<String, Long>> fileTokens;
+	private SimpleCache<String, HashMap<String, Long>> userTokens;
+	private JobLockService jobLockService;
+	private boolean cluster;
+	private boolean clusterEnabled;
+	private long retentionMs = 25L * 3600 * 1000;
+
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+	public TokenIndex() {
+		for (int i = 0; i < STRIPES; i++) {
+			this.locks[i] = new ReentrantLock();
+		}
+	}
+
+	public void init() {
+		if (this.clusterEnabled && !this.cluster) {
+			// Two servers adding tokens of the same user would overwrite each other's entries
+			this.cluster = true;
+		}
+		logger.info("Token index updates locked {}", this.cluster ? "in the cluster" : "on this server");
+	}
+
+	/**
+	 * Index a token, when it is put in the token map.
+	 */
+	public void add(final WOPIAccessTokenInfo tokenInfo) {
+		addAll(Collections.singletonList(tokenInfo));
+	}
+
+	/**
+	 * Index tokens put in the token map together : each file and each user is updated once.
+	 */
+	public void addAll(final Collection<WOPIAccessTokenInfo> tokens) {
+		final long removeAt = System.currentTimeMillis() + this.retentionMs;
+		merge(this.fileTokens, "file", group(tokens, WOPIAccessTokenInfo::getFileId), removeAt);
+		merge(this.userTokens, "user", group(tokens, WOPIAccessTokenInfo::getUserName), removeAt);
+	}
+
+	public void remove(final WOPIAccessTokenInfo tokenInfo) {
+		removeFileTokens(tokenInfo.getFileId(), Collections.singleton(tokenInfo.getAccessToken()));
+		removeUserTokens(tokenInfo.getUserName(), Collections.singleton(tokenInfo.getAccessToken()));
+	}
+
+	/**
+	 * Remove tokens of a file, for example the tokens no longer in the token map found at revocation
+	 */
+	public void removeFileTokens(final String fileId, final Collection<String> tokens) {
+		remove(this.fileTokens, "file", fileId, tokens);
+	}
+
+	public void removeUserTokens(final String userName, final Collection<String> tokens) {
+		remove(this.userTokens, "user", userName, tokens);
+	}
+
+	public Set<String> getFileTokens(final String fileId) {
+		return get(this.fileTokens, fileId);
+	}
+
+	public Set<String> getUserTokens(final String userName) {
+		return get(this.userTokens, userName);
+	}
+
+	/**
+	 * @return ids of the documents with tokens, for a permission change on a folder
+	 */
+	public Collection<String> getFileIds() {
+		return new ArrayList<>(this.fileTokens.getKeys());
+	}
+
+	private static Map<String, Collection<String>> group(final Collection<WOPIAccessTokenInfo> tokens,
+			final Function<WOPIAccessTokenInfo, String> key) {
+		final Map<String, Collection<String>> groups = new LinkedHashMap<>();
+		for (WOPIAccessTokenInfo token : tokens) {
+			final String k = key.apply(token);
+			if (k != null) {
+				groups.computeIfAbsent(k, x -> new ArrayList<>()).add(token.getAccessToken());
+			}
+		}
+		return groups;
+	}
+
+	private static Set<String> get(final SimpleCache<String, HashMap<String, Long>> index, final String key) {
+		if (key == null) {
+			return Collections.emptySet();
+		}
+		final HashMap<String, Long> tokens = index.get(key);
+		return tokens == null ? Collections.emptySet() : tokens.keySet();
+	}
+
+	private void merge(final SimpleCache<String, HashMap<String, Long>> index, final String name,
+			final Map<String, Collection<String>> groups, final long removeAt) {
+		final long now = System.currentTimeMillis();
+		for (Map.Entry<String, Collection<String>> group : groups.entrySet()) {
+			update(index, name, group.getKey(), tokens -> {
+				// Tokens that can no longer be in the token map
+				tokens.values().removeIf(until -> until < now);
+				for (String token : group.getValue()) {
+					tokens.put(token, removeAt);
+				}
+			});
+		}
+	}
+
+	private void remove(final SimpleCache<String, HashMap<String, Long>> index, final String name, final String key,
+			final Collection<String> tokens) {
+		if (key == null || tokens.isEmpty()) {
+			return;
+		}
+		final HashMap<String, Long> current = index.get(key);
+		if (current == null || Collections.disjoint(current.keySet(), tokens)) {
+			return;
+		}
+		update(index, name, key, map -> map.keySet().removeAll(tokens));
+	}
+
+	/**
+	 * Read, change and write back the tokens of a key, under the lock of the key
+	 */
+	private void update(final SimpleCache<String, HashMap<String, Long>> index, final String name, final String key,
+			final Consumer<HashMap<String, Long>> change) {
+		final ReentrantLock lock = this.locks[(key.hashCode() & 0x7fffffff) % STRIPES];
+		lock.lock();
+		try {
+			final QName lockQName = QName.createQName(CollaboraOnlineModel.COLLABORA_MODEL_1_0_URI,
+					"token-index-" + name + "-" + Integer.toHexString(key.hashCode()));
+			final String lockToken = clusterLock(lockQName);
+			try {
+				final HashMap<String, Long> current = index.get(key);
+				final HashMap<String, Long> tokens = current == null ? new HashMap<>() : new HashMap<>(current);
+				change.accept(tokens);
+				if (tokens.isEmpty()) {
+					index.remove(key);
+				} else {
+					index.put(key, tokens);
+				}
+			} finally {
+				if (lockToken != null) {
+					this.jobLockService.releaseLock(lockToken, lockQName);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private String clusterLock(final QName lockQName) {
+		if (!this.cluster) {
+			return null;
+		}
+		try {
+			return this.jobLockService.getLock(lockQName, CLUSTER_LOCK_TTL_MS, CLUSTER_RETRY_WAIT_MS,
+					CLUSTER_RETRY_COUNT);
+		} catch (LockAcquisitionException e) {
+			logger.warn("Token index lock {} not free", lockQName);
+			throw e;
+		}
+	}
+
+	public void setFileTokens(SimpleCache<String, HashMap<String, Long>> fileTokens) {
+		this.fileTokens = fileTokens;
+	}
+
+	public void setUserTokens(SimpleCache<String, HashMap<String, Long>> userTokens) {
+		this.userTokens = userTokens;
+	}
+
+	public void setJobLockService(JobLockService jobLockService) {
+		this.jobLockService = jobLockService;
+	}
+
+	public void setCluster(boolean cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * @param clusterEnabled alfresco.cluster.enabled, the cluster lock is always taken in a cluster
+	 */
+	public void setClusterEnabled(boolean clusterEnabled) {
+		this.clusterEnabled = clusterEnabled;
+	}
+
+	/**
+	 * @param retentionMs longest time a token can stay in the token store after it was put
+	 */
+	public void setRetentionMs(long retentionMs) {
+		this.retentionMs = retentionMs;
+	}
+}
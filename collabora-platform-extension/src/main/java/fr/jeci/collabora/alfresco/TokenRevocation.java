@@ -0,0 +1,248 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authority.AuthorityServicePolicies;
+import org.alfresco.repo.security.permissions.PermissionServicePolicies;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.AuthorityType;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Revoke the access tokens when the document is deleted or the user is disabled or deleted, and check them again
+ * when the document is moved or its permissions change. Tokens are revoked after the commit of the transaction.
+ * <p>
+ * Only the tokens concerned by a change are checked again, found with the {@link TokenIndex} : the tokens of the
+ * document for an ACL change on a document, the tokens of the documents under the folder for an ACL change on a
+ * folder, the tokens of the users of the group for a group membership change.
+ */
+public class TokenRevocation implements NodeServicePolicies.BeforeDeleteNodePolicy,
+		NodeServicePolicies.OnMoveNodePolicy, NodeServicePolicies.OnAddAspectPolicy,
+		PermissionServicePolicies.OnGrantLocalPermission, PermissionServicePolicies.OnRevokeLocalPermission,
+		PermissionServicePolicies.OnInheritPermissionsEnabled, PermissionServicePolicies.OnInheritPermissionsDisabled,
+		AuthorityServicePolicies.OnAuthorityAddedToGroup, AuthorityServicePolicies.OnAuthorityRemovedFromGroup {
+	private static final Logger logger = LoggerFactory.getLogger(TokenRevocation.class);
+
+	private static final String KEY_PENDING = TokenRevocation.class.getName() + ".pending";
+
+	private PolicyComponent policyComponent;
+	private NodeService nodeService;
+	private DictionaryService dictionaryService;
+	private AuthorityService authorityService;
+	private CollaboraOnlineService collaboraOnlineService;
+	private RetryingTransactionHelper txnHelper;
+
+	public void init() {
+		bind(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_CONTENT, "beforeDeleteNode");
+		bind(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_PERSON, "beforeDeleteNode");
+		bind(NodeServicePolicies.OnMoveNodePolicy.QNAME, ContentModel.TYPE_CONTENT, "onMoveNode");
+		bind(NodeServicePolicies.OnAddAspectPolicy.QNAME, ContentModel.ASPECT_PERSON_DISABLED, "onAddAspect");
+		bind(PermissionServicePolicies.OnGrantLocalPermission.QNAME, ContentModel.TYPE_BASE, "onGrantLocalPermission");
+		bind(PermissionServicePolicies.OnRevokeLocalPermission.QNAME, ContentModel.TYPE_BASE,
+				"onRevokeLocalPermission");
+		bind(PermissionServicePolicies.OnInheritPermissionsEnabled.QNAME, ContentModel.TYPE_BASE,
+				"onInheritPermissionsEnabled");
+		bind(PermissionServicePolicies.OnInheritPermissionsDisabled.QNAME, ContentModel.TYPE_BASE,
+				"onInheritPermissionsDisabled");
+		bind(AuthorityServicePolicies.OnAuthorityAddedToGroup.QNAME, ContentModel.TYPE_BASE,
+				"onAuthorityAddedToGroup");
+		bind(AuthorityServicePolicies.OnAuthorityRemovedFromGroup.QNAME, ContentModel.TYPE_BASE,
+				"onAuthorityRemovedFromGroup");
+	}
+
+	private void bind(final QName policy, final QName className, final String method) {
+		this.policyComponent.bindClassBehaviour(policy, className, new JavaBehaviour(this, method));
+	}
+
+	@Override
+	public void beforeDeleteNode(NodeRef nodeRef) {
+		if (ContentModel.TYPE_PERSON.equals(this.nodeService.getType(nodeRef))) {
+			revokeUser(nodeRef);
+		} else {
+			pending().files.add(nodeRef.getId());
+		}
+	}
+
+	@Override
+	public void onAddAspect(NodeRef nodeRef, QName aspectTypeQName) {
+		revokeUser(nodeRef);
+	}
+
+	@Override
+	public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+		pending().recheck.add(newChildAssocRef.getChildRef());
+	}
+
+	@Override
+	public void onGrantLocalPermission(NodeRef nodeRef, String authority, String permission) {
+		permissionsChanged(nodeRef);
+	}
+
+	@Override
+	public void onRevokeLocalPermission(NodeRef nodeRef, String authority, String permission) {
+		permissionsChanged(nodeRef);
+	}
+
+	@Override
+	public void onInheritPermissionsEnabled(NodeRef nodeRef) {
+		permissionsChanged(nodeRef);
+	}
+
+	@Override
+	public void onInheritPermissionsDisabled(NodeRef nodeRef, boolean async) {
+		permissionsChanged(nodeRef);
+	}
+
+	@Override
+	public void onAuthorityAddedToGroup(String parentGroup, String childAuthority) {
+		pending().authorities.add(childAuthority);
+	}
+
+	@Override
+	public void onAuthorityRemovedFromGroup(String parentGroup, String childAuthority) {
+		pending().authorities.add(childAuthority);
+	}
+
+	/**
+	 * A document is checked alone, a folder with the documents under it
+	 */
+	private void permissionsChanged(final NodeRef nodeRef) {
+		if (this.dictionaryService.isSubClass(this.nodeService.getType(nodeRef), ContentModel.TYPE_CONTENT)) {
+			pending().recheck.add(nodeRef);
+		} else {
+			pending().folders.add(nodeRef);
+		}
+	}
+
+	private void revokeUser(final NodeRef person) {
+		final String userName = (String) this.nodeService.getProperty(person, ContentModel.PROP_USERNAME);
+		if (userName != null) {
+			pending().users.add(userName);
+		}
+	}
+
+	private Pending pending() {
+		Pending pending = AlfrescoTransactionSupport.getResource(KEY_PENDING);
+		if (pending == null) {
+			pending = new Pending();
+			AlfrescoTransactionSupport.bindResource(KEY_PENDING, pending);
+			AlfrescoTransactionSupport.bindListener(pending);
+		}
+		return pending;
+	}
+
+	/**
+	 * Documents, folders, users and groups of the transaction
+	 */
+	private final class Pending extends TransactionListenerAdapter {
+		private final Set<String> files = new LinkedHashSet<>();
+		private final Set<String> users = new LinkedHashSet<>();
+		private final Set<NodeRef> recheck = new LinkedHashSet<>();
+		private final Set<NodeRef> folders = new LinkedHashSet<>();
+		private final Set<String> authorities = new LinkedHashSet<>();
+
+		@Override
+		public void afterCommit() {
+			for (String fileId : this.files) {
+				collaboraOnlineService.revokeFileTokens(fileId);
+			}
+			for (String userName : this.users) {
+				collaboraOnlineService.evictTokens(userName);
+			}
+			this.recheck.removeIf(nodeRef -> this.files.contains(nodeRef.getId()));
+			this.authorities.removeAll(this.users);
+			if (this.recheck.isEmpty() && this.folders.isEmpty() && this.authorities.isEmpty()) {
+				return;
+			}
+
+			try {
+				AuthenticationUtil.runAsSystem(() -> txnHelper.doInTransaction(() -> {
+					for (NodeRef nodeRef : this.recheck) {
+						collaboraOnlineService.recheckFileTokens(nodeRef);
+					}
+					if (!this.folders.isEmpty()) {
+						collaboraOnlineService.recheckFolderTokens(this.folders);
+					}
+					for (String userName : members()) {
+						collaboraOnlineService.recheckUserTokens(userName);
+					}
+					return null;
+				}, true, true));
+			} catch (RuntimeException e) {
+				// the transaction is committed, the tokens keep their permissions until they expire
+				logger.warn("Can't check the tokens of {} {} {}", this.recheck, this.folders, this.authorities, e);
+			}
+		}
+
+		/**
+		 * @return users added to or removed from a group, directly or with a sub-group
+		 */
+		private Set<String> members() {
+			final Set<String> members = new LinkedHashSet<>();
+			for (String authority : this.authorities) {
+				if (AuthorityType.getAuthorityType(authority) == AuthorityType.USER) {
+					members.add(authority);
+				} else if (AuthorityType.getAuthorityType(authority) == AuthorityType.GROUP) {
+					members.addAll(authorityService.getContainedAuthorities(AuthorityType.USER, authority, false));
+				}
+			}
+			return members;
+		}
+	}
+
+	public void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+
+	public void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	public void setDictionaryService(DictionaryService dictionaryService) {
+		this.dictionaryService = dictionaryService;
+	}
+
+	public void setAuthorityService(AuthorityService authorityService) {
+		this.authorityService = authorityService;
+	}
+
+	public void setCollaboraOnlineService(CollaboraOnlineService collaboraOnlineService) {
+		this.collaboraOnlineService = collaboraOnlineService;
+	}
+
+	public void setTransactionService(TransactionService transactionService) {
+		this.txnHelper = transactionService.getRetryingTransactionHelper();
+	}
+}
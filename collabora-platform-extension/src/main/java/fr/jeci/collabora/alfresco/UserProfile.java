@@ -0,0 +1,56 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import java.io.Serializable;
+
+/**
+ * Display data of a user in Collabora Online, the same for every document the user opens.
+ */
+public final class UserProfile implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String friendlyName;
+	private final boolean admin;
+	private final String avatarUrl;
+
+	public UserProfile(final String friendlyName, final boolean admin, final String avatarUrl) {
+		this.friendlyName = friendlyName;
+		this.admin = admin;
+		this.avatarUrl = avatarUrl;
+	}
+
+	public String getFriendlyName() {
+		return friendlyName;
+	}
+
+	public boolean isAdmin() {
+		return admin;
+	}
+
+	/**
+	 * @return URL of the avatar, null if the user has none
+	 */
+	public String getAvatarUrl() {
+		return avatarUrl;
+	}
+
+	@Override
+	public String toString() {
+		return friendlyName + (admin ? " (admin)" : "");
+	}
+}
@@ -0,0 +1,235 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authority.AuthorityServicePolicies;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.service.cmr.repository.AssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.AuthorityType;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link UserProfile} of each user, in a cache shared by the cluster. A profile is removed after the commit of a
+ * transaction that updates or deletes the person, changes the avatar, or changes the members of a group (the admin
+ * flag may change).
+ */
+public class UserProfileCache implements NodeServicePolicies.OnUpdatePropertiesPolicy,
+		NodeServicePolicies.BeforeDeleteNodePolicy, NodeServicePolicies.OnCreateAssociationPolicy,
+		NodeServicePolicies.OnDeleteAssociationPolicy, AuthorityServicePolicies.OnAuthorityAddedToGroup,
+		AuthorityServicePolicies.OnAuthorityRemovedFromGroup {
+	private static final Logger logger = LoggerFactory.getLogger(UserProfileCache.class);
+
+	private static final String KEY_PENDING = UserProfileCache.class.getName() + ".pending";
+	/** Pending invalidation of all the profiles */
+	private static final String ALL = "";
+	private static final String AVATAR_PATH = "/api/-default-/public/alfresco/versions/1/people/";
+
+	private PolicyComponent policyComponent;
+	private NodeService nodeService;
+	private PersonService personService;
+	private AuthorityService authorityService;
+	private SimpleCache<String, UserProfile> profileCache;
+	private String alfrescoPublicURL;
+
+	public void init() {
+		bind(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, ContentModel.TYPE_PERSON, "onUpdateProperties");
+		bind(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, ContentModel.TYPE_PERSON, "beforeDeleteNode");
+		bind(AuthorityServicePolicies.OnAuthorityAddedToGroup.QNAME, ContentModel.TYPE_BASE,
+				"onAuthorityAddedToGroup");
+		bind(AuthorityServicePolicies.OnAuthorityRemovedFromGroup.QNAME, ContentModel.TYPE_BASE,
+				"onAuthorityRemovedFromGroup");
+		this.policyComponent.bindAssociationBehaviour(NodeServicePolicies.OnCreateAssociationPolicy.QNAME,
+				ContentModel.TYPE_PERSON, ContentModel.ASSOC_AVATAR, new JavaBehaviour(this, "onCreateAssociation"));
+		this.policyComponent.bindAssociationBehaviour(NodeServicePolicies.OnDeleteAssociationPolicy.QNAME,
+				ContentModel.TYPE_PERSON, ContentModel.ASSOC_AVATAR, new JavaBehaviour(this, "onDeleteAssociation"));
+	}
+
+	private void bind(final QName policy, final QName className, final String method) {
+		this.policyComponent.bindClassBehaviour(policy, className, new JavaBehaviour(this, method));
+	}
+
+	/**
+	 * Must be called in a transaction.
+	 *
+	 * @param userName authenticated user
+	 * @return profile of the user, from the cache if possible
+	 */
+	public UserProfile get(final String userName) {
+		UserProfile profile = this.profileCache.get(userName);
+		if (profile == null) {
+			profile = load(userName);
+			this.profileCache.put(userName, profile);
+		}
+		return profile;
+	}
+
+	private UserProfile load(final String userName) {
+		final NodeRef person = this.personService.getPersonOrNull(userName);
+		final boolean admin = this.authorityService.isAdminAuthority(userName);
+		if (person == null) {
+			return new UserProfile(userName, admin, null);
+		}
+
+		final Map<QName, Serializable> properties = this.nodeService.getProperties(person);
+		final String friendlyName = friendlyName(userName, properties.get(ContentModel.PROP_FIRSTNAME),
+				properties.get(ContentModel.PROP_LASTNAME));
+
+		String avatarUrl = null;
+		if (!this.nodeService.getTargetAssocs(person, ContentModel.ASSOC_AVATAR).isEmpty()) {
+			avatarUrl = this.alfrescoPublicURL + AVATAR_PATH + URLEncoder.encode(userName, StandardCharsets.UTF_8)
+					+ "/avatar";
+		}
+		return new UserProfile(friendlyName, admin, avatarUrl);
+	}
+
+	/**
+	 * @return "first last", one of them if the other one is empty, the user name if both are empty
+	 */
+	static String friendlyName(final String userName, final Serializable firstName, final Serializable lastName) {
+		final String name = ((firstName == null ? "" : firstName.toString()) + " "
+				+ (lastName == null ? "" : lastName.toString())).trim();
+		return name.isEmpty() ? userName : name;
+	}
+
+	/**
+	 * Remove the profile after the commit : a profile loaded before would see the old values.
+	 */
+	private void invalidateAfterCommit(final String userName) {
+		if (userName == null) {
+			return;
+		}
+		Set<String> pending = AlfrescoTransactionSupport.getResource(KEY_PENDING);
+		if (pending == null) {
+			pending = new LinkedHashSet<>();
+			AlfrescoTransactionSupport.bindResource(KEY_PENDING, pending);
+			final Set<String> userNames = pending;
+			AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+				@Override
+				public void afterCommit() {
+					invalidate(userNames);
+				}
+			});
+		}
+		pending.add(userName);
+	}
+
+	void invalidate(final Set<String> userNames) {
+		if (userNames.contains(ALL)) {
+			this.profileCache.clear();
+			logger.debug("All user profiles removed");
+			return;
+		}
+		for (String userName : userNames) {
+			this.profileCache.remove(userName);
+		}
+		logger.debug("User profiles removed: {}", userNames);
+	}
+
+	private void invalidatePerson(final NodeRef person) {
+		invalidateAfterCommit((String) this.nodeService.getProperty(person, ContentModel.PROP_USERNAME));
+	}
+
+	/**
+	 * A group added to a group changes the admin flag of all its members
+	 */
+	private void invalidateMember(final String childAuthority) {
+		invalidateAfterCommit(AuthorityType.getAuthorityType(childAuthority) == AuthorityType.USER ? childAuthority
+				: ALL);
+	}
+
+	@Override
+	public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+		invalidateAfterCommit((String) after.get(ContentModel.PROP_USERNAME));
+		if (before.get(ContentModel.PROP_USERNAME) != null
+				&& !before.get(ContentModel.PROP_USERNAME).equals(after.get(ContentModel.PROP_USERNAME))) {
+			invalidateAfterCommit((String) before.get(ContentModel.PROP_USERNAME));
+		}
+	}
+
+	@Override
+	public void beforeDeleteNode(NodeRef nodeRef) {
+		invalidatePerson(nodeRef);
+	}
+
+	@Override
+	public void onCreateAssociation(AssociationRef nodeAssocRef) {
+		invalidatePerson(nodeAssocRef.getSourceRef());
+	}
+
+	@Override
+	public void onDeleteAssociation(AssociationRef nodeAssocRef) {
+		invalidatePerson(nodeAssocRef.getSourceRef());
+	}
+
+	@Override
+	public void onAuthorityAddedToGroup(String parentGroup, String childAuthority) {
+		invalidateMember(childAuthority);
+	}
+
+	@Override
+	public void onAuthorityRemovedFromGroup(String parentGroup, String childAuthority) {
+		invalidateMember(childAuthority);
+	}
+
+	public void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+
+	public void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	public void setPersonService(PersonService personService) {
+		this.personService = personService;
+	}
+
+	public void setAuthorityService(AuthorityService authorityService) {
+		this.authorityService = authorityService;
+	}
+
+	public void setProfileCache(SimpleCache<String, UserProfile> profileCache) {
+		this.profileCache = profileCache;
+	}
+
+	/**
+	 * @param alfrescoPublicURL URL of Alfresco for the browser, the avatar is loaded by Collabora Online in the page
+	 */
+	public void setAlfrescoPublicURL(String alfrescoPublicURL) {
+		this.alfrescoPublicURL = alfrescoPublicURL.endsWith("/")
+				? alfrescoPublicURL.substring(0, alfrescoPublicURL.length() - 1)
+				: alfrescoPublicURL;
+	}
+}
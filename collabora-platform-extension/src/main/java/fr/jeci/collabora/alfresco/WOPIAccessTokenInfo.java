@@ -35,6 +35,8 @@ public class WOPIAccessTokenInfo implements Serializable {
 	private LocalDateTime expiresAt;
 	private String fileId;
 	private String userName;
+	// WRITE permission of the user, evaluated when the token is issued, and again after a permission change
+	private boolean canWrite;
 
 	public WOPIAccessTokenInfo(String accessToken, LocalDateTime issuedAt, LocalDateTime expiresAt, String fileId,
 			String userName) {
@@ -91,6 +93,14 @@ public class WOPIAccessTokenInfo implements Serializable {
 		this.userName = userName;
 	}
 
+	public boolean isCanWrite() {
+		return canWrite;
+	}
+
+	public void setCanWrite(boolean canWrite) {
+		this.canWrite = canWrite;
+	}
+
 	public String getAccessToken() {
 		return accessToken;
 	}
@@ -102,6 +112,7 @@ public class WOPIAccessTokenInfo implements Serializable {
 	@Override
 	public String toString() {
 		return new ToStringBuilder(this).append("accessToken", accessToken).append("issuedAt", issuedAt)
-				.append("expiresAt", expiresAt).append("fileId", fileId).append("userName", userName).toString();
+				.append("expiresAt", expiresAt).append("fileId", fileId).append("userName", userName)
+				.append("canWrite", canWrite).toString();
 	}
 }
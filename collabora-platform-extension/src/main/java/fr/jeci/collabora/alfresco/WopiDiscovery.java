@@ -16,6 +16,7 @@ limitations under the License.
 */
 package fr.jeci.collabora.alfresco;
 
+import fr.jeci.collabora.jfr.DiscoveryRefreshEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
@@ -24,8 +25,18 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.*;
@@ -38,39 +49,288 @@ public class WopiDiscovery {
 	private static final Logger logger = LoggerFactory.getLogger(WopiDiscovery.class);
 
 	private static final String DEFAULT_HOSTING_DISCOVERY = "/hosting/discovery";
+	private static final String HOSTING_CAPABILITIES = "/hosting/capabilities";
 	private static final int READ_TIMEOUT_MS = 500;
+	private static final int SNAPSHOT_MAGIC = 0x574F5049; // WOPI
+	private static final int SNAPSHOT_VERSION = 1;
 
 	private Document discoveryDoc;
 	private URL collaboraPrivateUrl;
 
-	private List<DiscoveryApp> applications = Collections.emptyList();
-	private Map<String, List<DiscoveryAction>> actions = Collections.emptyMap();
-	private Map<String, DiscoveryAction> legacyActions = Collections.emptyMap();
+	private File snapshotFile;
+	private CircuitBreaker circuitBreaker = new CircuitBreaker(1, 0);
+
+	private volatile List<DiscoveryApp> applications = Collections.emptyList();
+	private volatile Map<String, List<DiscoveryAction>> actions = Collections.emptyMap();
+	private volatile Map<String, DiscoveryAction> legacyActions = Collections.emptyMap();
 
 	private final AtomicBoolean hasCollaboraOnline = new AtomicBoolean(false);
+	// Discovery read from the snapshot, not yet refreshed from Collabora Online
+	private volatile boolean stale;
+
+	// Last successful load and last attempt (epoch ms, 0 if never)
+	private volatile long lastLoad;
+	private volatile long lastAttempt;
+	private volatile String lastError;
+	private volatile long lastProbeLatencyMs = -1;
 
+	/**
+	 * Load the discovery. On error, the previous discovery is kept.
+	 */
 	public void init() {
+		final DiscoveryRefreshEvent event = new DiscoveryRefreshEvent();
+		event.begin();
 		try {
 			URL wopiDiscoveryURL = new URL(this.collaboraPrivateUrl, DEFAULT_HOSTING_DISCOVERY);
 			logger.info("Load Wopi Discovery URI : " + wopiDiscoveryURL);
 
 			URLConnection openConnection = wopiDiscoveryURL.openConnection();
 			openConnection.setReadTimeout(READ_TIMEOUT_MS);
-			loadDiscoveryXML(openConnection.getInputStream());
+			try (InputStream in = openConnection.getInputStream()) {
+				loadDiscoveryXML(in);
+			}
 			this.hasCollaboraOnline.set(true);
+			this.stale = false;
+			this.lastLoad = System.currentTimeMillis();
+			this.lastError = null;
+			event.setSuccess(true);
+			writeSnapshot();
 		} catch (IOException | XMLStreamException e) {
 			logger.warn("Can’t load Wopi Discovery URI : {}/{}", this.collaboraPrivateUrl, DEFAULT_HOSTING_DISCOVERY);
+			this.lastError = e.toString();
+		} finally {
+			this.lastAttempt = System.currentTimeMillis();
+			event.end();
+			if (event.shouldCommit()) {
+				event.setUrl(String.valueOf(this.collaboraPrivateUrl));
+				event.setExtensions(this.actions.size());
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Load the last discovery saved by {@link #init()}. The discovery is marked stale until the next successful load.
+	 *
+	 * @return true if a snapshot was loaded
+	 */
+	public boolean loadSnapshot() {
+		if (this.snapshotFile == null || !this.snapshotFile.isFile()) {
+			return false;
+		}
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(this.snapshotFile)))) {
+			readSnapshot(in);
+			this.stale = true;
+			this.hasCollaboraOnline.set(true);
+			logger.info("Load Wopi Discovery snapshot {} of {} ({} extensions)", this.snapshotFile,
+					new Date(this.lastLoad), this.actions.size());
+			return true;
+		} catch (IOException e) {
+			logger.warn("Can’t read Wopi Discovery snapshot {} : {}", this.snapshotFile, e.getMessage());
+			return false;
+		}
+	}
+
+	private void writeSnapshot() {
+		if (this.snapshotFile == null) {
+			return;
+		}
+
+		final File tmp = new File(this.snapshotFile.getPath() + ".tmp");
+		try {
+			Files.createDirectories(this.snapshotFile.getParentFile().toPath());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				writeSnapshot(out);
+			}
+			Files.move(tmp.toPath(), this.snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Can’t write Wopi Discovery snapshot {} : {}", this.snapshotFile, e.getMessage());
+		}
+	}
+
+	/**
+	 * Compact form of the parsed discovery : applications with their actions, then legacy actions
+	 */
+	void writeSnapshot(DataOutputStream out) throws IOException {
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeInt(SNAPSHOT_VERSION);
+		out.writeLong(this.lastLoad);
+
+		final List<DiscoveryApp> mApplications = this.applications;
+		out.writeInt(mApplications.size());
+		for (DiscoveryApp app : mApplications) {
+			writeString(out, app.name);
+			writeString(out, app.favIconUrl);
+			out.writeInt(app.actions.size());
+			for (DiscoveryAction action : app.actions) {
+				writeAction(out, action);
+			}
+		}
+
+		final Map<String, DiscoveryAction> mLegacyActions = this.legacyActions;
+		out.writeInt(mLegacyActions.size());
+		for (Map.Entry<String, DiscoveryAction> legacy : mLegacyActions.entrySet()) {
+			out.writeUTF(legacy.getKey());
+			writeAction(out, legacy.getValue());
+		}
+	}
+
+	void readSnapshot(DataInputStream in) throws IOException {
+		if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+			throw new IOException("Not a Wopi Discovery snapshot");
+		}
+		final long savedAt = in.readLong();
+
+		final int appCount = in.readInt();
+		List<DiscoveryApp> mApplications = new ArrayList<>(appCount);
+		Map<String, List<DiscoveryAction>> mActions = new HashMap<>();
+		for (int i = 0; i < appCount; i++) {
+			DiscoveryApp app = new DiscoveryApp();
+			app.name = readString(in);
+			app.favIconUrl = readString(in);
+			final int actionCount = in.readInt();
+			for (int j = 0; j < actionCount; j++) {
+				DiscoveryAction action = readAction(in);
+				app.actions.add(action);
+				mActions.computeIfAbsent(action.ext, k -> new ArrayList<>(1)).add(action);
+			}
+			mApplications.add(app);
+		}
+
+		final int legacyCount = in.readInt();
+		Map<String, DiscoveryAction> mLegacyActions = new HashMap<>(legacyCount * 2);
+		for (int i = 0; i < legacyCount; i++) {
+			final String key = in.readUTF();
+			mLegacyActions.put(key, readAction(in));
 		}
+
+		this.applications = mApplications;
+		this.actions = mActions;
+		this.legacyActions = mLegacyActions;
+		this.lastLoad = savedAt;
+	}
+
+	private static void writeAction(DataOutputStream out, DiscoveryAction action) throws IOException {
+		writeString(out, action.ext);
+		writeString(out, action.name);
+		writeString(out, action.urlsrc);
 	}
 
+	private static DiscoveryAction readAction(DataInputStream in) throws IOException {
+		return new DiscoveryAction(readString(in), readString(in), readString(in));
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * @return true if the discovery is loaded and the circuit breaker is closed
+	 */
 	public boolean hasCollaboraOnline() {
-		return this.hasCollaboraOnline.get();
+		return this.hasCollaboraOnline.get() && this.circuitBreaker.isAvailable();
+	}
+
+	/**
+	 * Check that Collabora Online answers on <code>/hosting/capabilities</code> within the timeout, and update the
+	 * circuit breaker. The discovery is loaded again when the backend answers and the discovery is missing or stale.
+	 * Nothing is sent while the circuit is open.
+	 */
+	public void probe(final int timeoutMs) {
+		if (!this.circuitBreaker.tryProbe()) {
+			return;
+		}
+
+		final CircuitBreaker.State before = this.circuitBreaker.getState();
+		final long start = System.nanoTime();
+		try {
+			final HttpURLConnection connection = (HttpURLConnection) new URL(this.collaboraPrivateUrl, HOSTING_CAPABILITIES).openConnection();
+			connection.setConnectTimeout(timeoutMs);
+			connection.setReadTimeout(timeoutMs);
+			final int code = connection.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("HTTP " + code);
+			}
+			try (InputStream in = connection.getInputStream()) {
+				while (in.read() >= 0) {
+					// drain the capabilities, so the keep-alive connection can be reused
+				}
+			}
+
+			this.lastProbeLatencyMs = (System.nanoTime() - start) / 1_000_000;
+			this.circuitBreaker.onSuccess();
+			if (before != CircuitBreaker.State.CLOSED) {
+				logger.info("Collabora Online {} is back ({} ms)", this.collaboraPrivateUrl, this.lastProbeLatencyMs);
+			}
+		} catch (IOException | ClassCastException e) {
+			this.lastProbeLatencyMs = -1;
+			this.circuitBreaker.onFailure();
+			if (this.circuitBreaker.getState() == CircuitBreaker.State.OPEN && before != CircuitBreaker.State.OPEN) {
+				logger.warn("Collabora Online {} is unavailable : {}", this.collaboraPrivateUrl, e.getMessage());
+			} else {
+				logger.debug("Probe of {} failed : {}", this.collaboraPrivateUrl, e.getMessage());
+			}
+			return;
+		}
+
+		if (!this.hasCollaboraOnline.get() || this.stale) {
+			init();
+		}
+	}
+
+	public CircuitBreaker.State getCircuitState() {
+		return this.circuitBreaker.getState();
+	}
+
+	/**
+	 * @return duration of the last successful probe, -1 if it failed or was never sent
+	 */
+	public long getLastProbeLatencyMs() {
+		return this.lastProbeLatencyMs;
 	}
 
 	public void hasCollaboraOnline(boolean online) {
 		this.hasCollaboraOnline.set(online);
 	}
 
+	/**
+	 * @return time of the last successful load (epoch ms), 0 if the discovery was never loaded
+	 */
+	public long getLastLoad() {
+		return this.lastLoad;
+	}
+
+	/**
+	 * @return true if the discovery comes from the snapshot and was not refreshed yet
+	 */
+	public boolean isStale() {
+		return this.stale;
+	}
+
+	/**
+	 * @return time of the last load attempt (epoch ms)
+	 */
+	public long getLastAttempt() {
+		return this.lastAttempt;
+	}
+
+	/**
+	 * @return error of the last load attempt, null if it succeeded
+	 */
+	public String getLastError() {
+		return this.lastError;
+	}
+
 	/**
 	 * Return the srcurl for a given mimetype and action.
 	 *
@@ -239,6 +499,21 @@ public class WopiDiscovery {
 		}
 	}
 
+	/**
+	 * @param snapshotFile file where the discovery is saved after each successful load, null to disable
+	 */
+	public void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public URL getCollaboraPrivateUrl() {
+		return this.collaboraPrivateUrl;
+	}
+
 	public void setCollaboraPrivateUrl(URL collaboraPrivateUrl) {
 		this.collaboraPrivateUrl = collaboraPrivateUrl;
 	}
@@ -0,0 +1,212 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Collabora Online backends, each with its own discovery.
+ * <p>
+ * Co-editing needs every user of a document on the same backend, so the backend is chosen with a consistent hash of
+ * the nodeRef id. A backend without discovery is skipped : its documents go to the next backend of the ring, the
+ * documents of the other backends don't move.
+ * <p>
+ * The startup does not wait for Collabora Online : the last discovery saved of each backend is loaded (stale), then
+ * the discovery is refreshed in background.
+ * <p>
+ * Each backend is probed periodically, a {@link CircuitBreaker} removes it from the ring while it does not answer.
+ */
+public class WopiDiscoveryRing {
+	private static final Logger logger = LoggerFactory.getLogger(WopiDiscoveryRing.class);
+
+	private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private String collaboraPrivateUrls;
+	private int virtualNodes = DEFAULT_VIRTUAL_NODES;
+	private String snapshotDir;
+	private long probeIntervalMs;
+	private int probeTimeoutMs = 2000;
+	private int failureThreshold = 3;
+	private long openDurationMs = 30000;
+
+	private ScheduledExecutorService refreshExecutor;
+
+	private Map<String, WopiDiscovery> backends = Collections.emptyMap();
+	private ConsistentHashRing<WopiDiscovery> ring = new ConsistentHashRing<>(Collections.emptyMap(), 1);
+
+	/**
+	 * A ring of one discovery
+	 */
+	static WopiDiscoveryRing of(final WopiDiscovery wopiDiscovery) {
+		final WopiDiscoveryRing discoveryRing = new WopiDiscoveryRing();
+		discoveryRing.backends = Collections.singletonMap("default", wopiDiscovery);
+		discoveryRing.ring = new ConsistentHashRing<>(discoveryRing.backends, 1);
+		return discoveryRing;
+	}
+
+	public void init() throws MalformedURLException {
+		final Map<String, WopiDiscovery> mBackends = new LinkedHashMap<>();
+		for (String url : this.collaboraPrivateUrls.split(",")) {
+			final String trimmed = url.trim();
+			if (trimmed.isEmpty() || mBackends.containsKey(trimmed)) {
+				continue;
+			}
+
+			final WopiDiscovery wopiDiscovery = new WopiDiscovery();
+			wopiDiscovery.setCollaboraPrivateUrl(new URL(trimmed));
+			wopiDiscovery.setSnapshotFile(snapshotFile(trimmed));
+			wopiDiscovery.setCircuitBreaker(new CircuitBreaker(this.failureThreshold, this.openDurationMs));
+			mBackends.put(trimmed, wopiDiscovery);
+		}
+		if (mBackends.isEmpty()) {
+			throw new IllegalArgumentException("No Collabora Online URL in: " + this.collaboraPrivateUrls);
+		}
+
+		this.backends = Collections.unmodifiableMap(mBackends);
+		this.ring = new ConsistentHashRing<>(this.backends, this.virtualNodes);
+		logger.info("Collabora Online backends: {}", this.backends.keySet());
+
+		for (WopiDiscovery wopiDiscovery : this.backends.values()) {
+			wopiDiscovery.loadSnapshot();
+		}
+
+		this.refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "collabora-discovery");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.refreshExecutor.execute(this::reload);
+		if (this.probeIntervalMs > 0) {
+			this.refreshExecutor.scheduleWithFixedDelay(this::probe, this.probeIntervalMs, this.probeIntervalMs,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void shutdown() {
+		if (this.refreshExecutor != null) {
+			this.refreshExecutor.shutdownNow();
+		}
+	}
+
+	private File snapshotFile(final String url) {
+		if (this.snapshotDir == null || this.snapshotDir.trim().isEmpty()) {
+			return null;
+		}
+		return new File(this.snapshotDir.trim(),
+				String.format("discovery-%016x.bin", ConsistentHashRing.hash(url)));
+	}
+
+	/**
+	 * Load the discovery of every backend. A backend that answers goes back in the ring.
+	 */
+	public void reload() {
+		for (WopiDiscovery wopiDiscovery : this.backends.values()) {
+			wopiDiscovery.init();
+		}
+	}
+
+	private void probe() {
+		for (WopiDiscovery wopiDiscovery : this.backends.values()) {
+			try {
+				wopiDiscovery.probe(this.probeTimeoutMs);
+			} catch (RuntimeException e) {
+				// a failure must not cancel the next probes
+				logger.warn("Probe of {} failed", wopiDiscovery.getCollaboraPrivateUrl(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param key nodeRef id
+	 * @return discovery of the backend of this document. If no backend is online, the first backend (offline).
+	 */
+	public WopiDiscovery select(final String key) {
+		final WopiDiscovery wopiDiscovery = this.ring.get(key, WopiDiscovery::hasCollaboraOnline);
+		if (wopiDiscovery != null) {
+			return wopiDiscovery;
+		}
+		return getBackends().get(0);
+	}
+
+	/**
+	 * @return true if at least one backend is online
+	 */
+	public boolean hasCollaboraOnline() {
+		for (WopiDiscovery wopiDiscovery : this.backends.values()) {
+			if (wopiDiscovery.hasCollaboraOnline()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public List<WopiDiscovery> getBackends() {
+		return this.ring.getMembers();
+	}
+
+	public void setCollaboraPrivateUrls(String collaboraPrivateUrls) {
+		this.collaboraPrivateUrls = collaboraPrivateUrls;
+	}
+
+	/**
+	 * @param snapshotDir directory of the last discovery of each backend, empty to always wait for the discovery
+	 */
+	public void setSnapshotDir(String snapshotDir) {
+		this.snapshotDir = snapshotDir;
+	}
+
+	/**
+	 * @param probeIntervalMs delay between two probes of the backends, 0 to disable the probes
+	 */
+	public void setProbeIntervalMs(long probeIntervalMs) {
+		this.probeIntervalMs = probeIntervalMs;
+	}
+
+	public void setProbeTimeoutMs(int probeTimeoutMs) {
+		this.probeTimeoutMs = probeTimeoutMs;
+	}
+
+	/**
+	 * @param failureThreshold failed probes in a row before the backend is removed from the ring
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * @param openDurationMs delay before a backend removed from the ring is probed again
+	 */
+	public void setOpenDurationMs(long openDurationMs) {
+		this.openDurationMs = openDurationMs;
+	}
+
+	public void setVirtualNodes(int virtualNodes) {
+		this.virtualNodes = virtualNodes;
+	}
+}
@@ -0,0 +1,51 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Nodes locked by Collabora Online on this server, with the expiration of the
+ * lock (epoch ms). A node leaves the map when it is unlocked, or is ignored once
+ * its lock has expired.
+ */
+public class WopiSessions {
+
+	private final Map<NodeRef, Long> lockedNodes = new ConcurrentHashMap<>();
+
+	public void opened(NodeRef nodeRef, long timeoutMs) {
+		this.lockedNodes.put(nodeRef, System.currentTimeMillis() + timeoutMs);
+	}
+
+	public void closed(NodeRef nodeRef) {
+		this.lockedNodes.remove(nodeRef);
+	}
+
+	public boolean isActive(NodeRef nodeRef) {
+		final Long expiresAt = this.lockedNodes.get(nodeRef);
+		return expiresAt != null && expiresAt >= System.currentTimeMillis();
+	}
+
+	public int count() {
+		final long now = System.currentTimeMillis();
+		this.lockedNodes.values().removeIf(expiresAt -> expiresAt < now);
+		return this.lockedNodes.size();
+	}
+}
@@ -0,0 +1,184 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco.admin;
+
+import fr.jeci.collabora.alfresco.CircuitBreaker;
+import fr.jeci.collabora.alfresco.CollaboraOnlineService;
+import fr.jeci.collabora.alfresco.WopiDiscovery;
+import fr.jeci.collabora.alfresco.WopiDiscoveryRing;
+import fr.jeci.collabora.wopi.WopiMetrics;
+import org.alfresco.repo.cache.SimpleCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State and maintenance operations of the Collabora Online integration, for JMX and the admin webscript.
+ */
+public class CollaboraAdmin implements CollaboraAdminMBean {
+	private static final Logger logger = LoggerFactory.getLogger(CollaboraAdmin.class);
+
+	static final String STATUS_OK = "OK";
+
+	private CollaboraOnlineService collaboraOnlineService;
+	private WopiDiscoveryRing wopiDiscoveryRing;
+	private WopiMetrics wopiMetrics;
+	private SimpleCache<String, Boolean> collaboraMarkerCache;
+
+	@Override
+	public int getTokenCount() {
+		return this.collaboraOnlineService.getTokenCount();
+	}
+
+	@Override
+	public long getTokenHits() {
+		return this.collaboraOnlineService.getTokenHits();
+	}
+
+	@Override
+	public long getTokenMisses() {
+		return this.collaboraOnlineService.getTokenMisses();
+	}
+
+	@Override
+	public double getTokenHitRatio() {
+		final long hits = getTokenHits();
+		final long total = hits + getTokenMisses();
+		return total == 0 ? 1d : (double) hits / total;
+	}
+
+	@Override
+	public int getMarkerCacheSize() {
+		return this.collaboraMarkerCache.getKeys().size();
+	}
+
+	@Override
+	public boolean isCollaboraOnline() {
+		return this.wopiDiscoveryRing.hasCollaboraOnline();
+	}
+
+	@Override
+	public int getBackendCount() {
+		return this.wopiDiscoveryRing.getBackends().size();
+	}
+
+	@Override
+	public int getOnlineBackendCount() {
+		int online = 0;
+		for (WopiDiscovery wopiDiscovery : this.wopiDiscoveryRing.getBackends()) {
+			if (wopiDiscovery.hasCollaboraOnline()) {
+				online++;
+			}
+		}
+		return online;
+	}
+
+	@Override
+	public Date getDiscoveryLastLoad() {
+		final long lastLoad = oldestLoad();
+		return lastLoad == 0 ? null : new Date(lastLoad);
+	}
+
+	@Override
+	public long getDiscoveryAgeSeconds() {
+		final long lastLoad = oldestLoad();
+		if (lastLoad == 0) {
+			return -1;
+		}
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - lastLoad);
+	}
+
+	@Override
+	public String getDiscoveryStatus() {
+		final StringBuilder sb = new StringBuilder();
+		for (WopiDiscovery wopiDiscovery : this.wopiDiscoveryRing.getBackends()) {
+			final String lastError = wopiDiscovery.getLastError();
+			final CircuitBreaker.State circuit = wopiDiscovery.getCircuitState();
+			if (lastError == null && !wopiDiscovery.isStale() && circuit == CircuitBreaker.State.CLOSED) {
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append("; ");
+			}
+			sb.append(wopiDiscovery.getCollaboraPrivateUrl()).append(": ");
+			if (circuit != CircuitBreaker.State.CLOSED) {
+				sb.append("circuit ").append(circuit).append(' ');
+			}
+			sb.append(lastError == null ? (wopiDiscovery.isStale() ? "stale snapshot" : "") : lastError);
+		}
+		return sb.length() == 0 ? STATUS_OK : sb.toString();
+	}
+
+	/**
+	 * @return last load of the oldest discovery, 0 if a backend was never loaded
+	 */
+	private long oldestLoad() {
+		long oldest = Long.MAX_VALUE;
+		for (WopiDiscovery wopiDiscovery : this.wopiDiscoveryRing.getBackends()) {
+			oldest = Math.min(oldest, wopiDiscovery.getLastLoad());
+		}
+		return oldest == Long.MAX_VALUE ? 0 : oldest;
+	}
+
+	@Override
+	public int getLockedNodeCount() {
+		return this.collaboraOnlineService.getLockedNodeCount();
+	}
+
+	@Override
+	public long getRenditionRequests() {
+		return this.wopiMetrics.getRenditionRequests();
+	}
+
+	@Override
+	public void reloadDiscovery() {
+		logger.info("Reload WOPI discovery");
+		this.wopiDiscoveryRing.reload();
+	}
+
+	@Override
+	public int evictUserTokens(final String userName) {
+		if (userName == null || userName.isEmpty()) {
+			throw new IllegalArgumentException("userName is required");
+		}
+		return this.collaboraOnlineService.evictTokens(userName);
+	}
+
+	@Override
+	public void clearMarkerCache() {
+		logger.info("Clear Collabora marker cache");
+		this.collaboraMarkerCache.clear();
+	}
+
+	public void setCollaboraOnlineService(CollaboraOnlineService collaboraOnlineService) {
+		this.collaboraOnlineService = collaboraOnlineService;
+	}
+
+	public void setWopiDiscoveryRing(WopiDiscoveryRing wopiDiscoveryRing) {
+		this.wopiDiscoveryRing = wopiDiscoveryRing;
+	}
+
+	public void setWopiMetrics(WopiMetrics wopiMetrics) {
+		this.wopiMetrics = wopiMetrics;
+	}
+
+	public void setCollaboraMarkerCache(SimpleCache<String, Boolean> collaboraMarkerCache) {
+		this.collaboraMarkerCache = collaboraMarkerCache;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco.admin;
+
+import java.util.Date;
+
+/**
+ * JMX view of the Collabora Online integration, exported as <code>Alfresco:Name=CollaboraOnline</code>
+ */
+public interface CollaboraAdminMBean {
+
+	/**
+	 * @return number of valid WOPI access tokens issued by this server
+	 */
+	int getTokenCount();
+
+	long getTokenHits();
+
+	long getTokenMisses();
+
+	/**
+	 * @return hits / (hits + misses), 1 if no token was checked
+	 */
+	double getTokenHitRatio();
+
+	int getMarkerCacheSize();
+
+	/**
+	 * @return true if the discovery of at least one Collabora Online backend was loaded
+	 */
+	boolean isCollaboraOnline();
+
+	int getBackendCount();
+
+	int getOnlineBackendCount();
+
+	/**
+	 * @return last successful load of the oldest discovery, null if a backend was never loaded
+	 */
+	Date getDiscoveryLastLoad();
+
+	/**
+	 * @return age of the discovery in seconds, -1 if never loaded
+	 */
+	long getDiscoveryAgeSeconds();
+
+	/**
+	 * @return OK, or the error of the last load of each backend in error or still on its snapshot
+	 */
+	String getDiscoveryStatus();
+
+	/**
+	 * @return number of nodes locked by Collabora Online on this server
+	 */
+	int getLockedNodeCount();
+
+	/**
+	 * @return number of renditions asked after a save since startup
+	 */
+	long getRenditionRequests();
+
+	/**
+	 * Load the discovery of every Collabora Online backend. The current discovery is kept on error.
+	 */
+	void reloadDiscovery();
+
+	/**
+	 * Remove the access tokens of a user
+	 *
+	 * @param userName user name
+	 * @return number of tokens removed
+	 */
+	int evictUserTokens(String userName);
+
+	void clearMarkerCache();
+}
@@ -0,0 +1,94 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.alfresco.admin;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.extensions.webscripts.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Admin console of the Collabora Online integration.
+ * <ul>
+ *    <li>GET : state of the integration</li>
+ *    <li>POST action=reload-discovery|evict-tokens|clear-marker-cache : run an operation, then return the state</li>
+ * </ul>
+ */
+public class CollaboraAdminWebScript extends DeclarativeWebScript {
+	private static final String PARAM_ACTION = "action";
+	private static final String PARAM_USER = "user";
+
+	static final String ACTION_RELOAD_DISCOVERY = "reload-discovery";
+	static final String ACTION_EVICT_TOKENS = "evict-tokens";
+	static final String ACTION_CLEAR_MARKER_CACHE = "clear-marker-cache";
+
+	private CollaboraAdminMBean collaboraAdmin;
+
+	@Override
+	protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+		final Map<String, Object> model = new HashMap<>();
+
+		final String action = req.getParameter(PARAM_ACTION);
+		if (action != null) {
+			model.put(PARAM_ACTION, action);
+			model.put("result", doAction(req, action));
+		}
+
+		model.put("tokenCount", this.collaboraAdmin.getTokenCount());
+		model.put("tokenHits", this.collaboraAdmin.getTokenHits());
+		model.put("tokenMisses", this.collaboraAdmin.getTokenMisses());
+		model.put("tokenHitRatio", this.collaboraAdmin.getTokenHitRatio());
+		model.put("markerCacheSize", this.collaboraAdmin.getMarkerCacheSize());
+		model.put("collaboraOnline", this.collaboraAdmin.isCollaboraOnline());
+		model.put("backendCount", this.collaboraAdmin.getBackendCount());
+		model.put("onlineBackendCount", this.collaboraAdmin.getOnlineBackendCount());
+		model.put("discoveryAgeSeconds", this.collaboraAdmin.getDiscoveryAgeSeconds());
+		model.put("discoveryStatus", this.collaboraAdmin.getDiscoveryStatus());
+		model.put("lockedNodeCount", this.collaboraAdmin.getLockedNodeCount());
+		model.put("renditionRequests", this.collaboraAdmin.getRenditionRequests());
+		return model;
+	}
+
+	private int doAction(final WebScriptRequest req, final String action) {
+		if (!"POST".equalsIgnoreCase(getDescription().getMethod())) {
+			throw new WebScriptException(Status.STATUS_METHOD_NOT_ALLOWED, "Actions need a POST");
+		}
+
+		switch (action) {
+		case ACTION_RELOAD_DISCOVERY:
+			this.collaboraAdmin.reloadDiscovery();
+			return this.collaboraAdmin.isCollaboraOnline() ? 1 : 0;
+		case ACTION_EVICT_TOKENS:
+			final String user = req.getParameter(PARAM_USER);
+			if (StringUtils.isBlank(user)) {
+				throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No 'user' parameter supplied");
+			}
+			return this.collaboraAdmin.evictUserTokens(user);
+		case ACTION_CLEAR_MARKER_CACHE:
+			final int size = this.collaboraAdmin.getMarkerCacheSize();
+			this.collaboraAdmin.clearMarkerCache();
+			return size;
+		default:
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Unknown action " + action);
+		}
+	}
+
+	public void setCollaboraAdmin(CollaboraAdminMBean collaboraAdmin) {
+		this.collaboraAdmin = collaboraAdmin;
+	}
+}
@@ -0,0 +1,32 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.jfr;
+
+/**
+ * Java Flight Recorder events of the Collabora Online integration.
+ * <p>
+ * Events are enabled by default and cost almost nothing when no recording is running. They can be recorded with the
+ * JVM GC and I/O events, for example: <code>jcmd &lt;pid&gt; JFR.start name=collabora duration=10m</code>
+ */
+public final class CollaboraEvents {
+	static final String NAMESPACE = "fr.jeci.collabora.";
+	static final String CATEGORY = "Collabora Online";
+
+	private CollaboraEvents() {
+		// No Constructor
+	}
+}
@@ -0,0 +1,51 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Document content written to the content store.
+ */
+@Name(CollaboraEvents.NAMESPACE + "ContentWrite")
+@Label("Content Write")
+@Category({ CollaboraEvents.CATEGORY, "WOPI" })
+@Description("Document content written to the content store")
+@StackTrace(false)
+public class ContentWriteEvent extends Event {
+
+	@Label("Node")
+	private String nodeRef;
+
+	@Label("Size")
+	@DataAmount
+	private long bytes;
+
+	public void setNodeRef(String nodeRef) {
+		this.nodeRef = nodeRef;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+}
@@ -0,0 +1,56 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Check of the WOPI lock before a write, the lock is taken over if the owner is another user.
+ */
+@Name(CollaboraEvents.NAMESPACE + "LockSteal")
+@Label("Lock Steal")
+@Category({ CollaboraEvents.CATEGORY, "WOPI" })
+@Description("Check of the WOPI lock before a write, the lock is taken over if the owner is another user")
+@StackTrace(false)
+public class LockStealEvent extends Event {
+
+	@Label("Node")
+	private String nodeRef;
+
+	@Label("Previous Owner")
+	private String owner;
+
+	@Label("Stolen")
+	private boolean stolen;
+
+	public void setNodeRef(String nodeRef) {
+		this.nodeRef = nodeRef;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	public void setStolen(boolean stolen) {
+		this.stolen = stolen;
+	}
+}
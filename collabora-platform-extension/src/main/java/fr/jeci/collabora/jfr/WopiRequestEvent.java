@@ -0,0 +1,109 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One WOPI request served to Collabora Online. The phase durations are the ones of the slow request log line, 0 if the
+ * request had no such phase.
+ */
+@Name(CollaboraEvents.NAMESPACE + "WopiRequest")
+@Label("WOPI Request")
+@Category({ CollaboraEvents.CATEGORY, "WOPI" })
+@Description("One WOPI request served to Collabora Online")
+@StackTrace(false)
+public class WopiRequestEvent extends Event {
+
+	@Label("Operation")
+	private String operation;
+
+	@Label("Node")
+	private String nodeRef;
+
+	@Label("User")
+	private String userName;
+
+	@Label("HTTP Status")
+	private int status;
+
+	@Label("Payload")
+	@DataAmount
+	private long bytes;
+
+	@Label("Token Validation")
+	@Description("Token check, renewal and permissions")
+	@Timespan(Timespan.NANOSECONDS)
+	private long tokenDuration;
+
+	@Label("Lock")
+	@Description("Wait for the save lock and WOPI lock check")
+	@Timespan(Timespan.NANOSECONDS)
+	private long lockDuration;
+
+	@Label("Content Write")
+	@Description("Content written to the content store or to the journal")
+	@Timespan(Timespan.NANOSECONDS)
+	private long writeDuration;
+
+	@Label("Version")
+	@Timespan(Timespan.NANOSECONDS)
+	private long versionDuration;
+
+	public void setOperation(String operation) {
+		this.operation = operation;
+	}
+
+	public void setNodeRef(String nodeRef) {
+		this.nodeRef = nodeRef;
+	}
+
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	public void setTokenDuration(long tokenDuration) {
+		this.tokenDuration = tokenDuration;
+	}
+
+	public void setLockDuration(long lockDuration) {
+		this.lockDuration = lockDuration;
+	}
+
+	public void setWriteDuration(long writeDuration) {
+		this.writeDuration = writeDuration;
+	}
+
+	public void setVersionDuration(long versionDuration) {
+		this.versionDuration = versionDuration;
+	}
+}
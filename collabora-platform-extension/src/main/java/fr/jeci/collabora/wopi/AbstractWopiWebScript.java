@@ -18,9 +18,13 @@ package fr.jeci.collabora.wopi;
 
 import fr.jeci.collabora.alfresco.CollaboraOnlineService;
 import fr.jeci.collabora.alfresco.WOPIAccessTokenInfo;
+import fr.jeci.collabora.jfr.ContentWriteEvent;
+import fr.jeci.collabora.jfr.RenditionRequestEvent;
+import fr.jeci.collabora.jfr.VersionCreateEvent;
 import net.sf.acegisecurity.Authentication;
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
 import org.alfresco.repo.policy.BehaviourFilter;
 import org.alfresco.repo.rendition2.RenditionService2;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
@@ -35,6 +39,9 @@ import org.alfresco.service.cmr.version.VersionService;
 import org.alfresco.service.cmr.version.VersionType;
 import org.alfresco.service.namespace.NamespacePrefixResolver;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.function.IOSupplier;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -46,6 +53,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractWopiWebScript extends AbstractWebScript implements WopiHeader {
 	private static final Logger logger = LoggerFactory.getLogger(AbstractWopiWebScript.class);
@@ -53,10 +62,13 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 	static final String ACCESS_TOKEN = "access_token";
 	static final String FILE_ID = "file_id";
 	static final String LAST_MODIFIED_TIME = "LastModifiedTime";
+	/** Values already in JSON, written as is by {@link #jsonResponse(WebScriptResponse, int, Map)} */
+	private static final Set<String> JSON_VALUES = Collections.singleton(CheckFileInfoBuilder.USER_EXTRA_INFO);
 
 	private String[] renditions;
 
 	static final int STATUS_CONFLICT = 409;
+	static final String RETRY_AFTER = "Retry-After";
 	protected NodeService nodeService;
 	protected CollaboraOnlineService collaboraOnlineService;
 	protected ContentService contentService;
@@ -66,26 +78,140 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 	protected DictionaryService dictionaryService;
 	protected RenditionService2 renditionService;
 	protected BehaviourFilter behaviourFilter;
+	protected WopiMetrics wopiMetrics;
+	protected SimpleCache<String, VersionStamp> lastSaveCache;
+	protected WriteBehindJournal writeBehindJournal;
+	private long autosaveRetentionIntervalMs;
+	protected WopiBulkhead wopiBulkhead;
+	private long slowRequestThresholdMs;
 
 	public abstract void executeAsUser(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef)
 			throws IOException;
 
+	/**
+	 * WOPI operation name, used to tag metrics.
+	 *
+	 * @param req Request
+	 * @return CheckFileInfo, GetFile, PutFile, Lock...
+	 */
+	protected abstract String operation(final WebScriptRequest req);
+
+	/**
+	 * Bulkhead pool of the request, see {@link WopiBulkhead}
+	 *
+	 * @param req Request
+	 * @return READ by default
+	 */
+	protected WopiBulkhead.Pool pool(final WebScriptRequest req) {
+		return WopiBulkhead.Pool.READ;
+	}
+
+	/**
+	 * @param req Request
+	 * @return true for a background request (autosave), with a lower priority
+	 */
+	protected boolean isBackground(final WebScriptRequest req) {
+		return false;
+	}
+
 	@Override
 	public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+		final WopiRequestContext context = WopiRequestContext.begin(operation(req));
+		try {
+			executeWithToken(req, res);
+		} catch (WebScriptException e) {
+			context.setStatus(e.getStatus());
+			throw e;
+		} catch (Throwable e) {
+			context.setStatus(Status.STATUS_INTERNAL_SERVER_ERROR);
+			throw e;
+		} finally {
+			this.wopiMetrics.recordRequest(context.getOperation(), context.getStatus(), context.elapsedNs());
+			context.commitEvent();
+			logSlowRequest(context);
+			WopiRequestContext.end();
+		}
+	}
+
+	/**
+	 * Log the phase durations of a request slower than fr.jeci.collabora.wopi.slowRequestThresholdMs
+	 */
+	private void logSlowRequest(final WopiRequestContext context) {
+		if (this.slowRequestThresholdMs > 0
+				&& context.elapsedNs() >= TimeUnit.MILLISECONDS.toNanos(this.slowRequestThresholdMs)) {
+			logger.warn("Slow WOPI request {}", context.summary());
+		}
+	}
+
+	/**
+	 * End a phase of the current request, see {@link WopiRequestContext#endPhase(String)}
+	 */
+	protected void endPhase(final String phase) {
+		final WopiRequestContext context = WopiRequestContext.current();
+		if (context != null) {
+			context.endPhase(phase);
+		}
+	}
+
+	/**
+	 * The descriptors of GetFile, CheckFileInfo and PutFile have no transaction : the token is validated against the
+	 * token store, then the renewal of the token and {@link #readMetadata(WebScriptRequest, NodeRef)} run in one
+	 * read-only transaction. The READ permission is evaluated by the secured services, the WRITE permission is kept
+	 * with the token. The operation opens its own transactions, the content is streamed without transaction.
+	 */
+	private void executeWithToken(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+		final WopiRequestContext context = WopiRequestContext.current();
 		final WOPIAccessTokenInfo wopiToken = wopiToken(req);
 		forceCurrentUser(wopiToken);
 		final NodeRef nodeRef = getFileNodeRef(wopiToken.getFileId());
+		context.setFile(nodeRef, wopiToken.getUserName());
+		context.endPhase("token");
+
+		// After the token, a request without a valid token takes no slot
+		final WopiBulkhead.Pool pool = pool(req);
+		final String operation = context.getOperation();
+		if (!this.wopiBulkhead.tryAcquire(pool, operation, isBackground(req))) {
+			this.wopiMetrics.rejected(operation, pool.name());
+			logger.debug("{} rejected, {} pool is full", operation, pool);
+			res.setHeader(RETRY_AFTER, Integer.toString(this.wopiBulkhead.getRetryAfterSeconds()));
+			jsonResponse(res, Status.STATUS_SERVICE_UNAVAILABLE,
+					Collections.singletonMap("error", "Too many " + operation + " requests"));
+			return;
+		}
 
-		if (logger.isDebugEnabled()) {
-			String currentLockId = this.collaboraOnlineService.lockGet(nodeRef);
-			logger.debug("{} user='{}' nodeRef='{}' lockId={}", req.getPathInfo(), wopiToken.getUserName(), nodeRef,
-					currentLockId);
+		final long acquiredNs = System.nanoTime();
+		try {
+			executeInSlot(req, res, nodeRef, wopiToken);
+		} finally {
+			// The wait for the save lock depends on the other editors of the document, not on the load
+			final long latencyNs = System.nanoTime() - acquiredNs - context.phase("saveLock");
+			this.wopiBulkhead.release(pool, operation, latencyNs, context.getBytes());
 		}
+	}
 
+	private void executeInSlot(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef,
+			final WOPIAccessTokenInfo wopiToken) throws IOException {
 		if (nodeRef == null) {
 			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR,
 					"No noderef for WOPIAccessTokenInfo:" + wopiToken);
 		}
+
+		final WopiRequestContext context = WopiRequestContext.current();
+		beforeTransaction(nodeRef);
+
+		final Object metadata = retryingTransactionHelper.doInTransaction(() -> {
+			final WOPIAccessTokenInfo token = renewToken(wopiToken, nodeRef);
+			context.setToken(token);
+
+			if (logger.isDebugEnabled()) {
+				logger.debug("{} user='{}' nodeRef='{}' lockId={}", req.getPathInfo(), token.getUserName(), nodeRef,
+						this.collaboraOnlineService.lockGet(nodeRef));
+			}
+			return readMetadata(req, nodeRef);
+		}, true);
+		context.setMetadata(metadata);
+		context.endPhase("permissions");
+
 		try {
 			this.executeAsUser(req, res, nodeRef);
 		} catch (Throwable e) {
@@ -97,6 +223,33 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 		}
 	}
 
+	/**
+	 * Called once the request has a slot, before the read-only transaction of the permissions. Nothing by default.
+	 *
+	 * @param nodeRef document of the token
+	 */
+	protected void beforeTransaction(final NodeRef nodeRef) {
+	}
+
+	/**
+	 * Read what the operation needs from the repository, in the read-only transaction of the permission check.
+	 *
+	 * @param req     Request
+	 * @param nodeRef document of the token
+	 * @return value of {@link #metadata()} in executeAsUser, null by default
+	 */
+	protected Object readMetadata(final WebScriptRequest req, final NodeRef nodeRef) {
+		return null;
+	}
+
+	/**
+	 * @return value returned by {@link #readMetadata(WebScriptRequest, NodeRef)} for the current request
+	 */
+	protected Object metadata() {
+		final WopiRequestContext context = WopiRequestContext.current();
+		return context == null ? null : context.getMetadata();
+	}
+
 	/**
 	 * Returns a NodeRef given a file Id. Note: Checks to see if the node exists aren't performed
 	 *
@@ -108,10 +261,10 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 	}
 
 	/**
-	 * Check and renew token if needed
+	 * Check the token of the request in the token store
 	 *
 	 * @param req Request
-	 * @return WOPI Token
+	 * @return WOPI Token, maybe expired
 	 */
 	protected WOPIAccessTokenInfo wopiToken(WebScriptRequest req) {
 		final String fileId = req.getServiceMatch().getTemplateVars().get(FILE_ID);
@@ -122,19 +275,38 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 			throw new WebScriptException("No 'file_id' parameter supplied");
 		}
 
-		WOPIAccessTokenInfo wopiToken = this.collaboraOnlineService.checkAccessToken(accessToken, nodeRef);
+		return this.collaboraOnlineService.checkAccessToken(accessToken, nodeRef);
+	}
 
-		if (!wopiToken.isValid()) {
-			// try to renew
-			AuthenticationUtil.pushAuthentication();
-			try {
-				AuthenticationUtil.setRunAsUser(wopiToken.getUserName());
-				return this.collaboraOnlineService.createAccessToken(nodeRef);
-			} finally {
-				AuthenticationUtil.popAuthentication();
-			}
+	/**
+	 * Renew the token if needed, in a transaction
+	 *
+	 * @param wopiToken token of the request
+	 * @param nodeRef   document of the token
+	 * @return WOPI Token
+	 */
+	protected WOPIAccessTokenInfo renewToken(final WOPIAccessTokenInfo wopiToken, final NodeRef nodeRef) {
+		if (wopiToken.isValid()) {
+			return wopiToken;
+		}
+
+		// try to renew
+		AuthenticationUtil.pushAuthentication();
+		try {
+			AuthenticationUtil.setRunAsUser(wopiToken.getUserName());
+			this.wopiMetrics.tokenRenewal();
+			return this.collaboraOnlineService.createAccessToken(nodeRef);
+		} finally {
+			AuthenticationUtil.popAuthentication();
 		}
-		return wopiToken;
+	}
+
+	/**
+	 * @return access token of the current request, with the permissions evaluated when it was issued
+	 */
+	protected WOPIAccessTokenInfo currentToken() {
+		final WopiRequestContext context = WopiRequestContext.current();
+		return context == null ? null : context.getToken();
 	}
 
 	protected void forceCurrentUser(final WOPIAccessTokenInfo wopiToken) {
@@ -147,6 +319,21 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 		}
 	}
 
+	/**
+	 * Record the size of the document read or written by this request.
+	 *
+	 * @param operation WOPI operation name
+	 * @param bytes     number of bytes
+	 */
+	protected void recordPayload(final String operation, final long bytes) {
+		this.wopiMetrics.recordPayload(operation, bytes);
+
+		final WopiRequestContext context = WopiRequestContext.current();
+		if (context != null) {
+			context.setBytes(bytes);
+		}
+	}
+
 	protected void jsonResponse(final WebScriptResponse res, int code, Map<String, String> response) throws IOException {
 		boolean start = true;
 		StringBuilder sb = new StringBuilder("{");
@@ -157,14 +344,44 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 				sb.append(", ");
 			}
 
-			sb.append('"').append(e.getKey()).append('"');
-			sb.append(": \"").append(e.getValue()).append('"');
+			sb.append('"').append(e.getKey()).append("\": ");
+			if (JSON_VALUES.contains(e.getKey())) {
+				sb.append(e.getValue());
+			} else {
+				sb.append('"').append(jsonEscape(e.getValue())).append('"');
+			}
 		}
 		sb.append('}');
 		jsonResponse(res, code, sb.toString());
 	}
 
+	/**
+	 * Escape the quotes, backslashes and control characters of a JSON string value
+	 */
+	static String jsonEscape(final String value) {
+		if (value == null) {
+			return "";
+		}
+		final StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
 	protected void jsonResponse(final WebScriptResponse res, int code, String response) throws IOException {
+		final WopiRequestContext context = WopiRequestContext.current();
+		if (context != null) {
+			context.setStatus(code);
+		}
+
 		res.reset();
 		res.setStatus(code);
 		res.setContentType("application/json;charset=UTF-8");
@@ -172,7 +389,7 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 	}
 
 	/**
-	 * Write content file to disk on set version properties.
+	 * Write content file to disk on set version properties, in a new transaction.
 	 *
 	 * @param inputStream input stream data
 	 * @param isAutosave  id true, set PROP_DESCRIPTION, "Edit with Collabora"
@@ -180,49 +397,248 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 	 * @return The new version create
 	 */
 	protected Version writeFileToDisk(final InputStream inputStream, final boolean isAutosave, final NodeRef nodeRef) {
-		return retryingTransactionHelper.doInTransaction(() -> {
+		final Version newVersion = retryingTransactionHelper.doInTransaction(() -> {
+			writeContent(inputStream, nodeRef);
+			return createVersion(isAutosave, nodeRef);
+		}, false, true);
 
-			// Inhibit auto-version, we will create Version manually
-			this.behaviourFilter.disableBehaviour(ContentModel.ASPECT_VERSIONABLE);
-			try {
-				ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
-				// both streams are closed by putContent
-				writer.putContent(new BufferedInputStream(inputStream));
-			} catch (Exception e) {
-				logger.warn("Exception when writing content \"{}\": \"{}\" - will retry", nodeRef, e.getMessage());
-				throw new AlfrescoRuntimeException("Error when writing content - retry", e);
-			} finally {
-				this.behaviourFilter.enableBehaviour(ContentModel.ASPECT_VERSIONABLE);
+		rememberVersion(nodeRef, newVersion);
+		return newVersion;
+	}
+
+	/**
+	 * Write content file to disk, in the current transaction. The versionable behaviour is disabled, the version is
+	 * created by {@link #createVersion(boolean, NodeRef)}.
+	 *
+	 * @param inputStream input stream data, closed by this method
+	 * @param nodeRef     node to update
+	 */
+	protected void writeContent(final InputStream inputStream, final NodeRef nodeRef) {
+		writeContent(() -> inputStream, nodeRef);
+	}
+
+	/**
+	 * Write content file to disk, in the current transaction. The stream is opened once the writer is created and
+	 * closed by this method, a retried transaction opens it again.
+	 *
+	 * @param content opens the input stream data
+	 * @param nodeRef node to update
+	 */
+	protected void writeContent(final IOSupplier<InputStream> content, final NodeRef nodeRef) {
+		// Inhibit auto-version, we will create Version manually
+		this.behaviourFilter.disableBehaviour(ContentModel.ASPECT_VERSIONABLE);
+		final ContentWriteEvent writeEvent = new ContentWriteEvent();
+		writeEvent.begin();
+		try {
+			ContentWriter writer = contentService.getWriter(nodeRef, ContentModel.PROP_CONTENT, true);
+			// both streams are closed by putContent, or here if it fails before
+			try (InputStream in = new BufferedInputStream(content.get())) {
+				writer.putContent(in);
 			}
 
-			try {
-				Map<String, Serializable> versionProperties = new HashMap<>(2);
-				versionProperties.put(VersionBaseModel.PROP_VERSION_TYPE, VersionType.MINOR);
-				if (isAutosave) {
-					versionProperties.put(VersionBaseModel.PROP_DESCRIPTION, CollaboraOnlineService.AUTOSAVE_DESCRIPTION);
-				}
-				versionProperties.put(CollaboraOnlineService.LOOL_AUTOSAVE, isAutosave);
-				return versionService.createVersion(nodeRef, versionProperties);
-			} catch (Exception e) {
-				logger.warn("Exception when creating version \"{}\": \"{}\" - will retry", nodeRef, e.getMessage());
-				throw new AlfrescoRuntimeException("Error when creating version - retry", e);
+			writeEvent.end();
+			if (writeEvent.shouldCommit()) {
+				writeEvent.setNodeRef(nodeRef.toString());
+				writeEvent.setBytes(writer.getSize());
+				writeEvent.commit();
 			}
+		} catch (Exception e) {
+			logger.warn("Exception when writing content \"{}\": \"{}\" - will retry", nodeRef, e.getMessage());
+			throw new AlfrescoRuntimeException("Error when writing content - retry", e);
+		} finally {
+			this.behaviourFilter.enableBehaviour(ContentModel.ASPECT_VERSIONABLE);
+		}
+	}
 
-		}, false, true);
+	/**
+	 * Create a minor version, in the current transaction. The version is never removed by the autosave retention.
+	 *
+	 * @param isAutosave id true, set PROP_DESCRIPTION, "Edit with Collabora"
+	 * @param nodeRef    node to update
+	 * @return The new version create
+	 */
+	protected Version createVersion(final boolean isAutosave, final NodeRef nodeRef) {
+		return createVersion(isAutosave, false, nodeRef);
+	}
+
+	/**
+	 * Create a minor version, in the current transaction.
+	 * <p>
+	 * Autosave retention : with autosaveRetentionIntervalMs, only the first thinned version of each interval is kept
+	 * (the snapshot), the others are removed when the next thinned version is created. A document edited all day keeps
+	 * one autosave per interval and the last one. Only the versions of autosaves are thinned : the version of an
+	 * explicit save, an exit save or an unmodified save is never removed, and never removes the previous one. The
+	 * retention state of the current version is kept on the node, see {@link AutosaveMarker}, the version store is only
+	 * read to remove a version.
+	 *
+	 * @param isAutosave id true, set PROP_DESCRIPTION, "Edit with Collabora"
+	 * @param thin       true for the version of an autosave (not an exit save), which can be removed by the next
+	 *                   one, see {@link SavePolicy}
+	 * @param nodeRef    node to update
+	 * @return The new version create
+	 */
+	protected Version createVersion(final boolean isAutosave, final boolean thin, final NodeRef nodeRef) {
+		final VersionCreateEvent versionEvent = new VersionCreateEvent();
+		versionEvent.begin();
+		try {
+			final boolean thinning = thin && isAutosave && this.autosaveRetentionIntervalMs > 0;
+			final AutosaveMarker previous = thinning ? AutosaveMarker.of(nodeService.getProperties(nodeRef)) : null;
+
+			Map<String, Serializable> versionProperties = new HashMap<>(4);
+			versionProperties.put(VersionBaseModel.PROP_VERSION_TYPE, VersionType.MINOR);
+			if (isAutosave) {
+				versionProperties.put(VersionBaseModel.PROP_DESCRIPTION, CollaboraOnlineService.AUTOSAVE_DESCRIPTION);
+			}
+			Long since = null;
+			final long now = System.currentTimeMillis();
+			if (thinning) {
+				since = previous == null ? null : previous.window(now, this.autosaveRetentionIntervalMs);
+				versionProperties.put(CollaboraOnlineService.LOOL_AUTOSAVE_SNAPSHOT, since == null);
+				versionProperties.put(CollaboraOnlineService.LOOL_AUTOSAVE_SINCE, since == null ? now : since);
+			}
+			versionProperties.put(CollaboraOnlineService.LOOL_AUTOSAVE, isAutosave);
+
+			// Read before the new version, while the previous one is still the current version
+			final Version removed = previous != null && previous.isIntermediate()
+					? versionService.getCurrentVersion(nodeRef)
+					: null;
+
+			Version version = versionService.createVersion(nodeRef, versionProperties);
+
+			if (thinning) {
+				mark(nodeRef, AutosaveMarker.properties(version.getVersionLabel(), since == null,
+						since == null ? now : since));
+			}
+
+			if (removed != null && removed.getVersionLabel().equals(previous.getVersionLabel())) {
+				logger.debug("Remove autosave v.{} of {}", removed.getVersionLabel(), nodeRef);
+				versionService.deleteVersion(nodeRef, removed);
+			}
+
+			versionEvent.end();
+			if (versionEvent.shouldCommit()) {
+				versionEvent.setNodeRef(nodeRef.toString());
+				versionEvent.setVersionLabel(version.getVersionLabel());
+				versionEvent.setAutosave(isAutosave);
+				versionEvent.commit();
+			}
+			return version;
+		} catch (Exception e) {
+			logger.warn("Exception when creating version \"{}\": \"{}\" - will retry", nodeRef, e.getMessage());
+			throw new AlfrescoRuntimeException("Error when creating version - retry", e);
+		}
+	}
+
+	/**
+	 * Set the state of the new version on the node (coalescing, journal), without new version nor new modified date
+	 */
+	protected void mark(final NodeRef nodeRef, final Map<QName, Serializable> marker) {
+		this.behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+		this.behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+		try {
+			nodeService.addProperties(nodeRef, marker);
+		} finally {
+			this.behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+			this.behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+		}
+	}
+
+	/**
+	 * Remove a state set by {@link #mark(NodeRef, Map)}, without new version nor new modified date
+	 */
+	protected void unmark(final NodeRef nodeRef, final QName aspect) {
+		this.behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+		this.behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+		try {
+			nodeService.removeAspect(nodeRef, aspect);
+		} finally {
+			this.behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+			this.behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+		}
+	}
+
+	/**
+	 * Copy the request body to a temporary file, so a retried transaction can write it again. The caller must delete
+	 * the file.
+	 *
+	 * @param req       request with the document as body
+	 * @param operation WOPI operation name, for metrics
+	 * @return temporary file with the body
+	 */
+	protected File spoolContent(final WebScriptRequest req, final String operation) throws IOException {
+		final InputStream body = req.getContent().getInputStream();
+		if (body == null) {
+			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "No inputStream");
+		}
+
+		final File spool = TempFileProvider.createTempFile("wopi-", ".bin");
+		try (InputStream in = body; OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+			recordPayload(operation, IOUtils.copyLarge(in, out));
+		} catch (IOException | RuntimeException e) {
+			deleteSpool(spool);
+			throw e;
+		}
+		return spool;
+	}
+
+	protected void deleteSpool(final File spool) {
+		if (spool != null && !spool.delete() && spool.exists()) {
+			logger.warn("Can't delete temporary file {}", spool);
+		}
+	}
+
+	/**
+	 * Modified date of the current version, for the X-LOOL-WOPI-Timestamp check. The version store is read only if the
+	 * cached version is not the current one (first access, or new version created outside Collabora).
+	 *
+	 * @param nodeRef      document
+	 * @param versionLabel cm:versionLabel of the document
+	 * @return modified date of the current version (epoch ms), null if the document has no version
+	 */
+	protected Long currentVersionModified(final NodeRef nodeRef, final Serializable versionLabel) {
+		return VersionStamp.currentModified(this.lastSaveCache, this.versionService, nodeRef, versionLabel);
+	}
+
+	protected VersionStamp rememberVersion(final NodeRef nodeRef, final Version version) {
+		return VersionStamp.remember(this.lastSaveCache, nodeRef, version);
 	}
 
 	protected void askForRendition(final NodeRef nodeRef) {
+		final RenditionRequestEvent event = new RenditionRequestEvent();
+		event.begin();
+
+		int unsupported = 0;
 		for (String name : renditions) {
 			try {
 				this.renditionService.render(nodeRef, name);
 			} catch (UnsupportedOperationException | java.lang.IllegalArgumentException exp) {
 				logger.warn("Rendition '{}' not supported for {}", name, nodeRef);
+				++unsupported;
 			}
 		}
+
+		this.wopiMetrics.renditionRequested(renditions.length - unsupported);
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.setNodeRef(nodeRef.toString());
+			event.setRenditions(String.join(",", renditions));
+			event.setUnsupported(unsupported);
+			event.commit();
+		}
+	}
+
+	/**
+	 * @return true if the request has one of the X-PRISTY headers
+	 */
+	protected boolean hasHeaderActions(final WebScriptRequest req) {
+		return req.getHeader(X_PRISTY_ADD_ASPECT) != null || req.getHeader(X_PRISTY_DEL_ASPECT) != null
+				|| req.getHeader(X_PRISTY_DEL_PROPERTY) != null || req.getHeader(X_PRISTY_ADD_PROPERTY) != null;
 	}
 
 	/**
-	 * Do actions on node. This modifications will not trigger policy to prevent cascading effect.
+	 * Do actions on node, in the current transaction. This modifications will not trigger policy to prevent cascading
+	 * effect.
 	 *
 	 * @param req
 	 * @param nodeRef
@@ -239,21 +655,17 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 			prop.setValue((Serializable) DefaultTypeConverter.INSTANCE.convert(dataType, prop.getValue()));
 		}
 
-		retryingTransactionHelper.doInTransaction((RetryingTransactionHelper.RetryingTransactionCallback<Void>) () -> {
-			if (aspectToDel != null && nodeService.hasAspect(nodeRef, aspectToDel)) {
-				nodeService.removeAspect(nodeRef, aspectToDel);
-			}
-			if (aspectToAdd != null) {
-				nodeService.addAspect(nodeRef, aspectToAdd, properties);
-			}
-			for (QName prop : delProperties.keySet()) {
-				nodeService.removeProperty(nodeRef, prop);
-			}
-
-			nodeService.addProperties(nodeRef, properties);
-			return null;
-		}, false, true);
+		if (aspectToDel != null && nodeService.hasAspect(nodeRef, aspectToDel)) {
+			nodeService.removeAspect(nodeRef, aspectToDel);
+		}
+		if (aspectToAdd != null) {
+			nodeService.addAspect(nodeRef, aspectToAdd, properties);
+		}
+		for (QName prop : delProperties.keySet()) {
+			nodeService.removeProperty(nodeRef, prop);
+		}
 
+		nodeService.addProperties(nodeRef, properties);
 	}
 
 	private QName extractQname(WebScriptRequest req, String headerName) {
@@ -329,4 +741,31 @@ public abstract class AbstractWopiWebScript extends AbstractWebScript implements
 	public void setBehaviourFilter(BehaviourFilter behaviourFilter) {
 		this.behaviourFilter = behaviourFilter;
 	}
+
+	public void setWopiMetrics(WopiMetrics wopiMetrics) {
+		this.wopiMetrics = wopiMetrics;
+	}
+
+	public void setLastSaveCache(SimpleCache<String, VersionStamp> lastSaveCache) {
+		this.lastSaveCache = lastSaveCache;
+	}
+
+	public void setWriteBehindJournal(WriteBehindJournal writeBehindJournal) {
+		this.writeBehindJournal = writeBehindJournal;
+	}
+
+	/**
+	 * @param autosaveRetentionIntervalMs keep one autosave version per interval, 0 to keep all of them
+	 */
+	public void setAutosaveRetentionIntervalMs(long autosaveRetentionIntervalMs) {
+		this.autosaveRetentionIntervalMs = autosaveRetentionIntervalMs;
+	}
+
+	public void setWopiBulkhead(WopiBulkhead wopiBulkhead) {
+		this.wopiBulkhead = wopiBulkhead;
+	}
+
+	public void setSlowRequestThresholdMs(long slowRequestThresholdMs) {
+		this.slowRequestThresholdMs = slowRequestThresholdMs;
+	}
 }
@@ -0,0 +1,124 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency limit of one WOPI operation, that adapts to the observed latency.
+ * <p>
+ * Each sample is the latency of a request divided by its payload in units of 64 KiB (plus one, for the fixed cost), so
+ * a GetFile of a large document is not seen as a slow one. Two moving averages are kept : a short one that follows the
+ * last requests, and a long one (the baseline) that decays slowly. When the short average is above
+ * <code>baseline * tolerance</code>, the limit shrinks by 10%. Else the limit grows by one while the pool is busy. The
+ * limit stays in [minLimit, maxLimit].
+ */
+final class AdaptiveLimit {
+	private static final double TOLERANCE = 2.0;
+	private static final double DECREASE = 0.9;
+	private static final int SHORT_WINDOW = 8;
+	private static final int LONG_WINDOW = 128;
+	private static final double PAYLOAD_UNIT = 64 * 1024;
+
+	private final String name;
+	private final int minLimit;
+	private final int maxLimit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private volatile int limit;
+	private double shortNs = -1;
+	private double baselineNs = -1;
+
+	AdaptiveLimit(final String name, final int minLimit, final int maxLimit) {
+		this.name = name;
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.max(this.minLimit, this.maxLimit / 2);
+	}
+
+	/**
+	 * Take a slot if the pool is not full.
+	 *
+	 * @param share part of the limit usable by this request (1 for all of it), to keep room for priority requests
+	 * @return true if a slot was taken, {@link #release(long, long)} must then be called
+	 */
+	boolean tryAcquire(final double share) {
+		final int max = Math.max(1, (int) (this.limit * share));
+		while (true) {
+			final int current = this.inFlight.get();
+			if (current >= max) {
+				return false;
+			}
+			if (this.inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Release a slot and update the limit with the latency of the request.
+	 *
+	 * @param latencyNs duration of the request
+	 * @param bytes     payload of the request, -1 if none
+	 */
+	void release(final long latencyNs, final long bytes) {
+		final int current = this.inFlight.getAndDecrement();
+		update(normalize(latencyNs, bytes), current);
+	}
+
+	/**
+	 * Release a slot without latency sample, for a request that didn't run
+	 */
+	void cancel() {
+		this.inFlight.decrementAndGet();
+	}
+
+	/**
+	 * @return latency per payload unit
+	 */
+	static double normalize(final long latencyNs, final long bytes) {
+		return latencyNs / (1d + Math.max(0L, bytes) / PAYLOAD_UNIT);
+	}
+
+	private synchronized void update(final double sampleNs, final int inFlightAtEnd) {
+		if (this.baselineNs < 0) {
+			this.shortNs = sampleNs;
+			this.baselineNs = sampleNs;
+		} else {
+			this.shortNs += (sampleNs - this.shortNs) / SHORT_WINDOW;
+			this.baselineNs += (sampleNs - this.baselineNs) / LONG_WINDOW;
+		}
+
+		if (this.shortNs > this.baselineNs * TOLERANCE) {
+			this.limit = Math.max(this.minLimit, (int) (this.limit * DECREASE));
+		} else if (inFlightAtEnd * 2 >= this.limit) {
+			this.limit = Math.min(this.maxLimit, this.limit + 1);
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	int getInFlight() {
+		return inFlight.get();
+	}
+}
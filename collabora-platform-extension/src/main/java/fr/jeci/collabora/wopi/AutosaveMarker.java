@@ -0,0 +1,91 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import fr.jeci.collabora.alfresco.CollaboraOnlineModel;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Autosave retention state of the current version of a document, kept on the node (collabora:coalescedVersion) when
+ * a thinned autosave version is created. It is outdated as soon as another version is created : its label is not
+ * cm:versionLabel anymore.
+ */
+final class AutosaveMarker {
+	private final String versionLabel;
+	private final boolean snapshot;
+	private final long since;
+
+	private AutosaveMarker(final String versionLabel, final boolean snapshot, final long since) {
+		this.versionLabel = versionLabel;
+		this.snapshot = snapshot;
+		this.since = since;
+	}
+
+	/**
+	 * @param properties properties of the node
+	 * @return state of the current version, null if it is not a thinned autosave version
+	 */
+	static AutosaveMarker of(final Map<QName, Serializable> properties) {
+		return of(properties.get(ContentModel.PROP_VERSION_LABEL),
+				properties.get(CollaboraOnlineModel.PROP_AUTOSAVE_LABEL),
+				properties.get(CollaboraOnlineModel.PROP_AUTOSAVE_SNAPSHOT),
+				properties.get(CollaboraOnlineModel.PROP_AUTOSAVE_SINCE));
+	}
+
+	static AutosaveMarker of(final Serializable versionLabel, final Serializable label, final Serializable snapshot,
+			final Serializable since) {
+		if (versionLabel == null || !versionLabel.equals(label) || !(snapshot instanceof Boolean)
+				|| !(since instanceof Long)) {
+			return null;
+		}
+		return new AutosaveMarker((String) label, (Boolean) snapshot, (Long) since);
+	}
+
+	/**
+	 * @return properties of the node for a new thinned autosave version
+	 */
+	static Map<QName, Serializable> properties(final String versionLabel, final boolean snapshot, final long since) {
+		final Map<QName, Serializable> properties = new HashMap<>(4);
+		properties.put(CollaboraOnlineModel.PROP_AUTOSAVE_LABEL, versionLabel);
+		properties.put(CollaboraOnlineModel.PROP_AUTOSAVE_SNAPSHOT, snapshot);
+		properties.put(CollaboraOnlineModel.PROP_AUTOSAVE_SINCE, since);
+		return properties;
+	}
+
+	String getVersionLabel() {
+		return versionLabel;
+	}
+
+	/**
+	 * @return creation time of the snapshot of the window of the new version, null if the new version is a snapshot
+	 */
+	Long window(final long now, final long intervalMs) {
+		return now - this.since >= intervalMs ? null : this.since;
+	}
+
+	/**
+	 * @return true for a thinned autosave version which is not a snapshot
+	 */
+	boolean isIntermediate() {
+		return !this.snapshot;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import fr.jeci.collabora.alfresco.CollaboraOnlineService;
+import fr.jeci.collabora.alfresco.UserProfile;
+import fr.jeci.collabora.alfresco.UserProfileCache;
+import fr.jeci.collabora.alfresco.WOPIAccessTokenInfo;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.version.VersionService;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Build the CheckFileInfo response of a document for the user of an access token.
+ * <p>
+ * The open endpoint builds it while it issues the token, and keeps it in a short-lived shared cache : the
+ * CheckFileInfo request sent by Collabora Online a few milliseconds later is answered from it, with no other read
+ * than the node properties. A precomputed response is served only once, and is dropped if the document was modified
+ * in the meantime (cm:modified or content URL).
+ */
+public class CheckFileInfoBuilder {
+	private static final Logger logger = LoggerFactory.getLogger(CheckFileInfoBuilder.class);
+
+	static final String VERSION = "Version";
+	static final String USER_FRIENDLY_NAME = "UserFriendlyName";
+	static final String USER_CAN_WRITE = "UserCanWrite";
+	static final String IS_ADMIN_USER = "isAdminUser";
+	static final String USER_ID = "UserId";
+	static final String SIZE = "Size";
+	static final String OWNER_ID = "OwnerId";
+	static final String BASE_FILE_NAME = "BaseFileName";
+	/** JSON object, see AbstractWopiWebScript#jsonResponse */
+	static final String USER_EXTRA_INFO = "UserExtraInfo";
+
+	private CollaboraOnlineService collaboraOnlineService;
+	private NodeService nodeService;
+	private UserProfileCache userProfileCache;
+	private VersionService versionService;
+	private SimpleCache<String, VersionStamp> lastSaveCache;
+	private SimpleCache<String, Precomputed> precomputedCache;
+
+	/**
+	 * Must be called in a transaction, as the user of the token.
+	 *
+	 * @param nodeRef   document
+	 * @param tokenInfo access token, with the WRITE permission of the user
+	 * @return CheckFileInfo properties
+	 */
+	public HashMap<String, String> build(final NodeRef nodeRef, final WOPIAccessTokenInfo tokenInfo) {
+		return build(nodeRef, tokenInfo, this.nodeService.getProperties(nodeRef));
+	}
+
+	private HashMap<String, String> build(final NodeRef nodeRef, final WOPIAccessTokenInfo tokenInfo,
+			final Map<QName, Serializable> properties) {
+		final HashMap<String, String> model = new HashMap<>(this.collaboraOnlineService.serverInfo());
+
+		final Serializable versionLabel = properties.get(ContentModel.PROP_VERSION_LABEL);
+		final Long lastModified = VersionStamp.currentModified(this.lastSaveCache, this.versionService, nodeRef,
+				versionLabel);
+
+		if (lastModified != null) {
+			model.put(AbstractWopiWebScript.LAST_MODIFIED_TIME, WopiTimestamp.print(lastModified));
+			model.put(VERSION, versionLabel.toString());
+		}
+
+		// BaseFileName need extension, else COL load it in read-only mode
+		model.put(BASE_FILE_NAME, (String) properties.get(ContentModel.PROP_NAME));
+
+		model.put(OWNER_ID, properties.get(ContentModel.PROP_CREATOR).toString());
+		final ContentData contentData = (ContentData) properties.get(ContentModel.PROP_CONTENT);
+		model.put(SIZE, Long.toString(contentData.getSize()));
+
+		final String userName = tokenInfo.getUserName();
+		final UserProfile profile = this.userProfileCache.get(userName);
+		model.put(USER_ID, userName);
+		model.put(USER_FRIENDLY_NAME, profile.getFriendlyName());
+		model.put(USER_CAN_WRITE, Boolean.toString(tokenInfo.isCanWrite()));
+		model.put(IS_ADMIN_USER, Boolean.toString(profile.isAdmin()));
+		if (profile.getAvatarUrl() != null) {
+			final String avatar = AbstractWopiWebScript.jsonEscape(profile.getAvatarUrl());
+			model.put(USER_EXTRA_INFO, "{\"avatar\": \"" + avatar + "\"}");
+		}
+
+		// Add WOPI properties to hide Save As and Export buttons
+		model.put("UserCanNotWriteRelative", "true");
+		return model;
+	}
+
+	/**
+	 * Build the response now and keep it for the first CheckFileInfo of this token. Must be called in a transaction,
+	 * as the user of the token.
+	 */
+	public void precompute(final NodeRef nodeRef, final WOPIAccessTokenInfo tokenInfo) {
+		final Map<QName, Serializable> properties = this.nodeService.getProperties(nodeRef);
+		this.precomputedCache.put(tokenInfo.getAccessToken(),
+				new Precomputed(build(nodeRef, tokenInfo, properties), modified(properties), contentUrl(properties)));
+	}
+
+	/**
+	 * Remove and return the response built by {@link #precompute(NodeRef, WOPIAccessTokenInfo)}. Must be called in a
+	 * transaction : the document is compared with the one of the response.
+	 *
+	 * @return CheckFileInfo properties, null if there is none or if it is outdated
+	 */
+	public HashMap<String, String> takePrecomputed(final NodeRef nodeRef, final WOPIAccessTokenInfo tokenInfo) {
+		final Precomputed precomputed = this.precomputedCache.get(tokenInfo.getAccessToken());
+		if (precomputed == null) {
+			return null;
+		}
+		this.precomputedCache.remove(tokenInfo.getAccessToken());
+		final HashMap<String, String> model = precomputed.model;
+
+		// Another session saved the document since the open
+		final VersionStamp stamp = this.lastSaveCache.get(nodeRef.getId());
+		if (stamp != null && !stamp.getVersionLabel().equals(model.get(VERSION))) {
+			logger.debug("Precomputed CheckFileInfo of {} is outdated ({})", nodeRef, stamp);
+			return null;
+		}
+
+		// Renamed, or written by something else than Collabora Online
+		final Map<QName, Serializable> properties = this.nodeService.getProperties(nodeRef);
+		if (!Objects.equals(precomputed.modified, modified(properties))
+				|| !Objects.equals(precomputed.contentUrl, contentUrl(properties))) {
+			logger.debug("Precomputed CheckFileInfo of {} is outdated (modified {})", nodeRef, modified(properties));
+			return null;
+		}
+
+		// Permissions may have been evaluated again since
+		model.put(USER_CAN_WRITE, Boolean.toString(tokenInfo.isCanWrite()));
+		return model;
+	}
+
+	private static Date modified(final Map<QName, Serializable> properties) {
+		return (Date) properties.get(ContentModel.PROP_MODIFIED);
+	}
+
+	private static String contentUrl(final Map<QName, Serializable> properties) {
+		final ContentData contentData = (ContentData) properties.get(ContentModel.PROP_CONTENT);
+		return contentData == null ? null : contentData.getContentUrl();
+	}
+
+	public void setCollaboraOnlineService(CollaboraOnlineService collaboraOnlineService) {
+		this.collaboraOnlineService = collaboraOnlineService;
+	}
+
+	public void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	public void setUserProfileCache(UserProfileCache userProfileCache) {
+		this.userProfileCache = userProfileCache;
+	}
+
+	public void setVersionService(VersionService versionService) {
+		this.versionService = versionService;
+	}
+
+	public void setLastSaveCache(SimpleCache<String, VersionStamp> lastSaveCache) {
+		this.lastSaveCache = lastSaveCache;
+	}
+
+	public void setPrecomputedCache(SimpleCache<String, Precomputed> precomputedCache) {
+		this.precomputedCache = precomputedCache;
+	}
+
+	/**
+	 * A response, with the state of the document it was built from
+	 */
+	static final class Precomputed implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final HashMap<String, String> model;
+		final Date modified;
+		final String contentUrl;
+
+		Precomputed(final HashMap<String, String> model, final Date modified, final String contentUrl) {
+			this.model = model;
+			this.modified = modified;
+			this.contentUrl = contentUrl;
+		}
+	}
+}
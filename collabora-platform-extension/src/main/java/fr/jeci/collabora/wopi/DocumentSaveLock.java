@@ -0,0 +1,196 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import fr.jeci.collabora.alfresco.CollaboraOnlineModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serialize the saves of one document, so concurrent PutFile on the same node wait for each other instead of failing
+ * the optimistic locking of the repository and retrying the whole write. Saves of different documents stay parallel.
+ * <p>
+ * On one server, each document being saved has its own {@link ReentrantLock}, removed when no save holds or waits for
+ * it. In a cluster, the {@link JobLockService} can also be used
+ * (<code>fr.jeci.collabora.wopi.saveLock.cluster=true</code>), at the cost of a database round trip per save. The
+ * cluster lock is refreshed while the save runs, so a long upload keeps it whatever its size.
+ */
+public class DocumentSaveLock {
+	private static final Logger logger = LoggerFactory.getLogger(DocumentSaveLock.class);
+
+	private static final long CLUSTER_RETRY_WAIT_MS = 100;
+
+	private final ConcurrentMap<NodeRef, NodeLock> locks = new ConcurrentHashMap<>();
+	private JobLockService jobLockService;
+	private boolean cluster;
+	private long waitTimeoutMs = 30_000;
+	private long clusterLockTtlMs = 60_000;
+
+	/**
+	 * Wait for the save lock of a document.
+	 *
+	 * @param nodeRef document
+	 * @return lock to close when the save is committed
+	 * @throws WebScriptException 503 if the lock is not free after waitTimeoutMs
+	 */
+	public Lock acquire(final NodeRef nodeRef) {
+		final NodeLock local = this.locks.compute(nodeRef, (k, v) -> (v == null ? new NodeLock() : v).retain());
+		try {
+			if (!local.tryLock(this.waitTimeoutMs, TimeUnit.MILLISECONDS)) {
+				release(nodeRef, local, false);
+				throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, "Save already running for " + nodeRef);
+			}
+		} catch (InterruptedException e) {
+			release(nodeRef, local, false);
+			Thread.currentThread().interrupt();
+			throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, "Interrupted while waiting " + nodeRef);
+		}
+
+		if (!this.cluster) {
+			return new Lock(nodeRef, local, null, null);
+		}
+
+		final QName lockQName = QName.createQName(CollaboraOnlineModel.COLLABORA_MODEL_1_0_URI,
+				"save-" + nodeRef.getId());
+		try {
+			final int retryCount = (int) Math.max(1, this.waitTimeoutMs / CLUSTER_RETRY_WAIT_MS);
+			final String token = this.jobLockService.getLock(lockQName, this.clusterLockTtlMs,
+					CLUSTER_RETRY_WAIT_MS, retryCount);
+			final Lock lock = new Lock(nodeRef, local, lockQName, token);
+			this.jobLockService.refreshLock(token, lockQName, this.clusterLockTtlMs, lock);
+			return lock;
+		} catch (LockAcquisitionException e) {
+			release(nodeRef, local, true);
+			logger.debug("Cluster save lock not free {}", nodeRef);
+			throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, "Save already running for " + nodeRef);
+		} catch (RuntimeException e) {
+			release(nodeRef, local, true);
+			throw e;
+		}
+	}
+
+	/**
+	 * Unlock if held, the lock of the node is removed once no save holds or waits for it
+	 */
+	private void release(final NodeRef nodeRef, final NodeLock local, final boolean held) {
+		if (held) {
+			local.unlock();
+		}
+		this.locks.computeIfPresent(nodeRef, (k, v) -> v.free() ? null : v);
+	}
+
+	/**
+	 * @return number of documents with a save running or waiting on this server
+	 */
+	int size() {
+		return this.locks.size();
+	}
+
+	public void setJobLockService(JobLockService jobLockService) {
+		this.jobLockService = jobLockService;
+	}
+
+	public void setCluster(boolean cluster) {
+		this.cluster = cluster;
+	}
+
+	public void setWaitTimeoutMs(long waitTimeoutMs) {
+		this.waitTimeoutMs = waitTimeoutMs;
+	}
+
+	/**
+	 * @param clusterLockTtlMs time to live of the cluster lock, refreshed by the JobLockService while the save runs
+	 */
+	public void setClusterLockTtlMs(long clusterLockTtlMs) {
+		this.clusterLockTtlMs = clusterLockTtlMs;
+	}
+
+	/**
+	 * Local lock of a document, with the number of saves holding or waiting for it. Only changed in the compute
+	 * methods of the map.
+	 */
+	private static final class NodeLock extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+
+		private int users;
+
+		private NodeLock retain() {
+			++this.users;
+			return this;
+		}
+
+		/**
+		 * @return true if no save holds or waits for this lock anymore
+		 */
+		private boolean free() {
+			return --this.users == 0;
+		}
+	}
+
+	/**
+	 * Save lock held by the current thread. The cluster lock is refreshed until it is closed.
+	 */
+	public final class Lock implements AutoCloseable, JobLockService.JobLockRefreshCallback {
+		private final NodeRef nodeRef;
+		private final NodeLock local;
+		private final QName lockQName;
+		private final String token;
+		private volatile boolean active = true;
+
+		private Lock(final NodeRef nodeRef, final NodeLock local, final QName lockQName, final String token) {
+			this.nodeRef = nodeRef;
+			this.local = local;
+			this.lockQName = lockQName;
+			this.token = token;
+		}
+
+		@Override
+		public boolean isActive() {
+			return this.active;
+		}
+
+		@Override
+		public void lockReleased() {
+			if (this.active) {
+				logger.warn("Cluster save lock of {} lost while saving", this.nodeRef);
+			}
+		}
+
+		@Override
+		public void close() {
+			this.active = false;
+			try {
+				if (this.token != null) {
+					jobLockService.releaseLock(this.token, this.lockQName);
+				}
+			} finally {
+				release(this.nodeRef, this.local, true);
+			}
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * What a PutFile does after the content is written, by kind of save.
+ * <p>
+ * A rule is a comma separated list : the version type (none, minor or thinned), then the options
+ * <code>renditions</code> (ask for the renditions) and <code>release</code> (unlock the document and clear its
+ * marker). For example <code>minor,renditions,release</code>.
+ * <p>
+ * A thinned version is a minor version subject to the autosave retention
+ * (fr.jeci.collabora.autosaveRetention.intervalMs) : only the autosave rule accepts it, the versions of the other saves
+ * are never removed. With none the content is written without a new version.
+ * <p>
+ * A save has one kind only, see {@link SaveKind#of(boolean, String, String)} : a save without modification by the user
+ * follows the unmodified rule, even when it is the exit save.
+ */
+public class SavePolicy {
+
+	/**
+	 * Kind of save, from the headers sent by Collabora Online
+	 */
+	public enum SaveKind {
+		AUTOSAVE, EXPLICIT, EXIT, UNMODIFIED;
+
+		/**
+		 * UNMODIFIED wins over EXIT, and EXIT over AUTOSAVE : the exit save of a document the user didn't modify is
+		 * UNMODIFIED, so the rule of exit saves (and its release) doesn't apply to it.
+		 *
+		 * @param autosave         X-LOOL-WOPI-IsAutosave
+		 * @param isExitSave       X-LOOL-WOPI-IsExitSave, may be null
+		 * @param isModifiedByUser X-LOOL-WOPI-IsModifiedByUser, may be null
+		 */
+		public static SaveKind of(final boolean autosave, final String isExitSave, final String isModifiedByUser) {
+			if (isModifiedByUser != null && !Boolean.parseBoolean(isModifiedByUser.trim())) {
+				return UNMODIFIED;
+			}
+			// An exit save is also sent as an autosave
+			if (isExitSave != null && Boolean.parseBoolean(isExitSave.trim())) {
+				return EXIT;
+			}
+			return autosave ? AUTOSAVE : EXPLICIT;
+		}
+	}
+
+	public enum VersionMode {
+		NONE, MINOR, THINNED
+	}
+
+	public static final class Rule {
+		private final VersionMode version;
+		private final boolean renditions;
+		private final boolean release;
+
+		Rule(final VersionMode version, final boolean renditions, final boolean release) {
+			this.version = version;
+			this.renditions = renditions;
+			this.release = release;
+		}
+
+		static Rule parse(final String rule) {
+			final String[] tokens = rule.trim().toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+			final VersionMode version;
+			try {
+				version = VersionMode.valueOf(tokens[0].toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new AlfrescoRuntimeException("Invalid save policy '" + rule + "', unknown version type");
+			}
+
+			boolean renditions = false;
+			boolean release = false;
+			for (int i = 1; i < tokens.length; i++) {
+				if ("renditions".equals(tokens[i])) {
+					renditions = true;
+				} else if ("release".equals(tokens[i])) {
+					release = true;
+				} else {
+					throw new AlfrescoRuntimeException("Invalid save policy '" + rule + "', unknown option " + tokens[i]);
+				}
+			}
+			return new Rule(version, renditions, release);
+		}
+
+		public VersionMode getVersion() {
+			return version;
+		}
+
+		public boolean isRenditions() {
+			return renditions;
+		}
+
+		public boolean isRelease() {
+			return release;
+		}
+
+		@Override
+		public String toString() {
+			return version.name().toLowerCase(Locale.ROOT) + (renditions ? ",renditions" : "")
+					+ (release ? ",release" : "");
+		}
+	}
+
+	private final Map<SaveKind, Rule> rules = new EnumMap<>(SaveKind.class);
+
+	public SavePolicy() {
+		// Same as before the policy : a version for each save, renditions after an explicit save only
+		this.rules.put(SaveKind.AUTOSAVE, new Rule(VersionMode.THINNED, false, false));
+		this.rules.put(SaveKind.EXPLICIT, new Rule(VersionMode.MINOR, true, false));
+		this.rules.put(SaveKind.EXIT, new Rule(VersionMode.MINOR, false, false));
+		this.rules.put(SaveKind.UNMODIFIED, new Rule(VersionMode.MINOR, false, false));
+	}
+
+	public Rule rule(final SaveKind kind) {
+		return this.rules.get(kind);
+	}
+
+	public void setAutosave(String rule) {
+		this.rules.put(SaveKind.AUTOSAVE, Rule.parse(rule));
+	}
+
+	public void setExplicit(String rule) {
+		this.rules.put(SaveKind.EXPLICIT, notThinned(rule));
+	}
+
+	public void setExit(String rule) {
+		this.rules.put(SaveKind.EXIT, notThinned(rule));
+	}
+
+	public void setUnmodified(String rule) {
+		this.rules.put(SaveKind.UNMODIFIED, notThinned(rule));
+	}
+
+	/**
+	 * The autosave retention never removes the version of an explicit, exit or unmodified save
+	 */
+	private static Rule notThinned(final String rule) {
+		final Rule parsed = Rule.parse(rule);
+		if (parsed.getVersion() == VersionMode.THINNED) {
+			throw new AlfrescoRuntimeException("Invalid save policy '" + rule + "', only autosaves can be thinned");
+		}
+		return parsed;
+	}
+
+	@Override
+	public String toString() {
+		return this.rules.toString();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionService;
+
+import java.io.Serializable;
+
+/**
+ * Label and modified date of the current version of a document, kept in a shared cache to check the
+ * X-LOOL-WOPI-Timestamp header without reading the version store.
+ */
+public final class VersionStamp implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String versionLabel;
+	private final long modified;
+
+	public VersionStamp(final String versionLabel, final long modified) {
+		this.versionLabel = versionLabel;
+		this.modified = modified;
+	}
+
+	public String getVersionLabel() {
+		return versionLabel;
+	}
+
+	/**
+	 * @return frozen modified date of the version, in epoch ms
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+	/**
+	 * Modified date of the current version, from the cache when its label still matches the node.
+	 *
+	 * @param versionLabel cm:versionLabel of the node
+	 * @return epoch ms, null if the node has no version
+	 */
+	static Long currentModified(final SimpleCache<String, VersionStamp> cache, final VersionService versionService,
+			final NodeRef nodeRef, final Serializable versionLabel) {
+		if (versionLabel == null) {
+			return null;
+		}
+
+		final VersionStamp stamp = cache.get(nodeRef.getId());
+		if (stamp != null && stamp.getVersionLabel().equals(versionLabel)) {
+			return stamp.getModified();
+		}
+
+		final Version currentVersion = versionService.getCurrentVersion(nodeRef);
+		if (currentVersion == null) {
+			return null;
+		}
+		final VersionStamp current = remember(cache, nodeRef, currentVersion);
+		return current == null ? null : current.getModified();
+	}
+
+	static VersionStamp remember(final SimpleCache<String, VersionStamp> cache, final NodeRef nodeRef,
+			final Version version) {
+		if (version == null || version.getFrozenModifiedDate() == null) {
+			return null;
+		}
+		final VersionStamp stamp = new VersionStamp(version.getVersionLabel(),
+				version.getFrozenModifiedDate().getTime());
+		cache.put(nodeRef.getId(), stamp);
+		return stamp;
+	}
+
+	@Override
+	public String toString() {
+		return versionLabel + "@" + modified;
+	}
+}
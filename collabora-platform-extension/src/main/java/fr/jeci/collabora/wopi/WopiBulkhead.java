@@ -0,0 +1,173 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Concurrency limits of the WOPI endpoints, so a burst of saves cannot take every Tomcat thread and starve the opening
+ * of documents or the rest of Alfresco.
+ * <p>
+ * The maximum concurrency is set by pool : reads (CheckFileInfo, GetFile), saves (PutFile, PutRelativeFile) and lock
+ * operations. The requests in flight of all the operations of a pool never exceed its maximum. Inside the pool, each
+ * operation has its own {@link AdaptiveLimit}, so the latency of a GetFile is never compared with the one of a
+ * CheckFileInfo. Autosaves are background requests, they can only use a part of the PutFile limit and of the save pool
+ * (<code>fr.jeci.collabora.wopi.bulkhead.autosaveShare</code>) to keep room for explicit saves.
+ * <p>
+ * A slot is taken once the access token is validated, so requests without a valid token use no capacity.
+ */
+public class WopiBulkhead {
+	private static final Logger logger = LoggerFactory.getLogger(WopiBulkhead.class);
+
+	public enum Pool {
+		READ, SAVE, LOCK
+	}
+
+	private boolean enabled = true;
+	private int readMaxConcurrency = 64;
+	private int saveMaxConcurrency = 16;
+	private int lockMaxConcurrency = 32;
+	private double autosaveShare = 0.75;
+	private int retryAfterSeconds = 2;
+
+	/** Limit of each operation, by pool then operation name */
+	private final Map<String, AdaptiveLimit> limits = new ConcurrentHashMap<>();
+	/** Requests in flight of each pool, all operations */
+	private final Map<Pool, AtomicInteger> poolInFlight = new EnumMap<>(Pool.class);
+
+	public WopiBulkhead() {
+		for (Pool pool : Pool.values()) {
+			this.poolInFlight.put(pool, new AtomicInteger());
+		}
+	}
+
+	public void init() {
+		logger.info("WOPI bulkhead {} read={} save={} lock={}", this.enabled ? "enabled" : "disabled",
+				this.readMaxConcurrency, this.saveMaxConcurrency, this.lockMaxConcurrency);
+	}
+
+	private AdaptiveLimit limit(final Pool pool, final String operation) {
+		return this.limits.computeIfAbsent(pool + "/" + operation, name -> {
+			final int maxConcurrency = maxConcurrency(pool);
+			return new AdaptiveLimit(name, Math.max(1, maxConcurrency / 8), maxConcurrency);
+		});
+	}
+
+	private int maxConcurrency(final Pool pool) {
+		switch (pool) {
+		case SAVE:
+			return this.saveMaxConcurrency;
+		case LOCK:
+			return this.lockMaxConcurrency;
+		default:
+			return this.readMaxConcurrency;
+		}
+	}
+
+	/**
+	 * Take a slot of an operation.
+	 *
+	 * @param pool       pool of the operation
+	 * @param operation  WOPI operation
+	 * @param background true for an autosave
+	 * @return true if the request can run, then {@link #release(Pool, String, long, long)} must be called
+	 */
+	public boolean tryAcquire(final Pool pool, final String operation, final boolean background) {
+		if (!this.enabled) {
+			return true;
+		}
+		final double share = background ? this.autosaveShare : 1d;
+		final AdaptiveLimit limit = limit(pool, operation);
+		if (!limit.tryAcquire(share)) {
+			return false;
+		}
+
+		final AtomicInteger inFlight = this.poolInFlight.get(pool);
+		final int max = Math.max(1, (int) (maxConcurrency(pool) * share));
+		while (true) {
+			final int current = inFlight.get();
+			if (current >= max) {
+				limit.cancel();
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param latencyNs duration of the request since the slot was taken, without the wait for the save lock of the
+	 *                  document
+	 * @param bytes     payload of the request (GetFile, PutFile), -1 if none
+	 */
+	public void release(final Pool pool, final String operation, final long latencyNs, final long bytes) {
+		if (this.enabled) {
+			this.poolInFlight.get(pool).decrementAndGet();
+			limit(pool, operation).release(latencyNs, bytes);
+		}
+	}
+
+	public int getLimit(final Pool pool, final String operation) {
+		return limit(pool, operation).getLimit();
+	}
+
+	public int getInFlight(final Pool pool, final String operation) {
+		return limit(pool, operation).getInFlight();
+	}
+
+	/**
+	 * @return requests in flight of all the operations of a pool
+	 */
+	public int getInFlight(final Pool pool) {
+		return this.poolInFlight.get(pool).get();
+	}
+
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void setReadMaxConcurrency(int readMaxConcurrency) {
+		this.readMaxConcurrency = readMaxConcurrency;
+	}
+
+	public void setSaveMaxConcurrency(int saveMaxConcurrency) {
+		this.saveMaxConcurrency = saveMaxConcurrency;
+	}
+
+	public void setLockMaxConcurrency(int lockMaxConcurrency) {
+		this.lockMaxConcurrency = lockMaxConcurrency;
+	}
+
+	public void setAutosaveShare(double autosaveShare) {
+		this.autosaveShare = autosaveShare;
+	}
+
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+}
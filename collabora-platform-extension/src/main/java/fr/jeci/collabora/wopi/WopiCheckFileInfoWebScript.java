@@ -16,25 +16,13 @@ limitations under the License.
 */
 package fr.jeci.collabora.wopi;
 
-import org.alfresco.model.ContentModel;
-import org.alfresco.repo.security.authentication.AuthenticationUtil;
-import org.alfresco.service.cmr.security.AuthorityService;
-import org.alfresco.service.cmr.repository.ContentData;
+import fr.jeci.collabora.alfresco.CollaboraOnlineService;
+import fr.jeci.collabora.alfresco.WOPIAccessTokenInfo;
 import org.alfresco.service.cmr.repository.NodeRef;
-import org.alfresco.service.cmr.security.AccessStatus;
-import org.alfresco.service.cmr.security.PermissionService;
-import org.alfresco.service.cmr.security.PersonService;
-import org.alfresco.service.cmr.version.Version;
-import org.alfresco.service.namespace.QName;
-import org.joda.time.LocalDateTime;
-import org.joda.time.format.ISODateTimeFormat;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 import org.springframework.extensions.webscripts.WebScriptResponse;
 
 import java.io.IOException;
-import java.io.Serializable;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -48,94 +36,44 @@ import java.util.Map;
  * name(s), one should be able to semantically derive their relevance
  */
 public class WopiCheckFileInfoWebScript extends AbstractWopiWebScript {
-	private static final String VERSION = "Version";
-	private static final String USER_FRIENDLY_NAME = "UserFriendlyName";
-	private static final String USER_CAN_WRITE = "UserCanWrite";
-	private static final String IS_ADMIN_USER = "isAdminUser";
-	private static final String USER_ID = "UserId";
-	private static final String SIZE = "Size";
-	private static final String OWNER_ID = "OwnerId";
-
-	private static final String BASE_FILE_NAME = "BaseFileName";
-
-    private AuthorityService authorityService;
-	private PermissionService permissionService;
-	private PersonService personService;
+	private CheckFileInfoBuilder checkFileInfoBuilder;
 
 	@Override
-	public void executeAsUser(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef)
-			throws IOException {
-		final Map<String, String> model = this.collaboraOnlineService.serverInfo();
-		final Map<QName, Serializable> properties = nodeService.getProperties(nodeRef);
-
-		final Version currentVersion = versionService.getCurrentVersion(nodeRef);
-
-		if (currentVersion != null) {
-			Date lastModifiedDate = currentVersion.getFrozenModifiedDate();
-			LocalDateTime modifiedDatetime = new LocalDateTime(lastModifiedDate);
-			model.put(LAST_MODIFIED_TIME, ISODateTimeFormat.dateTime().print(modifiedDatetime));
-			model.put(VERSION, currentVersion.getVersionLabel());
-		} else {
-			ensureVersioningEnabled(nodeRef);
-		}
-
-		// BaseFileName need extension, else COL load it in read-only mode
-		model.put(BASE_FILE_NAME, (String) properties.get(ContentModel.PROP_NAME));
-
-		model.put(OWNER_ID, properties.get(ContentModel.PROP_CREATOR).toString());
-		final ContentData contentData = (ContentData) properties.get(ContentModel.PROP_CONTENT);
-		model.put(SIZE, Long.toString(contentData.getSize()));
-
-		String userName = AuthenticationUtil.getRunAsUser();
-		NodeRef user = personService.getPerson(userName);
-		Serializable firstName = nodeService.getProperty(user, ContentModel.PROP_FIRSTNAME);
-		Serializable lastName = nodeService.getProperty(user, ContentModel.PROP_LASTNAME).toString();
-		if(firstName != null && lastName != null) {
-			model.put(USER_FRIENDLY_NAME, firstName.toString() + " " +  lastName.toString());
-		} else {
-			model.put(USER_FRIENDLY_NAME, userName);
-		}
-
-		model.put(USER_ID, userName);
-		model.put(USER_CAN_WRITE, Boolean.toString(userCanWrite(nodeRef)));
-		model.put(USER_FRIENDLY_NAME, userName);
-		boolean isAdmin = authorityService.isAdminAuthority(userName);
-		model.put(IS_ADMIN_USER, Boolean.toString(isAdmin));
-
-		// Add WOPI properties to hide Save As and Export buttons
-		model.put("UserCanNotWriteRelative", "true");
-
-		jsonResponse(res, 200, model);
+	protected String operation(final WebScriptRequest req) {
+		return "CheckFileInfo";
 	}
 
-	private void ensureVersioningEnabled(final NodeRef nodeRef) {
-		// Force Versioning
-		if (!nodeService.hasAspect(nodeRef, ContentModel.ASPECT_VERSIONABLE)) {
-			Map<QName, Serializable> props = new HashMap<>(1, 1.0f);
-
-			// should auto versioning be requested?
-			props.put(ContentModel.PROP_AUTO_VERSION, true);
-
-			// should auto versioning of properties be requested?
-			props.put(ContentModel.PROP_AUTO_VERSION_PROPS, false);
-
-			versionService.ensureVersioningEnabled(nodeRef, props);
-		}
+	/**
+	 * The autosaves still in the journal are written first, for their size and version
+	 */
+	@Override
+	protected void beforeTransaction(final NodeRef nodeRef) {
+		this.writeBehindJournal.flush(nodeRef);
 	}
 
-	private boolean userCanWrite(final NodeRef nodeRef) {
-		AccessStatus perm = permissionService.hasPermission(nodeRef, PermissionService.WRITE);
-		return AccessStatus.ALLOWED == perm;
+	/**
+	 * Properties are read in the read-only transaction of the permission check. When the response was built by the
+	 * open endpoint, they are only compared with the ones it was built from. Versioning is enabled when the token is issued, see
+	 * {@link CollaboraOnlineService#ensureVersioningEnabled(NodeRef)}.
+	 */
+	@Override
+	protected Object readMetadata(final WebScriptRequest req, final NodeRef nodeRef) {
+		final WOPIAccessTokenInfo tokenInfo = currentToken();
+		final Map<String, String> model = this.checkFileInfoBuilder.takePrecomputed(nodeRef, tokenInfo);
+		return model == null ? this.checkFileInfoBuilder.build(nodeRef, tokenInfo) : model;
 	}
 
-    public void setAuthorityService(AuthorityService authorityService) {
-	    this.authorityService = authorityService;
+	/**
+	 * The response is written without transaction
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void executeAsUser(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef)
+			throws IOException {
+		jsonResponse(res, 200, (Map<String, String>) metadata());
 	}
 
-	public void setPermissionService(PermissionService permissionService) {
-		this.permissionService = permissionService;
-	}
-	public void setPersonService(PersonService personService) {
-		this.personService = personService;
+	public void setCheckFileInfoBuilder(CheckFileInfoBuilder checkFileInfoBuilder) {
+		this.checkFileInfoBuilder = checkFileInfoBuilder;
 	}
 }
@@ -16,8 +16,8 @@ limitations under the License.
 */
 package fr.jeci.collabora.wopi;
 
+import fr.jeci.collabora.alfresco.ContentPrefetchCache;
 import org.alfresco.model.ContentModel;
-import org.alfresco.service.cmr.repository.ContentData;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.apache.commons.io.IOUtils;
@@ -39,26 +39,74 @@ public class WopiGetFileWebScript extends AbstractWopiWebScript {
 	 */
 	private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
 
+	private ContentPrefetchCache contentPrefetchCache;
+
 	@Override
-	public void executeAsUser(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef) {
-		final ContentData contentProp = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
-		res.setContentType(contentProp.getMimetype());
-		res.setContentEncoding(contentProp.getEncoding());
+	protected String operation(final WebScriptRequest req) {
+		return "GetFile";
+	}
+
+	/**
+	 * @return local copy of the content if it was prefetched, else the stream of the content store
+	 */
+	private InputStream openContent(final ContentReader reader) {
+		final InputStream prefetched = this.contentPrefetchCache.open(reader.getContentUrl());
+		if (prefetched != null) {
+			logger.debug("Serve prefetched content {}", reader.getContentUrl());
+			this.wopiMetrics.prefetch(true);
+			return prefetched;
+		}
+
+		if (this.contentPrefetchCache.isEnabled()) {
+			this.wopiMetrics.prefetch(false);
+		}
+		return reader.getContentInputStream();
+	}
+
+	/**
+	 * The autosaves still in the journal are written first
+	 */
+	@Override
+	protected void beforeTransaction(final NodeRef nodeRef) {
+		this.writeBehindJournal.flush(nodeRef);
+		endPhase("journalFlush");
+	}
 
-		final ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+	/**
+	 * The reader is resolved in the read-only transaction of the permission check
+	 */
+	@Override
+	protected Object readMetadata(final WebScriptRequest req, final NodeRef nodeRef) {
+		return contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+	}
 
+	/**
+	 * The content is streamed without transaction
+	 */
+	@Override
+	public void executeAsUser(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef) {
+		final ContentReader reader = (ContentReader) metadata();
 		if (reader == null) {
 			logger.error("No content reader for node={}", nodeRef);
 			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "No content reader for node=" + nodeRef);
 		}
 
-		try (InputStream inputStream = reader.getContentInputStream();) {
+		res.setContentType(reader.getMimetype());
+		res.setContentEncoding(reader.getEncoding());
+
+		try (InputStream inputStream = openContent(reader)) {
 			// We don't want to close the outputStream, this is done by Tomcat
 			long copied = IOUtils.copyLarge(inputStream, res.getOutputStream(), new byte[DEFAULT_BUFFER_SIZE]);
 
 			logger.debug("Stream copied {} bytes", copied);
+			recordPayload(operation(req), copied);
+			endPhase("stream");
 		} catch (IOException e) {
 			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Failed to copy content stream", e);
 		}
 	}
+
+	public void setContentPrefetchCache(ContentPrefetchCache contentPrefetchCache) {
+		this.contentPrefetchCache = contentPrefetchCache;
+	}
 }
@@ -19,6 +19,8 @@ package fr.jeci.collabora.wopi;
 public interface WopiHeader {
 	String X_LOOL_WOPI_IS_AUTOSAVE = "X-LOOL-WOPI-IsAutosave";
 	String X_LOOL_WOPI_TIMESTAMP = "X-LOOL-WOPI-Timestamp";
+	String X_LOOL_WOPI_IS_EXIT_SAVE = "X-LOOL-WOPI-IsExitSave";
+	String X_LOOL_WOPI_IS_MODIFIED_BY_USER = "X-LOOL-WOPI-IsModifiedByUser";
 	String X_WOPI_OVERRIDE = "X-WOPI-Override";
 	String X_WOPI_LOCK = "X-WOPI-Lock";
 	String X_WOPI_OLD_LOCK = "X-WOPI-OldLock";
@@ -0,0 +1,194 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.alfresco.micrometer.MetricsController;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micrometer meters for the WOPI endpoints.
+ * <p>
+ * Meters are registered in the Alfresco registry, so they are exported with the other repository metrics (Prometheus
+ * endpoint or JMX bridge). If metrics are disabled in Alfresco (<code>metrics.enabled=false</code>), every method is a
+ * no-op.
+ */
+public class WopiMetrics {
+	private static final Logger logger = LoggerFactory.getLogger(WopiMetrics.class);
+
+	static final String METER_REQUESTS = "collabora.wopi.requests";
+	static final String METER_PAYLOAD = "collabora.wopi.payload";
+	static final String METER_LOCK_CONFLICTS = "collabora.wopi.lock.conflicts";
+	static final String METER_TOKEN_RENEWALS = "collabora.wopi.token.renewals";
+	static final String METER_RENDITIONS = "collabora.wopi.renditions";
+	static final String METER_SAVE_ATTEMPTS = "collabora.wopi.save.attempts";
+	static final String METER_SAVE_LOCK_WAIT = "collabora.wopi.save.lock.wait";
+	static final String METER_REJECTED = "collabora.wopi.rejected";
+	static final String METER_PREFETCH = "collabora.wopi.prefetch";
+
+	static final String TAG_OPERATION = "operation";
+	static final String TAG_STATUS = "status";
+	static final String TAG_POOL = "pool";
+	static final String TAG_RESULT = "result";
+
+	private MetricsController metricsController;
+	private MeterRegistry registry;
+
+	private final AtomicLong renditionRequests = new AtomicLong();
+
+	public void init() {
+		if (this.metricsController != null && this.metricsController.isEnabled()) {
+			this.registry = this.metricsController.getRegistry();
+		}
+
+		logger.info("WOPI metrics {}", this.registry == null ? "disabled" : "enabled");
+	}
+
+	public boolean isEnabled() {
+		return this.registry != null;
+	}
+
+	/**
+	 * Record the latency of one WOPI request.
+	 *
+	 * @param operation     WOPI operation name (CheckFileInfo, GetFile, PutFile, Lock...)
+	 * @param status        HTTP status sent to Collabora
+	 * @param durationNanos elapsed time, from {@link System#nanoTime()}
+	 */
+	public void recordRequest(final String operation, final int status, final long durationNanos) {
+		if (this.registry == null) {
+			return;
+		}
+
+		Timer.builder(METER_REQUESTS).description("WOPI requests served to Collabora Online")
+				.tag(TAG_OPERATION, operation).tag(TAG_STATUS, Integer.toString(status)).publishPercentileHistogram()
+				.register(this.registry).record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Record the number of bytes read from (GetFile) or written to (PutFile, PutRelativeFile) the content store.
+	 */
+	public void recordPayload(final String operation, final long bytes) {
+		if (this.registry == null || bytes < 0) {
+			return;
+		}
+
+		DistributionSummary.builder(METER_PAYLOAD).description("Document size moved by WOPI requests")
+				.baseUnit("bytes").tag(TAG_OPERATION, operation).publishPercentileHistogram()
+				.register(this.registry).record(bytes);
+	}
+
+	/**
+	 * Count a 409 answer due to a lock mismatch.
+	 */
+	public void lockConflict(final String operation) {
+		if (this.registry == null) {
+			return;
+		}
+
+		Counter.builder(METER_LOCK_CONFLICTS).description("WOPI requests rejected with a lock conflict")
+				.tag(TAG_OPERATION, operation).register(this.registry).increment();
+	}
+
+	/**
+	 * Count a request rejected with a 503 because its bulkhead pool is full.
+	 */
+	public void rejected(final String operation, final String pool) {
+		if (this.registry == null) {
+			return;
+		}
+
+		Counter.builder(METER_REJECTED).description("WOPI requests rejected by the bulkhead")
+				.tag(TAG_OPERATION, operation).tag(TAG_POOL, pool).register(this.registry).increment();
+	}
+
+	/**
+	 * Count a GetFile served from the prefetched copy (hit) or from the content store (miss).
+	 */
+	public void prefetch(final boolean hit) {
+		if (this.registry == null) {
+			return;
+		}
+
+		Counter.builder(METER_PREFETCH).description("GetFile served from the prefetched content")
+				.tag(TAG_RESULT, hit ? "hit" : "miss").register(this.registry).increment();
+	}
+
+	/**
+	 * Count an expired access token renewed on the fly.
+	 */
+	public void tokenRenewal() {
+		if (this.registry == null) {
+			return;
+		}
+
+		Counter.builder(METER_TOKEN_RENEWALS).description("Expired WOPI access tokens renewed")
+				.register(this.registry).increment();
+	}
+
+	/**
+	 * Record the number of times the save transaction was run, 1 if there was no retry.
+	 */
+	public void recordSaveAttempts(final String operation, final int attempts) {
+		if (this.registry == null) {
+			return;
+		}
+
+		DistributionSummary.builder(METER_SAVE_ATTEMPTS).description("Transaction attempts per save")
+				.tag(TAG_OPERATION, operation).register(this.registry).record(attempts);
+	}
+
+	/**
+	 * Record the time spent waiting for the save lock of a document.
+	 */
+	public void recordSaveLockWait(final long durationNanos) {
+		if (this.registry == null) {
+			return;
+		}
+
+		Timer.builder(METER_SAVE_LOCK_WAIT).description("Wait for the save lock of a document")
+				.register(this.registry).record(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Count renditions asked after a save. The count is kept even if metrics are disabled, for the admin console.
+	 */
+	public void renditionRequested(final int count) {
+		this.renditionRequests.addAndGet(count);
+		if (this.registry == null) {
+			return;
+		}
+
+		Counter.builder(METER_RENDITIONS).description("Renditions asked after a save")
+				.register(this.registry).increment(count);
+	}
+
+	public long getRenditionRequests() {
+		return this.renditionRequests.get();
+	}
+
+	public void setMetricsController(MetricsController metricsController) {
+		this.metricsController = metricsController;
+	}
+}
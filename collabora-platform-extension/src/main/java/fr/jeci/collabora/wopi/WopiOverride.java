@@ -2,16 +2,26 @@ package fr.jeci.collabora.wopi;
 
 public enum WopiOverride {
 	// Put with no Lock
-	PUT,
+	PUT("Put"),
 	// Save As
-	PUT_RELATIVE,
+	PUT_RELATIVE("PutRelativeFile"),
 	// Ask for Lock
-	LOCK,
+	LOCK("Lock"),
 	// Query Lock Key
-	GET_LOCK,
+	GET_LOCK("GetLock"),
 	// Refresh Lock
-	REFRESH_LOCK,
+	REFRESH_LOCK("RefreshLock"),
 	// Remove Lock
-	UNLOCK
-	
+	UNLOCK("Unlock");
+
+	// WOPI operation name
+	private final String operation;
+
+	WopiOverride(String operation) {
+		this.operation = operation;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
 }
@@ -16,12 +16,14 @@ limitations under the License.
 */
 package fr.jeci.collabora.wopi;
 
+import fr.jeci.collabora.alfresco.CollaboraOnlineModel;
 import fr.jeci.collabora.alfresco.ConflictException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.version.Version;
-import org.joda.time.LocalDateTime;
-import org.joda.time.format.ISODateTimeFormat;
+import org.alfresco.service.namespace.QName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.extensions.webscripts.Status;
@@ -29,18 +31,21 @@ import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 import org.springframework.extensions.webscripts.WebScriptResponse;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
 import java.time.DateTimeException;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Put the binary content into Alfresco.
  * <br>
- * The X-LOOL-WOPI-Timestamp is compare with PROP_FROZEN_MODIFIED or PROP_CREATED_DATE from the current version of the
- * target file.
+ * The X-LOOL-WOPI-Timestamp is compare with PROP_FROZEN_MODIFIED from the current version of the target file. This
+ * date is cached with the version label, so the version store is not read on each save.
  * <br>
  * We can change aspect or properties with specific headers, but these changes will not trigger policy.
  * <ul>
@@ -50,68 +55,327 @@ import java.util.Map;
  *    <li>X-PRISTY-ADD-PROPERTY</li>
  * </ul>
  * It is safer to upload the file, then change metadata or aspect in another call.
+ * <br>
+ * The timestamp check, the lock, the content, the version and the header actions are committed in one transaction.
+ * The body is copied to a temporary file first, so the transaction can be retried. Saves of the same document are
+ * serialized by {@link DocumentSaveLock}.
+ * <br>
+ * With the write-behind journal, an autosave is acknowledged once the checks are committed and the body is synced to
+ * the journal, the content and the version are written later, see {@link WriteBehindJournal}. The timestamp
+ * acknowledged to Collabora Online is kept on the node with the version (collabora:journaledVersion) until a save
+ * which is not journaled.
+ * <br>
+ * The version, the renditions and the release of the document depend on the kind of save (autosave, explicit, exit or
+ * unmodified), see {@link SavePolicy}.
  *
  * @author jlesage
  */
-public class WopiPutFileWebScript extends AbstractWopiWebScript {
+public class WopiPutFileWebScript extends AbstractWopiWebScript implements WriteBehindJournal.Applier {
 	private static final Logger logger = LoggerFactory.getLogger(WopiPutFileWebScript.class);
 
+	private DocumentSaveLock documentSaveLock;
+	private SavePolicy savePolicy = new SavePolicy();
+
+	@Override
+	protected String operation(final WebScriptRequest req) {
+		return "PutFile";
+	}
+
+	@Override
+	protected WopiBulkhead.Pool pool(final WebScriptRequest req) {
+		return WopiBulkhead.Pool.SAVE;
+	}
+
+	@Override
+	protected boolean isBackground(final WebScriptRequest req) {
+		return hasAutosaveHeader(req);
+	}
+
 	@Override
 	public void executeAsUser(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef)
 			throws IOException {
 		final boolean isAutosave = hasAutosaveHeader(req);
+		final String lockId = req.getHeader(X_WOPI_LOCK);
+		final SavePolicy.SaveKind kind = SavePolicy.SaveKind.of(isAutosave, req.getHeader(X_LOOL_WOPI_IS_EXIT_SAVE),
+				req.getHeader(X_LOOL_WOPI_IS_MODIFIED_BY_USER));
+		final SavePolicy.Rule rule = this.savePolicy.rule(kind);
+		logger.debug("{} save of {} : {}", kind, nodeRef, rule);
 
-		checkWopiTimestamp(req, res, nodeRef);
-
-		final InputStream inputStream = req.getContent().getInputStream();
-		if (inputStream == null) {
-			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "No inputStream");
+		// An exit save is written before the response, the session ends
+		if (kind == SavePolicy.SaveKind.AUTOSAVE && this.writeBehindJournal.isEnabled() && !hasHeaderActions(req)) {
+			executeJournaled(req, res, nodeRef, lockId);
+			return;
 		}
 
+		// Body is read once, the transaction can be retried
+		final File spool = spoolContent(req, operation(req));
 		try {
-			final String lockId = req.getHeader(X_WOPI_LOCK);
-			collaboraOnlineService.lockSteal(nodeRef, lockId);
-			final Version newVersion = writeFileToDisk(inputStream, isAutosave, nodeRef);
+			endPhase("spool");
+
+			final SaveResult result;
+			final long lockStartNs = System.nanoTime();
+			try (DocumentSaveLock.Lock lock = this.documentSaveLock.acquire(nodeRef)) {
+				this.wopiMetrics.recordSaveLockWait(System.nanoTime() - lockStartNs);
+				endPhase("saveLock");
+
+				// In the lock, no autosave can be journaled meanwhile
+				this.writeBehindJournal.flush(nodeRef);
+				endPhase("journalFlush");
+
+				final AtomicInteger attempts = new AtomicInteger();
+				result = retryingTransactionHelper.doInTransaction(() -> {
+					attempts.incrementAndGet();
+					return save(req, nodeRef, lockId, spool, isAutosave, rule);
+				}, false, true);
+				endPhase("commit");
+
+				this.wopiMetrics.recordSaveAttempts(operation(req), attempts.get());
+				if (attempts.get() > 1) {
+					logger.debug("Save of {} committed after {} attempts", nodeRef, attempts.get());
+				}
+			}
+
+			if (respondCheckFailure(req, res, result)) {
+				return;
+			}
+
+			rememberVersion(nodeRef, result.version);
 
 			final Map<String, String> model = new HashMap<>(1);
-			if (newVersion == null) {
+			if (result.version != null) {
+				putLastModifiedTime(nodeRef, result.version, model);
+			} else if (result.currentModified != null) {
+				model.put(LAST_MODIFIED_TIME, WopiTimestamp.print(result.currentModified));
+			} else {
 				logger.warn("No version create for {}", nodeRef);
 				model.put("warn", "No version create for " + nodeRef);
-			} else {
-				// WARN: To policy trigger with these actions
-				headerActions(req, nodeRef);
-
-				putLastModifiedTime(nodeRef, newVersion, model);
 			}
 
 			jsonResponse(res, Status.STATUS_OK, model);
 
-			// Ask rendition only at last
-			if (!isAutosave) {
-				askForRendition(nodeRef);
+			if (rule.isRelease()) {
+				this.collaboraOnlineService.clearDocumentMarker(nodeRef);
+			}
+
+			// Ask rendition only at last, the descriptor has no transaction
+			if (rule.isRenditions()) {
+				retryingTransactionHelper.doInTransaction(() -> {
+					askForRendition(nodeRef);
+					return null;
+				}, false, true);
+				endPhase("rendition");
 			}
 
 		} catch (ContentIOException we) {
 			final String msg = "Error writing to file";
 			logger.error(msg, we);
 			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, msg);
-		} catch (ConflictException e) {
-			logger.debug("ConflictException {}={};{}={}", X_WOPI_LOCK, e.getCurrentLockId(), X_WOPI_LOCK_FAILURE_REASON,
-					e.getLockFailureReason());
+		} finally {
+			deleteSpool(spool);
+		}
+
+	}
+
+	/**
+	 * Autosave acknowledged once the checks are committed and the body is in the journal. The response keeps the
+	 * X-LOOL-WOPI-Timestamp sent by Collabora Online, the version doesn't exist yet.
+	 */
+	private void executeJournaled(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef,
+			final String lockId) throws IOException {
+		final String timestamp = req.getHeader(X_LOOL_WOPI_TIMESTAMP);
+		final InputStream body = req.getContent().getInputStream();
+		if (body == null) {
+			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "No inputStream");
+		}
+
+		WriteBehindJournal.Record record = null;
+		try {
+			// Synced before the checks, out of the save lock
+			try (InputStream in = body) {
+				record = this.writeBehindJournal.write(nodeRef, AuthenticationUtil.getRunAsUser(), timestamp, in);
+			}
+			recordPayload(operation(req), record.getBodyLength());
+			endPhase("journal");
+
+			final long lockStartNs = System.nanoTime();
+			try (DocumentSaveLock.Lock lock = this.documentSaveLock.acquire(nodeRef)) {
+				this.wopiMetrics.recordSaveLockWait(System.nanoTime() - lockStartNs);
+				endPhase("saveLock");
+
+				final SaveResult result = retryingTransactionHelper.doInTransaction(() -> {
+					final SaveResult checked = new SaveResult();
+					check(req, nodeRef, lockId, checked);
+					return checked;
+				}, false, true);
+				endPhase("commit");
+
+				if (respondCheckFailure(req, res, result)) {
+					return;
+				}
+
+				this.writeBehindJournal.commit(record);
+				record = null;
+				endPhase("journalCommit");
+			}
+
+			final Map<String, String> model = new HashMap<>(1);
+			if (timestamp != null) {
+				model.put(LAST_MODIFIED_TIME, timestamp);
+			}
+			jsonResponse(res, Status.STATUS_OK, model);
+		} finally {
+			this.writeBehindJournal.discard(record);
+		}
+	}
+
+	/**
+	 * Write an autosave from the journal, as the user who saved it. No lock or timestamp check, they were done before
+	 * the autosave was acknowledged. The acknowledged timestamp is kept with the new version : Collabora Online still
+	 * sends it with its next save.
+	 */
+	@Override
+	public String apply(final WriteBehindJournal.Record record) {
+		final NodeRef nodeRef = record.getNodeRef();
+		final SavePolicy.VersionMode mode = this.savePolicy.rule(SavePolicy.SaveKind.AUTOSAVE).getVersion();
+		final Version version = AuthenticationUtil.runAs(() -> retryingTransactionHelper.doInTransaction(() -> {
+			writeContent(record::openBody, nodeRef);
+			if (mode == SavePolicy.VersionMode.NONE) {
+				return null;
+			}
+			final Version created = createVersion(true, mode == SavePolicy.VersionMode.THINNED, nodeRef);
+			if (record.getTimestamp() != null) {
+				final Map<QName, Serializable> marker = new HashMap<>(2);
+				marker.put(CollaboraOnlineModel.PROP_JOURNALED_LABEL, created.getVersionLabel());
+				marker.put(CollaboraOnlineModel.PROP_JOURNALED_TIMESTAMP, record.getTimestamp());
+				mark(nodeRef, marker);
+			}
+			return created;
+		}, false, true), record.getUserName());
+
+		rememberVersion(nodeRef, version);
+		return version == null ? null : version.getVersionLabel();
+	}
+
+	/**
+	 * Write the 409 response of a failed check
+	 *
+	 * @return true if a check failed
+	 */
+	private boolean respondCheckFailure(final WebScriptRequest req, final WebScriptResponse res,
+			final SaveResult result) throws IOException {
+		if (result.timestampMismatch) {
+			// Document changed since Collabora loaded it, Collabora Online will ask the user
+			final Map<String, String> model = new HashMap<>(1);
+			model.put("LOOLStatusCode", "1010");
+			jsonResponse(res, STATUS_CONFLICT, model);
+			return true;
+		}
+
+		if (result.conflict != null) {
+			final ConflictException e = result.conflict;
+			this.wopiMetrics.lockConflict(operation(req));
+			logger.debug("ConflictException {}={};{}={}", X_WOPI_LOCK, e.getCurrentLockId(),
+					X_WOPI_LOCK_FAILURE_REASON, e.getLockFailureReason());
 
 			res.setHeader(X_WOPI_LOCK, e.getCurrentLockId());
 			res.setHeader(X_WOPI_LOCK_FAILURE_REASON, e.getLockFailureReason());
 			jsonResponse(res, STATUS_CONFLICT, e.getLockFailureReason());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Timestamp check and lock, in the transaction of the save
+	 *
+	 * @return false if a check failed, the reason is set in the result
+	 */
+	private boolean check(final WebScriptRequest req, final NodeRef nodeRef, final String lockId,
+			final SaveResult result) {
+		if (!checkWopiTimestamp(req, nodeRef)) {
+			result.timestampMismatch = true;
+			return false;
+		}
+		endPhase("timestamp");
+
+		try {
+			collaboraOnlineService.lockSteal(nodeRef, lockId);
+		} catch (ConflictException e) {
+			result.conflict = e;
+			return false;
+		}
+		endPhase("lockSteal");
+		return true;
+	}
+
+	/**
+	 * Save in one transaction : timestamp check, lock, content, version, header actions and release. Nothing is written
+	 * if a check fails.
+	 */
+	private SaveResult save(final WebScriptRequest req, final NodeRef nodeRef, final String lockId, final File spool,
+			final boolean isAutosave, final SavePolicy.Rule rule) throws IOException {
+		final SaveResult result = new SaveResult();
+		if (!check(req, nodeRef, lockId, result)) {
+			return result;
+		}
+
+		writeContent(() -> new FileInputStream(spool), nodeRef);
+		endPhase("write");
+
+		if (rule.getVersion() == SavePolicy.VersionMode.NONE) {
+			// LastModifiedTime of the current version, checked by the next save : from cm:versionLabel and the
+			// cache of the last saves, the version store is read only if the label is not in the cache
+			result.currentModified = currentVersionModified(nodeRef,
+					nodeService.getProperty(nodeRef, ContentModel.PROP_VERSION_LABEL));
+		} else {
+			result.version = createVersion(isAutosave, rule.getVersion() == SavePolicy.VersionMode.THINNED, nodeRef);
+		}
+		if (nodeService.hasAspect(nodeRef, CollaboraOnlineModel.ASPECT_JOURNALED_VERSION)) {
+			// Collabora Online gets the timestamp of the current version from now on
+			unmark(nodeRef, CollaboraOnlineModel.ASPECT_JOURNALED_VERSION);
+		}
+		endPhase("version");
+
+		if (result.version != null || result.currentModified != null) {
+			// WARN: To policy trigger with these actions
+			headerActions(req, nodeRef);
+			endPhase("headerActions");
 		}
 
+		if (rule.isRelease()) {
+			release(nodeRef, lockId);
+			endPhase("release");
+		}
+		return result;
+	}
+
+	/**
+	 * Unlock the document after the save, the UNLOCK sent next by Collabora Online finds no lock and succeeds.
+	 */
+	private void release(final NodeRef nodeRef, final String lockId) {
+		try {
+			collaboraOnlineService.lockUnlock(nodeRef, lockId);
+		} catch (ConflictException e) {
+			// Locked by lockSteal in this transaction, only a blank lock-id fails
+			logger.debug("No release of {} : {}", nodeRef, e.getLockFailureReason());
+		}
+	}
+
+	/**
+	 * Outcome of the save transaction
+	 */
+	private static final class SaveResult {
+		private Version version;
+		private ConflictException conflict;
+		private boolean timestampMismatch;
+		/** Modified date of the current version (epoch ms) when no version is created */
+		private Long currentModified;
 	}
 
 	private void putLastModifiedTime(final NodeRef nodeRef, final Version newVersion, final Map<String, String> model) {
 		logger.info("Modifier for the above nodeRef [{}] is: {}", nodeRef, newVersion.getFrozenModifier());
 
-		Date newModified = newVersion.getFrozenModifiedDate();
-		LocalDateTime modifiedDatetime = new LocalDateTime(newModified);
-		model.put(LAST_MODIFIED_TIME, ISODateTimeFormat.dateTime().print(modifiedDatetime));
+		model.put(LAST_MODIFIED_TIME, WopiTimestamp.print(newVersion.getFrozenModifiedDate().getTime()));
 	}
 
 	private boolean hasAutosaveHeader(final WebScriptRequest req) {
@@ -129,25 +393,48 @@ public class WopiPutFileWebScript extends AbstractWopiWebScript {
 	}
 
 	/**
-	 * Check the creation/modification date for current version. No check is there is no version, because the cm:modified
-	 * is change for any change of a properties.
+	 * Check the modification date of the current version. No check is there is no version, because the cm:modified is
+	 * change for any change of a properties.
+	 *
+	 * @return true if the save can continue
 	 */
-	private void checkWopiTimestamp(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef)
-			throws IOException {
-		final Version currentVersion = versionService.getCurrentVersion(nodeRef);
-
-		if (currentVersion != null) {
-			// Check if X-LOOL-WOPI-Timestamp
-			final String hdrTimestamp = req.getHeader(X_LOOL_WOPI_TIMESTAMP);
-			final Date modified = currentVersion.getFrozenModifiedDate();
+	private boolean checkWopiTimestamp(final WebScriptRequest req, final NodeRef nodeRef) {
+		// Check if X-LOOL-WOPI-Timestamp
+		final String hdrTimestamp = req.getHeader(X_LOOL_WOPI_TIMESTAMP);
+		logger.debug("{}='{}'", X_LOOL_WOPI_TIMESTAMP, hdrTimestamp);
+		if (hdrTimestamp == null) {
+			// Ignore if no X-LOOL-WOPI-Timestamp
+			return true;
+		}
 
-			logger.debug("{}='{}'", X_LOOL_WOPI_TIMESTAMP, hdrTimestamp);
+		final Map<QName, Serializable> properties = nodeService.getProperties(nodeRef);
+		final Serializable versionLabel = properties.get(ContentModel.PROP_VERSION_LABEL);
+		if (isJournaledVersion(hdrTimestamp, versionLabel, properties)) {
+			// Version written from the journal after the last acknowledged autosave
+			return true;
+		}
+		final Long modified = currentVersionModified(nodeRef, versionLabel);
+		return modified == null || checkTimestamp(hdrTimestamp, modified);
+	}
 
-			if (!checkTimestamp(hdrTimestamp, modified)) {
-				final Map<String, String> model = new HashMap<>(1);
-				model.put("LOOLStatusCode", "1010");
-				jsonResponse(res, STATUS_CONFLICT, model);
-			}
+	/**
+	 * Collabora Online still sends the timestamp of the version it had when the autosave was journaled.
+	 *
+	 * @param hdrTimestamp X-LOOL-WOPI-Timestamp of the request
+	 * @param versionLabel current version label of the document
+	 * @return true if the current version was written from the journal and acknowledged with the same timestamp
+	 */
+	static boolean isJournaledVersion(final String hdrTimestamp, final Serializable versionLabel,
+			final Map<QName, Serializable> properties) {
+		final Serializable journaled = properties.get(CollaboraOnlineModel.PROP_JOURNALED_TIMESTAMP);
+		if (versionLabel == null || journaled == null
+				|| !versionLabel.equals(properties.get(CollaboraOnlineModel.PROP_JOURNALED_LABEL))) {
+			return false;
+		}
+		try {
+			return WopiTimestamp.parse(hdrTimestamp) == WopiTimestamp.parse(journaled.toString());
+		} catch (DateTimeException | IllegalArgumentException e) {
+			return false;
 		}
 	}
 
@@ -155,28 +442,21 @@ public class WopiPutFileWebScript extends AbstractWopiWebScript {
 	 * Check if X-LOOL-WOPI-Timestamp is equal to PROP_FROZEN_MODIFIED
 	 *
 	 * @param hdrTimestamp "X-LOOL-WOPI-Timestamp"
-	 * @param modified     PROP_FROZEN_MODIFIED
+	 * @param modified     PROP_FROZEN_MODIFIED in epoch ms
 	 * @return true if timestamps are equal
 	 */
-	private boolean checkTimestamp(final String hdrTimestamp, final Date modified) {
-
-		if (hdrTimestamp == null) {
-			// Ignore if no X-LOOL-WOPI-Timestamp
-			return true;
-		}
-		LocalDateTime loolTimestamp;
+	private boolean checkTimestamp(final String hdrTimestamp, final long modified) {
+		final long loolTimestamp;
 		try {
 			// 2011-02-24T16:16:37.300000Z or 2022-04-08T08:29:01.355
-			loolTimestamp = LocalDateTime.parse(hdrTimestamp, ISODateTimeFormat.dateTimeParser());
+			loolTimestamp = WopiTimestamp.parse(hdrTimestamp);
 		} catch (DateTimeException | IllegalArgumentException e) {
 			logger.error("checkTimestamp Error : {}", e.getMessage());
 			return false;
 		}
 
 		// Check X_LOOL_WOPI_TIMESTAMP header
-		final LocalDateTime localDate = new LocalDateTime(modified);
-
-		if (loolTimestamp.compareTo(localDate) != 0) {
+		if (loolTimestamp != modified) {
 			logger.debug("PROP_FROZEN_MODIFIED : {}", modified);
 			logger.debug("{} : {}", X_LOOL_WOPI_TIMESTAMP, hdrTimestamp);
 			logger.error("checkTimestamp Error : {} is different than PROP_MODIFIED", X_LOOL_WOPI_TIMESTAMP);
@@ -185,4 +465,12 @@ public class WopiPutFileWebScript extends AbstractWopiWebScript {
 
 		return true;
 	}
+
+	public void setDocumentSaveLock(DocumentSaveLock documentSaveLock) {
+		this.documentSaveLock = documentSaveLock;
+	}
+
+	public void setSavePolicy(SavePolicy savePolicy) {
+		this.savePolicy = savePolicy;
+	}
 }
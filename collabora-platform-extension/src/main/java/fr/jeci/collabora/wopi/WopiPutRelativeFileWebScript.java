@@ -24,6 +24,7 @@ import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.cmr.repository.*;
 import org.alfresco.service.namespace.QName;
 import org.alfresco.util.Utf7;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -60,6 +61,35 @@ public class WopiPutRelativeFileWebScript extends AbstractWopiWebScript {
 
 	private CopyService copyService;
 
+	/**
+	 * @return the WOPI operation selected by the X-WOPI-Override header
+	 */
+	@Override
+	protected String operation(final WebScriptRequest req) {
+		final String wopiOverrideHeader = req.getHeader(X_WOPI_OVERRIDE);
+		if (wopiOverrideHeader != null) {
+			try {
+				return WopiOverride.valueOf(wopiOverrideHeader).getOperation();
+			} catch (IllegalArgumentException e) {
+				// unknown value, rejected by wopiOverrideSwitch
+			}
+		}
+		return WopiOverride.PUT_RELATIVE.getOperation();
+	}
+
+	/**
+	 * @return SAVE for a PutRelativeFile, LOCK for lock operations
+	 */
+	@Override
+	protected WopiBulkhead.Pool pool(final WebScriptRequest req) {
+		final String operation = operation(req);
+		if (WopiOverride.PUT_RELATIVE.getOperation().equals(operation)
+				|| WopiOverride.PUT.getOperation().equals(operation)) {
+			return WopiBulkhead.Pool.SAVE;
+		}
+		return WopiBulkhead.Pool.LOCK;
+	}
+
 	@Override
 	public void executeAsUser(final WebScriptRequest req, final WebScriptResponse res, final NodeRef nodeRef)
 			throws IOException {
@@ -78,6 +108,7 @@ public class WopiPutRelativeFileWebScript extends AbstractWopiWebScript {
 			jsonResponse(res, Status.STATUS_OK, model);
 
 		} catch (ConflictException e) {
+			this.wopiMetrics.lockConflict(operation(req));
 			logger.debug("ConflictException {}={};{}={}", X_WOPI_LOCK, e.getCurrentLockId(), X_WOPI_LOCK_FAILURE_REASON,
 					e.getLockFailureReason());
 
@@ -145,13 +176,15 @@ public class WopiPutRelativeFileWebScript extends AbstractWopiWebScript {
 	private Map<String, String> saveAs(WebScriptRequest req, NodeRef newNodeRef) {
 		logger.debug("saveAs newNodeRef={}", newNodeRef);
 
-		final InputStream inputStream = req.getContent().getInputStream();
-		if (inputStream == null) {
+		final InputStream body = req.getContent().getInputStream();
+		if (body == null) {
 			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "No inputStream");
 		}
+		final CountingInputStream inputStream = new CountingInputStream(body);
 
 		try {
 			writeFileToDisk(inputStream, false, newNodeRef);
+			recordPayload(WopiOverride.PUT_RELATIVE.getOperation(), inputStream.getByteCount());
 
 			askForRendition(newNodeRef);
 
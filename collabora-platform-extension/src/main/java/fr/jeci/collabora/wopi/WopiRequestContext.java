@@ -0,0 +1,195 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import fr.jeci.collabora.alfresco.WOPIAccessTokenInfo;
+import fr.jeci.collabora.jfr.WopiRequestEvent;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.springframework.extensions.webscripts.Status;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * State of the WOPI request being executed by the current thread. Webscripts are singletons, so everything specific to
+ * one request is kept here instead of in fields.
+ */
+final class WopiRequestContext {
+	private static final ThreadLocal<WopiRequestContext> CURRENT = new ThreadLocal<>();
+
+	private final String operation;
+	private final long startNs;
+	private final WopiRequestEvent event = new WopiRequestEvent();
+	private final Map<String, Long> phases = new LinkedHashMap<>(8);
+	private long phaseStartNs;
+	private int status = Status.STATUS_OK;
+	private long bytes = -1;
+	private NodeRef nodeRef;
+	private String userName;
+	private WOPIAccessTokenInfo token;
+	private Object metadata;
+
+	private WopiRequestContext(final String operation) {
+		this.operation = operation;
+		this.startNs = System.nanoTime();
+		this.phaseStartNs = this.startNs;
+		this.event.begin();
+	}
+
+	static WopiRequestContext begin(final String operation) {
+		WopiRequestContext context = new WopiRequestContext(operation);
+		CURRENT.set(context);
+		return context;
+	}
+
+	/**
+	 * @return context of the current request, or null outside a WOPI request
+	 */
+	static WopiRequestContext current() {
+		return CURRENT.get();
+	}
+
+	static void end() {
+		CURRENT.remove();
+	}
+
+	String getOperation() {
+		return operation;
+	}
+
+	long getStartNs() {
+		return startNs;
+	}
+
+	long elapsedNs() {
+		return System.nanoTime() - startNs;
+	}
+
+	int getStatus() {
+		return status;
+	}
+
+	void setStatus(int status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return access token of the request, with the permissions of the user
+	 */
+	WOPIAccessTokenInfo getToken() {
+		return token;
+	}
+
+	void setToken(WOPIAccessTokenInfo token) {
+		this.token = token;
+	}
+
+	/**
+	 * @return what the operation read in the transaction of the permission check
+	 */
+	Object getMetadata() {
+		return metadata;
+	}
+
+	void setMetadata(Object metadata) {
+		this.metadata = metadata;
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+
+	void setBytes(long bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * End the current phase. The phase started at the end of the previous one, or at the beginning of the request. If
+	 * the same phase is ended twice, durations are added.
+	 *
+	 * @param phase name of the phase (token, lockSteal, write...)
+	 */
+	void endPhase(final String phase) {
+		final long now = System.nanoTime();
+		this.phases.merge(phase, now - this.phaseStartNs, Long::sum);
+		this.phaseStartNs = now;
+	}
+
+	/**
+	 * @return duration of each phase in ns, in order of execution
+	 */
+	Map<String, Long> getPhases() {
+		return phases;
+	}
+
+	/**
+	 * @return duration of a phase in ns, 0 if the request had no such phase
+	 */
+	long phase(final String phase) {
+		return this.phases.getOrDefault(phase, 0L);
+	}
+
+	/**
+	 * One line summary of the request, with key=value pairs, durations in ms
+	 */
+	String summary() {
+		final StringBuilder sb = new StringBuilder(160);
+		sb.append("operation=").append(this.operation);
+		sb.append(" status=").append(this.status);
+		sb.append(" nodeRef=").append(this.nodeRef);
+		sb.append(" user=").append(this.userName);
+		if (this.bytes >= 0) {
+			sb.append(" bytes=").append(this.bytes);
+		}
+		sb.append(" totalMs=").append(TimeUnit.NANOSECONDS.toMillis(elapsedNs()));
+		for (Entry<String, Long> phase : this.phases.entrySet()) {
+			sb.append(' ').append(phase.getKey()).append("Ms=").append(TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Set the document and the user on the JFR event, once the access token is checked.
+	 */
+	void setFile(final NodeRef nodeRef, final String userName) {
+		this.nodeRef = nodeRef;
+		this.userName = userName;
+		if (this.event.isEnabled()) {
+			this.event.setNodeRef(String.valueOf(nodeRef));
+			this.event.setUserName(userName);
+		}
+	}
+
+	/**
+	 * Commit the JFR event of this request, if a recording is running.
+	 */
+	void commitEvent() {
+		this.event.end();
+		if (this.event.shouldCommit()) {
+			this.event.setOperation(this.operation);
+			this.event.setStatus(this.status);
+			this.event.setBytes(this.bytes);
+			this.event.setTokenDuration(phase("token") + phase("permissions"));
+			this.event.setLockDuration(phase("saveLock") + phase("lockSteal"));
+			this.event.setWriteDuration(phase("write") + phase("journal"));
+			this.event.setVersionDuration(phase("version"));
+			this.event.commit();
+		}
+	}
+}
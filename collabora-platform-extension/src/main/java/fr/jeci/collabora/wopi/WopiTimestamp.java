@@ -0,0 +1,124 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.time.ZoneId;
+
+/**
+ * Parse and print the X-LOOL-WOPI-Timestamp header and the LastModifiedTime of CheckFileInfo.
+ * <p>
+ * Timestamps are local date-time of the server : the time zone or offset sent by Collabora Online is ignored, as it
+ * was with <code>LocalDateTime.parse(header, ISODateTimeFormat.dateTimeParser())</code>.
+ */
+final class WopiTimestamp {
+
+	private WopiTimestamp() {
+		// No Constructor
+	}
+
+	/**
+	 * Parse a timestamp to epoch ms, in the default time zone. The common form
+	 * <code>yyyy-MM-ddTHH:mm:ss[.SSS...][Z|+hh:mm]</code> is read without allocation, other ISO forms are delegated to
+	 * Joda.
+	 *
+	 * @param timestamp 2011-02-24T16:16:37.300000Z or 2022-04-08T08:29:01.355
+	 * @return epoch ms, fraction truncated to the millisecond
+	 * @throws IllegalArgumentException or DateTimeException if the timestamp is invalid
+	 */
+	static long parse(final String timestamp) {
+		final int len = timestamp.length();
+		if (len < 19 || timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-' || timestamp.charAt(10) != 'T'
+				|| timestamp.charAt(13) != ':' || timestamp.charAt(16) != ':') {
+			return parseIso(timestamp);
+		}
+
+		final int year = digits(timestamp, 0, 4);
+		final int month = digits(timestamp, 5, 2);
+		final int day = digits(timestamp, 8, 2);
+		final int hour = digits(timestamp, 11, 2);
+		final int minute = digits(timestamp, 14, 2);
+		final int second = digits(timestamp, 17, 2);
+		if (year < 0 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) {
+			return parseIso(timestamp);
+		}
+
+		int millis = 0;
+		int i = 19;
+		if (i < len && (timestamp.charAt(i) == '.' || timestamp.charAt(i) == ',')) {
+			++i;
+			int scale = 100;
+			final int start = i;
+			while (i < len && isDigit(timestamp.charAt(i))) {
+				millis += scale * (timestamp.charAt(i) - '0');
+				scale /= 10;
+				++i;
+			}
+			if (i == start) {
+				return parseIso(timestamp);
+			}
+		}
+
+		// Offset is ignored, see class comment
+		if (i < len && !isOffset(timestamp, i)) {
+			return parseIso(timestamp);
+		}
+
+		return java.time.LocalDateTime.of(year, month, day, hour, minute, second).atZone(ZoneId.systemDefault())
+				.toInstant().toEpochMilli() + millis;
+	}
+
+	/**
+	 * Print epoch ms as a local date-time with milliseconds, like 2022-04-08T08:29:01.355
+	 */
+	static String print(final long epochMs) {
+		return ISODateTimeFormat.dateTime().print(new LocalDateTime(epochMs));
+	}
+
+	private static long parseIso(final String timestamp) {
+		return LocalDateTime.parse(timestamp, ISODateTimeFormat.dateTimeParser()).toDate().getTime();
+	}
+
+	private static boolean isOffset(final String s, final int i) {
+		final char c = s.charAt(i);
+		if (c == 'Z') {
+			return i + 1 == s.length();
+		}
+		return (c == '+' || c == '-') && s.length() - i <= 6;
+	}
+
+	/**
+	 * @return the number in s[start, start+count[, or -1 if a char is not a digit
+	 */
+	private static int digits(final String s, final int start, final int count) {
+		int value = 0;
+		for (int i = start; i < start + count; ++i) {
+			final char c = s.charAt(i);
+			if (!isDigit(c)) {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isDigit(final char c) {
+		return c >= '0' && c <= '9';
+	}
+}
@@ -0,0 +1,498 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package fr.jeci.collabora.wopi;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.AbstractLifecycleBean;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Write-behind of the autosaves. An autosave is acknowledged once its body is synced to a local record file, the
+ * content and the version are written later by a background thread.
+ * <p>
+ * Records are files named by a sequence number, in <code>fr.jeci.collabora.wopi.journal.dir</code>. The records of one
+ * document are applied in order (a document is mapped on one of the worker threads), and the file is deleted once
+ * committed. The records left at startup are applied again, once the repository is started. A record that can't be
+ * applied is moved to the <code>failed</code> sub-directory, and the next {@link #flush(NodeRef)} of the document fails
+ * so Collabora Online sends the document again.
+ * <p>
+ * Collabora Online keeps the X-LOOL-WOPI-Timestamp of its last acknowledged save : the applier keeps it on the node
+ * with the version created from the record, so the next save is accepted with that timestamp.
+ * <p>
+ * The records are local : all WOPI requests of a document must reach the same Alfresco server. In a cluster, the
+ * journal is refused unless this affinity is declared by <code>fr.jeci.collabora.wopi.journal.affinity=true</code>.
+ */
+public class WriteBehindJournal extends AbstractLifecycleBean {
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindJournal.class);
+
+	private static final int MAGIC = 0x574f5049; // WOPI
+	private static final int VERSION = 1;
+	private static final int TRAILER_BYTES = 16;
+	private static final String RECORD_SUFFIX = ".wal";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String FAILED_DIR = "failed";
+
+	/**
+	 * Write the content and the version of a record, in its own transaction
+	 */
+	public interface Applier {
+		/**
+		 * @return label of the version created, null if none
+		 */
+		String apply(Record record) throws IOException;
+	}
+
+	private boolean enabled;
+	private boolean cluster;
+	private boolean affinity;
+	private File dir;
+	private int threads = 2;
+	private long flushTimeoutMs = 60_000;
+	private Applier applier;
+
+	private ExecutorService[] workers;
+	private final AtomicLong sequence = new AtomicLong();
+	/** Last record submitted for each document */
+	private final ConcurrentHashMap<String, Future<?>> lastTasks = new ConcurrentHashMap<>();
+	/** Record not applied for each document, until the next flush or the next record applied */
+	private final ConcurrentHashMap<String, String> failures = new ConcurrentHashMap<>();
+
+	public void init() throws IOException {
+		if (!this.enabled) {
+			return;
+		}
+		if (this.cluster && !this.affinity) {
+			// Another server would serve GetFile and CheckFileInfo without the autosaves of this journal
+			throw new AlfrescoRuntimeException("Write-behind journal in a cluster without document affinity, set "
+					+ "fr.jeci.collabora.wopi.journal.affinity=true once the load balancer sends all WOPI requests "
+					+ "of a document to the same server");
+		}
+
+		Files.createDirectories(new File(this.dir, FAILED_DIR).toPath());
+		long last = 0;
+		for (File file : listFiles()) {
+			if (file.getName().endsWith(TMP_SUFFIX)) {
+				// Not acknowledged
+				Files.deleteIfExists(file.toPath());
+			} else {
+				last = Math.max(last, sequence(file));
+			}
+		}
+		this.sequence.set(last);
+
+		this.workers = new ExecutorService[this.threads];
+		for (int i = 0; i < this.threads; i++) {
+			final String name = "collabora-journal-" + i;
+			this.workers[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		logger.info("Write-behind journal in {}, last record {}", this.dir, last);
+	}
+
+	public void shutdown() {
+		if (this.workers == null) {
+			return;
+		}
+		for (ExecutorService worker : this.workers) {
+			worker.shutdown();
+		}
+		try {
+			for (ExecutorService worker : this.workers) {
+				if (!worker.awaitTermination(10, TimeUnit.SECONDS)) {
+					// Applied again at next startup
+					worker.shutdownNow();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Apply the records left by the previous run, once the repository is started
+	 */
+	@Override
+	protected void onBootstrap(final ApplicationEvent event) {
+		if (!this.enabled) {
+			return;
+		}
+
+		final List<File> files = new ArrayList<>();
+		for (File file : listFiles()) {
+			if (file.getName().endsWith(RECORD_SUFFIX)) {
+				files.add(file);
+			}
+		}
+		files.sort(Comparator.comparingLong(WriteBehindJournal::sequence));
+
+		for (File file : files) {
+			try {
+				submit(Record.read(file, true));
+			} catch (IOException e) {
+				logger.error("Invalid journal record {}: {}", file, e.getMessage());
+				moveToFailed(file);
+			}
+		}
+		if (!files.isEmpty()) {
+			logger.warn("{} autosaves from the journal will be applied again", files.size());
+		}
+	}
+
+	/**
+	 * Workers are stopped by {@link #shutdown()}, the destroy method
+	 */
+	@Override
+	protected void onShutdown(final ApplicationEvent event) {
+		// nothing
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Copy the body to a new record and sync it to the disk. The record is not applied until
+	 * {@link #commit(Record)}, it can be called before the checks of the save.
+	 *
+	 * @param timestamp X-LOOL-WOPI-Timestamp of the save, may be null
+	 */
+	public Record write(final NodeRef nodeRef, final String userName, final String timestamp, final InputStream body)
+			throws IOException {
+		final File tmp = new File(this.dir, UUID.randomUUID() + TMP_SUFFIX);
+		final ByteArrayOutputStream header = new ByteArrayOutputStream(128);
+		try (DataOutputStream out = new DataOutputStream(header)) {
+			out.writeUTF(nodeRef.toString());
+			out.writeUTF(userName);
+			out.writeUTF(timestamp == null ? "" : timestamp);
+		}
+
+		final CRC32 crc = new CRC32();
+		long length = 0;
+		try (FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(header.size());
+			header.writeTo(out);
+
+			final byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = body.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				crc.update(buffer, 0, read);
+				length += read;
+			}
+			out.writeLong(length);
+			out.writeLong(crc.getValue());
+			out.flush();
+			fos.getFD().sync();
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp.toPath());
+			throw e;
+		}
+
+		return new Record(tmp, nodeRef, userName, timestamp, 12L + header.size(), length);
+	}
+
+	/**
+	 * Give a sequence number to the record and submit it. Must be called in the save lock of the document, so the
+	 * records of a document are applied in the order of the saves.
+	 */
+	public void commit(final Record record) throws IOException {
+		final File file = new File(this.dir, String.format("%019d%s", this.sequence.incrementAndGet(), RECORD_SUFFIX));
+		Files.move(record.file.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+		record.file = file;
+		submit(record);
+	}
+
+	/**
+	 * Delete a record not committed
+	 */
+	public void discard(final Record record) {
+		if (record != null && !record.file.delete() && record.file.exists()) {
+			logger.warn("Can't delete journal record {}", record.file);
+		}
+	}
+
+	/**
+	 * Wait until the records of a document are applied. Must be called before reading the content or before a save
+	 * which is not journaled.
+	 *
+	 * @throws WebScriptException 503 if the records are not applied after flushTimeoutMs, 500 once if a record of the
+	 *                            document could not be applied : the acknowledged autosave is lost
+	 */
+	public void flush(final NodeRef nodeRef) {
+		if (!this.enabled) {
+			return;
+		}
+		final Future<?> last = this.lastTasks.get(nodeRef.getId());
+		if (last != null) {
+			try {
+				last.get(this.flushTimeoutMs, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE,
+						"Autosaves not written yet for " + nodeRef);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, "Interrupted while waiting " + nodeRef);
+			} catch (ExecutionException e) {
+				// Logged by the worker
+			}
+		}
+
+		final String failed = this.failures.remove(nodeRef.getId());
+		if (failed != null) {
+			throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR,
+					"Autosave of " + nodeRef + " not applied, see " + FAILED_DIR + "/" + failed);
+		}
+	}
+
+	private void submit(final Record record) {
+		final String id = record.nodeRef.getId();
+		final FutureTask<Void> task = new FutureTask<>(() -> {
+			apply(record);
+			return null;
+		});
+		this.lastTasks.put(id, task);
+		this.workers[Math.floorMod(id.hashCode(), this.workers.length)].execute(() -> {
+			task.run();
+			this.lastTasks.remove(id, task);
+		});
+	}
+
+	private void apply(final Record record) {
+		final String id = record.nodeRef.getId();
+		final String versionLabel;
+		try {
+			versionLabel = this.applier.apply(record);
+		} catch (Exception e) {
+			logger.error("Autosave of {} from {} not applied, record moved to {}", record.nodeRef, record.file,
+					FAILED_DIR, e);
+			this.failures.put(id, record.file.getName());
+			moveToFailed(record.file);
+			return;
+		}
+
+		// A later autosave has the whole document
+		this.failures.remove(id);
+		if (!record.file.delete()) {
+			logger.warn("Can't delete applied journal record {}", record.file);
+		}
+		logger.debug("Autosave of {} applied from {}, version {}", record.nodeRef, record.file, versionLabel);
+	}
+
+	private void moveToFailed(final File file) {
+		try {
+			Files.move(file.toPath(), new File(new File(this.dir, FAILED_DIR), file.getName()).toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.error("Can't move journal record {}: {}", file, e.getMessage());
+		}
+	}
+
+	private void syncDirectory() {
+		try (FileChannel channel = FileChannel.open(this.dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Not supported on every platform
+			logger.debug("Can't sync {}: {}", this.dir, e.getMessage());
+		}
+	}
+
+	private File[] listFiles() {
+		final File[] files = this.dir.listFiles(File::isFile);
+		return files == null ? new File[0] : files;
+	}
+
+	private static long sequence(final File file) {
+		final String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - RECORD_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * One autosave : the document, the user, the timestamp sent by Collabora Online and the body
+	 */
+	public static final class Record {
+		private File file;
+		private final NodeRef nodeRef;
+		private final String userName;
+		private final String timestamp;
+		private final long bodyOffset;
+		private final long bodyLength;
+
+		Record(final File file, final NodeRef nodeRef, final String userName, final String timestamp,
+				final long bodyOffset, final long bodyLength) {
+			this.file = file;
+			this.nodeRef = nodeRef;
+			this.userName = userName;
+			this.timestamp = timestamp;
+			this.bodyOffset = bodyOffset;
+			this.bodyLength = bodyLength;
+		}
+
+		/**
+		 * @param verify check the length and the CRC of the body
+		 */
+		static Record read(final File file, final boolean verify) throws IOException {
+			final NodeRef nodeRef;
+			final String userName;
+			final String timestamp;
+			final long bodyOffset;
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new IOException("Not a journal record");
+				}
+				final int headerLength = in.readInt();
+				nodeRef = new NodeRef(in.readUTF());
+				userName = in.readUTF();
+				final String ts = in.readUTF();
+				timestamp = ts.isEmpty() ? null : ts;
+				bodyOffset = 12L + headerLength;
+			}
+
+			final long bodyLength = file.length() - bodyOffset - TRAILER_BYTES;
+			if (bodyLength < 0) {
+				throw new IOException("Truncated journal record");
+			}
+			final Record record = new Record(file, nodeRef, userName, timestamp, bodyOffset, bodyLength);
+			if (verify) {
+				record.verify();
+			}
+			return record;
+		}
+
+		private void verify() throws IOException {
+			try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+				raf.seek(this.bodyOffset + this.bodyLength);
+				final long length = raf.readLong();
+				final long crc = raf.readLong();
+				if (length != this.bodyLength) {
+					throw new IOException("Length " + length + " instead of " + this.bodyLength);
+				}
+
+				try (CheckedInputStream in = new CheckedInputStream(openBody(), new CRC32())) {
+					final byte[] buffer = new byte[64 * 1024];
+					while (in.read(buffer) != -1) {
+						// computing the CRC
+					}
+					if (in.getChecksum().getValue() != crc) {
+						throw new IOException("Wrong CRC");
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return new stream of the body, to close by the caller
+		 */
+		public InputStream openBody() throws IOException {
+			final FileInputStream in = new FileInputStream(this.file);
+			try {
+				in.getChannel().position(this.bodyOffset);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			return new BufferedInputStream(new BoundedInputStream(in, this.bodyLength));
+		}
+
+		File getFile() {
+			return file;
+		}
+
+		public NodeRef getNodeRef() {
+			return nodeRef;
+		}
+
+		public String getUserName() {
+			return userName;
+		}
+
+		/**
+		 * @return X-LOOL-WOPI-Timestamp of the save, null if there was none
+		 */
+		public String getTimestamp() {
+			return timestamp;
+		}
+
+		public long getBodyLength() {
+			return bodyLength;
+		}
+
+		@Override
+		public String toString() {
+			return file.getName() + " " + nodeRef + " (" + bodyLength + " bytes)";
+		}
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void setDir(String dir) {
+		this.dir = new File(dir);
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param cluster true if WOPI requests are served by several Alfresco servers
+	 */
+	public void setCluster(boolean cluster) {
+		this.cluster = cluster;
+	}
+
+	/**
+	 * @param affinity true if the load balancer sends all WOPI requests of a document to the same server
+	 */
+	public void setAffinity(boolean affinity) {
+		this.affinity = affinity;
+	}
+
+	public void setFlushTimeoutMs(long flushTimeoutMs) {
+		this.flushTimeoutMs = flushTimeoutMs;
+	}
+
+	public void setApplier(Applier applier) {
+		this.applier = applier;
+	}
+}
@@ -0,0 +1,20 @@
+<#macro statusJSON>
+{
+<#if action??>
+  "action": "${action?js_string}",
+  "result": ${result?c},
+</#if>
+  "tokenCount": ${tokenCount?c},
+  "tokenHits": ${tokenHits?c},
+  "tokenMisses": ${tokenMisses?c},
+  "tokenHitRatio": ${tokenHitRatio?c},
+  "markerCacheSize": ${markerCacheSize?c},
+  "collaboraOnline": ${collaboraOnline?c},
+  "backendCount": ${backendCount?c},
+  "onlineBackendCount": ${onlineBackendCount?c},
+  "discoveryAgeSeconds": ${discoveryAgeSeconds?c},
+  "discoveryStatus": "${discoveryStatus?js_string}",
+  "lockedNodeCount": ${lockedNodeCount?c},
+  "renditionRequests": ${renditionRequests?c}
+}
+</#macro>
@@ -0,0 +1,2 @@
+<#import "collabora-admin.lib.ftl" as adminLib />
+<@adminLib.statusJSON />
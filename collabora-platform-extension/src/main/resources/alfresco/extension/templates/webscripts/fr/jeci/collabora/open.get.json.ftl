@@ -0,0 +1,8 @@
+{
+  "access_token": "${access_token?js_string}",
+  "access_token_ttl": "${access_token_ttl?c}",
+  "wopi_src_url": "${wopi_src_url?js_string}",
+  "lool_host_url": "${lool_host_url?js_string}",
+  "wopi_file_url": "${wopi_file_url?js_string}",
+  "action_url": "${action_url?js_string}"
+}
\ No newline at end of file
@@ -0,0 +1,17 @@
+{
+  "tokens": [
+<#list tokens as token>
+    {
+      "nodeRef": "${token.nodeRef?js_string}",
+      "status": ${token.status?c},
+<#if token.access_token??>
+      "access_token": "${token.access_token?js_string}",
+      "access_token_ttl": "${token.access_token_ttl?c}",
+      "wopi_src_url": "${token.wopi_src_url?js_string}"
+<#else>
+      "message": "${(token.message!"")?js_string}"
+</#if>
+    }<#if token_has_next>,</#if>
+</#list>
+  ]
+}
@@ -0,0 +1,100 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * Throughput of the token minting, with one thread and with many threads.
+ * <p>
+ * Not run by the build (the name does not end with Test). Run it with :
+ *
+ * <pre>
+ * mvn -pl collabora-platform-extension test -Dtest=AccessTokenGeneratorBenchmark
+ * </pre>
+ *
+ * Optional : {@code -Dbenchmark.threads=16 -Dbenchmark.seconds=10}. The default is twice the number of processors
+ * during 5 seconds, after 2 seconds of warm-up.
+ */
+public class AccessTokenGeneratorBenchmark {
+	private static final int THREADS = Integer.getInteger("benchmark.threads",
+			Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+	private static final long MEASURE_MS = TimeUnit.SECONDS.toMillis(Long.getLong("benchmark.seconds", 5));
+	private static final long WARMUP_MS = TimeUnit.SECONDS.toMillis(2);
+
+	/** The former generator : one SecureRandom shared by all the requests */
+	private static final SecureRandom SHARED = new SecureRandom();
+
+	@Test
+	public void benchmark() throws Exception {
+		System.out.printf("%d processors, %d threads, %d ms%n", Runtime.getRuntime().availableProcessors(), THREADS,
+				MEASURE_MS);
+
+		report("shared SecureRandom", () -> new BigInteger(130, SHARED).toString(32));
+		report("AccessTokenGenerator", AccessTokenGenerator::next);
+	}
+
+	private static void report(String name, Supplier<String> minter) throws Exception {
+		run(minter, 1, WARMUP_MS);
+		double single = run(minter, 1, MEASURE_MS);
+
+		run(minter, THREADS, WARMUP_MS);
+		double multi = run(minter, THREADS, MEASURE_MS);
+
+		System.out.printf("%-22s 1 thread: %,12.0f tokens/s  %d threads: %,12.0f tokens/s  scaling: %.2f%n", name,
+				single, THREADS, multi, multi / single);
+	}
+
+	/**
+	 * @return tokens per second, all threads together
+	 */
+	private static double run(Supplier<String> minter, int threads, long durationMs) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			AtomicBoolean stop = new AtomicBoolean();
+			List<Future<long[]>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> {
+					start.await();
+					long count = 0;
+					long sink = 0;
+					while (!stop.get()) {
+						// use the token, so the JIT cannot drop the call
+						sink += minter.get().hashCode();
+						count++;
+					}
+					return new long[] { count, sink };
+				}));
+			}
+
+			long begin = System.nanoTime();
+			start.countDown();
+			Thread.sleep(durationMs);
+			stop.set(true);
+			long elapsed = System.nanoTime() - begin;
+
+			long total = 0;
+			for (Future<long[]> result : results) {
+				total += result.get()[0];
+			}
+
+			assertTrue(total > 0);
+			return total * 1e9 / elapsed;
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
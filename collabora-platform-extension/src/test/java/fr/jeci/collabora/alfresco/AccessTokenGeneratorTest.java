@@ -0,0 +1,52 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class AccessTokenGeneratorTest {
+	private static final int THREADS = 8;
+	private static final int TOKENS = 20000;
+
+	@Test
+	public void testFormat() {
+		String token = AccessTokenGenerator.next();
+		assertEquals(24, token.length());
+		assertTrue(token, token.matches("[A-Za-z0-9_-]{24}"));
+	}
+
+	@Test
+	public void testConcurrentMinting() throws Exception {
+		Set<String> tokens = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++) {
+				tasks.add(() -> {
+					for (int j = 0; j < TOKENS; j++) {
+						tokens.add(AccessTokenGenerator.next());
+					}
+					return null;
+				});
+			}
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// no duplicate between threads, nor after the reseed of a generator
+		assertEquals(THREADS * TOKENS, tokens.size());
+	}
+}
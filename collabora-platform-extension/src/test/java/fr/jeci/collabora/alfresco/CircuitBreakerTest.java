@@ -0,0 +1,61 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.jeci.collabora.alfresco.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+	AtomicLong now = new AtomicLong(1000);
+	CircuitBreaker breaker = null;
+
+	@Before
+	public void setUp() {
+		breaker = new CircuitBreaker(2, 500, now::get);
+	}
+
+	@Test
+	public void testOpenAfterThreshold() {
+		breaker.onFailure();
+		assertTrue(breaker.isAvailable());
+
+		breaker.onFailure();
+		assertFalse(breaker.isAvailable());
+		assertFalse(breaker.tryProbe());
+	}
+
+	@Test
+	public void testSuccessResetFailures() {
+		breaker.onFailure();
+		breaker.onSuccess();
+		breaker.onFailure();
+		assertEquals(State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testHalfOpenTrial() {
+		breaker.onFailure();
+		breaker.onFailure();
+
+		now.addAndGet(500);
+		assertTrue(breaker.tryProbe());
+		assertEquals(State.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.isAvailable());
+
+		// one failed trial opens again
+		breaker.onFailure();
+		assertEquals(State.OPEN, breaker.getState());
+		assertFalse(breaker.tryProbe());
+
+		now.addAndGet(500);
+		assertTrue(breaker.tryProbe());
+		breaker.onSuccess();
+		assertTrue(breaker.isAvailable());
+	}
+}
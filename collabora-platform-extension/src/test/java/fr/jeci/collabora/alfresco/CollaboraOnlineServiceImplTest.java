@@ -1,20 +1,35 @@
 package fr.jeci.collabora.alfresco;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
 import org.alfresco.repo.security.permissions.impl.AllowPermissionServiceImpl;
 import org.alfresco.repo.version.NodeServiceImpl;
+import org.alfresco.service.cmr.lock.LockService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.joda.time.LocalDateTime;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -76,4 +91,118 @@ public class CollaboraOnlineServiceImplTest {
 		assertEquals(urlsrc, wopiSrcURL);
 	}
 
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRecheckFileTokens() {
+		PermissionService permissionService = mock(AllowPermissionServiceImpl.class);
+		this.collaboraOnlineService.setPermissionService(permissionService);
+		SimpleCache<String, WOPIAccessTokenInfo> tokenMap = mock(SimpleCache.class);
+		this.collaboraOnlineService.setTokenMap(tokenMap);
+		TokenIndex tokenIndex = mock(TokenIndex.class);
+		this.collaboraOnlineService.setTokenIndex(tokenIndex);
+
+		LocalDateTime now = LocalDateTime.now();
+		WOPIAccessTokenInfo token = new WOPIAccessTokenInfo("token", now, now.plusHours(1), nodeRef.getId(), "bob");
+		token.setCanWrite(true);
+		when(tokenIndex.getFileTokens(nodeRef.getId())).thenReturn(Collections.singleton("token"));
+		when(tokenMap.get("token")).thenReturn(token);
+
+		// ACL changed on the document : WRITE was removed, the token is kept
+		when(permissionService.hasPermission(nodeRef, PermissionService.READ)).thenReturn(AccessStatus.ALLOWED);
+		when(permissionService.hasPermission(nodeRef, PermissionService.WRITE)).thenReturn(AccessStatus.DENIED);
+		assertEquals(0, this.collaboraOnlineService.recheckFileTokens(nodeRef));
+		assertFalse(token.isCanWrite());
+		verify(tokenMap).put("token", token);
+
+		// READ was removed : the token is revoked
+		when(permissionService.hasPermission(nodeRef, PermissionService.READ)).thenReturn(AccessStatus.DENIED);
+		assertEquals(1, this.collaboraOnlineService.recheckFileTokens(nodeRef));
+		verify(tokenMap).remove("token");
+		verify(tokenIndex).remove(token);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRecheckFolderTokens() {
+		PermissionService permissionService = mock(AllowPermissionServiceImpl.class);
+		this.collaboraOnlineService.setPermissionService(permissionService);
+		SimpleCache<String, WOPIAccessTokenInfo> tokenMap = mock(SimpleCache.class);
+		this.collaboraOnlineService.setTokenMap(tokenMap);
+		TokenIndex tokenIndex = mock(TokenIndex.class);
+		this.collaboraOnlineService.setTokenIndex(tokenIndex);
+
+		NodeRef folder = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "folder");
+		NodeRef other = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "test-collabora-2");
+		when(tokenIndex.getFileIds()).thenReturn(Arrays.asList(nodeRef.getId(), other.getId()));
+		when(nodeService.exists(nodeRef)).thenReturn(true);
+		when(nodeService.exists(other)).thenReturn(true);
+		when(nodeService.getPrimaryParent(nodeRef)).thenReturn(new ChildAssociationRef(null, folder, null, nodeRef));
+
+		LocalDateTime now = LocalDateTime.now();
+		WOPIAccessTokenInfo token = new WOPIAccessTokenInfo("token", now, now.plusHours(1), nodeRef.getId(), "bob");
+		when(tokenIndex.getFileTokens(nodeRef.getId())).thenReturn(Collections.singleton("token"));
+		when(tokenMap.get("token")).thenReturn(token);
+		when(permissionService.hasPermission(nodeRef, PermissionService.READ)).thenReturn(AccessStatus.DENIED);
+
+		// only the documents under the folder are checked
+		assertEquals(1, this.collaboraOnlineService.recheckFolderTokens(Collections.singleton(folder)));
+		verify(tokenIndex, never()).getFileTokens(other.getId());
+		verify(tokenMap).remove("token");
+	}
+
+	@Test
+	public void testCreateAccessTokens() {
+		PermissionService permissionService = mock(AllowPermissionServiceImpl.class);
+		this.collaboraOnlineService.setPermissionService(permissionService);
+		SimpleCache<String, WOPIAccessTokenInfo> tokenMap = mock(SimpleCache.class);
+		this.collaboraOnlineService.setTokenMap(tokenMap);
+		TokenIndex tokenIndex = mock(TokenIndex.class);
+		this.collaboraOnlineService.setTokenIndex(tokenIndex);
+
+		NodeRef other = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "test-collabora-2");
+		Map<NodeRef, Boolean> canWrite = new LinkedHashMap<>();
+		canWrite.put(nodeRef, true);
+		canWrite.put(other, false);
+
+		Map<NodeRef, WOPIAccessTokenInfo> tokens = this.collaboraOnlineService.createAccessTokens(canWrite);
+		assertEquals(2, tokens.size());
+		assertTrue(tokens.get(nodeRef).isCanWrite());
+		assertFalse(tokens.get(other).isCanWrite());
+		assertEquals(other.getId(), tokens.get(other).getFileId());
+
+		// permissions given by the caller are not evaluated again, the index is updated once
+		verify(permissionService, never()).hasPermission(nodeRef, PermissionService.READ);
+		verify(permissionService, never()).hasPermission(nodeRef, PermissionService.WRITE);
+		verify(tokenMap).put(tokens.get(nodeRef).getAccessToken(), tokens.get(nodeRef));
+		verify(tokenMap).put(tokens.get(other).getAccessToken(), tokens.get(other));
+		verify(tokenIndex).addAll(tokens.values());
+		verify(tokenIndex, never()).add(tokens.get(nodeRef));
+	}
+
+	@Test
+	public void testUnlockReleased() throws ConflictException {
+		LockService lockService = mock(LockService.class);
+		this.collaboraOnlineService.setLockService(lockService);
+
+		// released by the exit save : the UNLOCK of Collabora Online succeeds
+		assertEquals("lock-id", this.collaboraOnlineService.lockUnlock(nodeRef, "lock-id"));
+		verify(lockService, never()).unlock(nodeRef);
+	}
+
+	@Test
+	public void testTokenCount() {
+		SimpleCache<String, WOPIAccessTokenInfo> tokenMap = mock(SimpleCache.class);
+		this.collaboraOnlineService.setTokenMap(tokenMap);
+		this.collaboraOnlineService.setTokenIndex(mock(TokenIndex.class));
+		this.collaboraOnlineService.setTokenTtlMs(2 * 3_600_000);
+
+		Map<NodeRef, Boolean> canWrite = new LinkedHashMap<>();
+		canWrite.put(nodeRef, true);
+		canWrite.put(new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "test-collabora-2"), true);
+		this.collaboraOnlineService.createAccessTokens(canWrite);
+
+		// counted when issued, the token map is not scanned
+		assertEquals(2, this.collaboraOnlineService.getTokenCount());
+		verify(tokenMap, never()).getKeys();
+	}
 }
@@ -0,0 +1,100 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.file.Paths;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.NodeContentContext;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CollaboraRoutingContentStoreTest {
+	static final NodeRef NODE = new NodeRef("workspace://SpacesStore/node");
+	static final String URL = "store://2024/1/2/3/4/content.bin";
+
+	CollaboraRoutingContentStore store = null;
+	ContentStore primaryStore = null;
+	ContentStore hotStore = null;
+	WopiSessions wopiSessions = new WopiSessions();
+	NodeContentContext context = null;
+
+	@Before
+	public void setUp() {
+		primaryStore = mock(ContentStore.class);
+		hotStore = mock(ContentStore.class);
+
+		store = new CollaboraRoutingContentStore();
+		store.setPrimaryStore(primaryStore);
+		store.setHotStore(hotStore);
+		store.setWopiSessions(wopiSessions);
+		store.setMigrateIntervalMs(1000L);
+
+		context = mock(NodeContentContext.class);
+		when(context.getNodeRef()).thenReturn(NODE);
+
+		ContentWriter writer = mock(ContentWriter.class);
+		when(writer.getContentUrl()).thenReturn(URL);
+		when(hotStore.getWriter(any(ContentContext.class))).thenReturn(writer);
+		when(primaryStore.getWriter(any(ContentContext.class))).thenReturn(writer);
+	}
+
+	@Test
+	public void routeActiveSessionToHotStore() {
+		assertSame(primaryStore, store.selectWriteStore(context));
+		wopiSessions.opened(NODE, 60_000L);
+		assertSame(hotStore, store.selectWriteStore(context));
+		wopiSessions.closed(NODE);
+		assertSame(primaryStore, store.selectWriteStore(context));
+	}
+
+	@Test
+	public void migrateWhenSessionEnds() {
+		wopiSessions.opened(NODE, 60_000L);
+		store.getWriter(context);
+		assertEquals(1, store.hotUrlCount());
+
+		ContentReader reader = mock(ContentReader.class);
+		when(reader.getLastModified()).thenReturn(System.currentTimeMillis() - 60_000L);
+		when(hotStore.exists(URL)).thenReturn(true);
+		when(hotStore.getReader(URL)).thenReturn(reader);
+		when(primaryStore.isContentUrlSupported(URL)).thenReturn(true);
+
+		store.migrate();
+		verify(hotStore, never()).delete(URL);
+		assertEquals(1, store.hotUrlCount());
+
+		wopiSessions.closed(NODE);
+		store.migrate();
+		verify(primaryStore).getWriter(any(ContentContext.class));
+		verify(hotStore).delete(URL);
+		assertEquals(0, store.hotUrlCount());
+	}
+
+	@Test
+	public void waitRecentWrite() {
+		ContentReader reader = mock(ContentReader.class);
+		when(reader.getLastModified()).thenReturn(System.currentTimeMillis());
+		when(hotStore.exists(URL)).thenReturn(true);
+		when(hotStore.getReader(URL)).thenReturn(reader);
+
+		assertEquals(false, store.migrateUrl(URL));
+		verify(hotStore, never()).delete(URL);
+	}
+
+	@Test
+	public void contentUrl() {
+		assertEquals(URL, CollaboraRoutingContentStore.contentUrl(Paths.get("/var/hot"),
+				Paths.get("/var/hot/2024/1/2/3/4/content.bin")));
+	}
+}
@@ -0,0 +1,71 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+	private static final int KEYS = 10000;
+
+	ConsistentHashRing<String> ring = null;
+
+	@Before
+	public void setUp() {
+		Map<String, String> members = new LinkedHashMap<>();
+		members.put("http://collabora-1:9980/", "a");
+		members.put("http://collabora-2:9980/", "b");
+		members.put("http://collabora-3:9980/", "c");
+		ring = new ConsistentHashRing<>(members, 160);
+	}
+
+	@Test
+	public void testSameMember() {
+		String key = UUID.randomUUID().toString();
+		assertEquals(ring.get(key), ring.get(key));
+	}
+
+	@Test
+	public void testSpread() {
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < KEYS; i++) {
+			counts.merge(ring.get(UUID.randomUUID().toString()), 1, Integer::sum);
+		}
+
+		assertEquals(3, counts.size());
+		for (int count : counts.values()) {
+			assertTrue("unbalanced " + counts, count > KEYS / 5 && count < KEYS / 2);
+		}
+	}
+
+	@Test
+	public void testSkipMoveOnlyItsKeys() {
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String key = UUID.randomUUID().toString();
+			String before = ring.get(key);
+			String after = ring.get(key, m -> !"b".equals(m));
+
+			assertNotEquals("b", after);
+			if (!before.equals(after)) {
+				assertEquals("b", before);
+				moved++;
+			}
+		}
+		assertTrue(moved > 0);
+	}
+
+	@Test
+	public void testNoMember() {
+		assertNull(ring.get("key", m -> false));
+		assertNull(new ConsistentHashRing<String>(new HashMap<>(), 1).get("key"));
+	}
+}
@@ -0,0 +1,120 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.joda.time.LocalDateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapTokenCacheTest {
+	OffHeapTokenCache cache = null;
+
+	@Before
+	public void setUp() {
+		cache = new OffHeapTokenCache();
+		cache.setCapacity(64);
+		cache.setGraceMs(0);
+		cache.init();
+	}
+
+	private static WOPIAccessTokenInfo token(String accessToken, LocalDateTime expiresAt, String userName) {
+		WOPIAccessTokenInfo token = new WOPIAccessTokenInfo(accessToken, expiresAt.minusHours(1), expiresAt,
+				"0f4e5d6c-7b8a-4c3d-9e2f-1a0b9c8d7e6f", userName);
+		token.setCanWrite(true);
+		return token;
+	}
+
+	@Test
+	public void testPutGet() {
+		LocalDateTime expiresAt = LocalDateTime.now().plusHours(1);
+		cache.put("abc", token("abc", expiresAt, "bob"));
+
+		WOPIAccessTokenInfo read = cache.get("abc");
+		assertEquals("abc", read.getAccessToken());
+		assertEquals("bob", read.getUserName());
+		assertEquals("0f4e5d6c-7b8a-4c3d-9e2f-1a0b9c8d7e6f", read.getFileId());
+		assertEquals(expiresAt, read.getExpiresAt());
+		assertTrue(read.isCanWrite());
+		assertTrue(cache.getKeys().contains("abc"));
+
+		cache.remove("abc");
+		assertNull(cache.get("abc"));
+		assertFalse(cache.contains("abc"));
+	}
+
+	@Test
+	public void testExpired() {
+		cache.put("old", token("old", LocalDateTime.now().minusMinutes(1), "bob"));
+		assertNull(cache.get("old"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testEvictionKeepReferenced() {
+		LocalDateTime expiresAt = LocalDateTime.now().plusHours(1);
+		cache.put("hot", token("hot", expiresAt, "bob"));
+		for (int i = 0; i < 200; i++) {
+			cache.put("t" + i, token("t" + i, expiresAt, "bob"));
+			assertNotNull(cache.get("hot"));
+		}
+		assertTrue(cache.size() <= 48);
+		assertNotNull(cache.get("t199"));
+	}
+
+	@Test
+	public void testLongUserName() {
+		StringBuilder userName = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			userName.append("very.long.name");
+		}
+		cache.put("abc", token("abc", LocalDateTime.now().plusHours(1), userName.toString()));
+		assertEquals(userName.toString(), cache.get("abc").getUserName());
+		assertEquals(1, cache.getKeys().size());
+	}
+
+	@Test
+	public void testNullUserName() {
+		cache.put("abc", token("abc", LocalDateTime.now().plusHours(1), null));
+		assertNull(cache.get("abc").getUserName());
+
+		cache.put("def", token("def", LocalDateTime.now().plusHours(1), ""));
+		assertEquals("", cache.get("def").getUserName());
+	}
+
+	@Test
+	public void testRehashKeepsTokens() {
+		LocalDateTime expiresAt = LocalDateTime.now().plusHours(1);
+		for (int i = 0; i < 20; i++) {
+			cache.put("k" + i, token("k" + i, expiresAt, "user" + i));
+		}
+		// the deleted slots left by the other tokens make the table place the records again
+		for (int i = 0; i < 500; i++) {
+			cache.put("tmp" + i, token("tmp" + i, expiresAt, "bob"));
+			cache.remove("tmp" + i);
+		}
+		assertEquals(20, cache.size());
+		for (int i = 0; i < 20; i++) {
+			assertEquals("user" + i, cache.get("k" + i).getUserName());
+		}
+	}
+
+	@Test
+	public void testEmptySlotsUnderChurn() {
+		LocalDateTime expiresAt = LocalDateTime.now().plusHours(1);
+		for (int i = 0; i < 44; i++) {
+			cache.put("k" + i, token("k" + i, expiresAt, "bob"));
+			assertTrue(cache.emptySlots() >= 16);
+		}
+		// live tokens and deleted slots never fill the table, a miss ends on an empty slot
+		for (int i = 0; i < 2000; i++) {
+			cache.put("tmp" + i, token("tmp" + i, expiresAt, "bob"));
+			cache.remove("tmp" + (i / 2));
+			assertTrue(cache.emptySlots() >= 16);
+		}
+		assertNull(cache.get("missing"));
+	}
+}
@@ -0,0 +1,157 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.service.namespace.QName;
+import org.joda.time.LocalDateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenIndexTest {
+	TokenIndex tokenIndex = null;
+	SimpleCache<String, WOPIAccessTokenInfo> tokenMap = null;
+
+	@Before
+	public void setUp() {
+		tokenIndex = new TokenIndex();
+		tokenIndex.setFileTokens(new MapCache<>());
+		tokenIndex.setUserTokens(new MapCache<>());
+		tokenMap = new MapCache<>();
+	}
+
+	private WOPIAccessTokenInfo put(String accessToken, String fileId, String userName) {
+		LocalDateTime now = LocalDateTime.now();
+		WOPIAccessTokenInfo token = new WOPIAccessTokenInfo(accessToken, now, now.plusHours(1), fileId, userName);
+		tokenMap.put(accessToken, token);
+		tokenIndex.add(token);
+		return token;
+	}
+
+	@Test
+	public void testClusterLock() {
+		JobLockService jobLockService = mock(JobLockService.class);
+		when(jobLockService.getLock(any(QName.class), anyLong(), anyLong(), anyInt())).thenReturn("lock");
+		tokenIndex.setJobLockService(jobLockService);
+		tokenIndex.setClusterEnabled(true);
+		tokenIndex.init();
+
+		// file and user indexes, each one under the cluster lock
+		put("t1", "file-a", "bob");
+		verify(jobLockService, times(2)).getLock(any(QName.class), anyLong(), anyLong(), anyInt());
+		verify(jobLockService, times(2)).releaseLock(eq("lock"), any(QName.class));
+	}
+
+	@Test
+	public void testIndexes() {
+		put("t1", "file-a", "bob");
+		put("t2", "file-a", "alice");
+		WOPIAccessTokenInfo t3 = put("t3", "file-b", "bob");
+
+		assertEquals(2, tokenIndex.getFileTokens("file-a").size());
+		assertEquals(2, tokenIndex.getUserTokens("bob").size());
+
+		tokenIndex.remove(t3);
+		assertTrue(tokenIndex.getFileTokens("file-b").isEmpty());
+		assertEquals(1, tokenIndex.getUserTokens("bob").size());
+	}
+
+	@Test
+	public void testDropExpiredTokens() {
+		// can no longer be in the token map
+		tokenIndex.setRetentionMs(-1000L);
+		put("t1", "file-a", "bob");
+		tokenIndex.setRetentionMs(3600_000L);
+
+		put("t2", "file-a", "bob");
+		assertEquals(1, tokenIndex.getFileTokens("file-a").size());
+		assertTrue(tokenIndex.getUserTokens("bob").contains("t2"));
+	}
+
+	@Test
+	public void testKeepTokensStillInStore() {
+		put("t1", "file-a", "bob");
+		// no eviction : the index keeps every token until the end of its retention
+		for (int i = 0; i < 100; ++i) {
+			put("x" + i, "file-" + i, "user-" + i);
+		}
+		assertTrue(tokenIndex.getFileTokens("file-a").contains("t1"));
+		assertTrue(tokenIndex.getUserTokens("bob").contains("t1"));
+	}
+
+	@Test
+	public void testAddAllOnePutByKey() {
+		MapCache<String, HashMap<String, Long>> userTokens = new MapCache<>();
+		tokenIndex.setUserTokens(userTokens);
+
+		LocalDateTime now = LocalDateTime.now();
+		List<WOPIAccessTokenInfo> tokens = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			tokens.add(new WOPIAccessTokenInfo("t" + i, now, now.plusHours(1), "file-" + i, "bob"));
+		}
+		tokenIndex.addAll(tokens);
+
+		assertEquals(1, userTokens.puts);
+		assertEquals(10, tokenIndex.getUserTokens("bob").size());
+		assertEquals(1, tokenIndex.getFileTokens("file-3").size());
+	}
+
+	@Test
+	public void testRemoveGoneTokens() {
+		put("t1", "file-a", "bob");
+		put("t2", "file-a", "alice");
+
+		tokenIndex.removeFileTokens("file-a", Arrays.asList("t1", "t2"));
+		assertTrue(tokenIndex.getFileTokens("file-a").isEmpty());
+		assertEquals(1, tokenIndex.getUserTokens("bob").size());
+	}
+
+	static class MapCache<K extends Serializable, V> implements SimpleCache<K, V> {
+		private final Map<K, V> map = new HashMap<>();
+		int puts = 0;
+
+		public boolean contains(K key) {
+			return map.containsKey(key);
+		}
+
+		public Collection<K> getKeys() {
+			return new HashSet<>(map.keySet());
+		}
+
+		public V get(K key) {
+			return map.get(key);
+		}
+
+		public void put(K key, V value) {
+			++puts;
+			map.put(key, value);
+		}
+
+		public void remove(K key) {
+			map.remove(key);
+		}
+
+		public void clear() {
+			map.clear();
+		}
+	}
+}
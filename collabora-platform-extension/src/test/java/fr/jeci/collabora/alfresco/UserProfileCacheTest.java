@@ -0,0 +1,79 @@
+package fr.jeci.collabora.alfresco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.QName;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UserProfileCacheTest {
+	static final NodeRef BOB = new NodeRef("workspace://SpacesStore/bob");
+
+	UserProfileCache profileCache = null;
+	NodeService nodeService = null;
+	PersonService personService = null;
+	Map<QName, Serializable> properties = new HashMap<>();
+
+	@Before
+	public void setUp() {
+		nodeService = mock(NodeService.class);
+		personService = mock(PersonService.class);
+		when(personService.getPersonOrNull("bob")).thenReturn(BOB);
+		when(nodeService.getProperties(BOB)).thenReturn(properties);
+		when(nodeService.getTargetAssocs(BOB, ContentModel.ASSOC_AVATAR)).thenReturn(Collections.emptyList());
+
+		profileCache = new UserProfileCache();
+		profileCache.setNodeService(nodeService);
+		profileCache.setPersonService(personService);
+		profileCache.setAuthorityService(mock(AuthorityService.class));
+		profileCache.setProfileCache(new TokenIndexTest.MapCache<>());
+		profileCache.setAlfrescoPublicURL("http://localhost:8080/alfresco/");
+	}
+
+	@Test
+	public void testFriendlyName() {
+		assertEquals("Bob Smith", UserProfileCache.friendlyName("bob", "Bob", "Smith"));
+		assertEquals("Bob", UserProfileCache.friendlyName("bob", "Bob", null));
+		assertEquals("Smith", UserProfileCache.friendlyName("bob", null, "Smith"));
+		assertEquals("bob", UserProfileCache.friendlyName("bob", null, null));
+	}
+
+	@Test
+	public void testCached() {
+		UserProfile profile = profileCache.get("bob");
+		assertEquals("bob", profile.getFriendlyName());
+		assertNull(profile.getAvatarUrl());
+		assertSame(profile, profileCache.get("bob"));
+		verify(nodeService, times(1)).getProperties(BOB);
+
+		profileCache.invalidate(Collections.singleton("bob"));
+		profileCache.get("bob");
+		verify(nodeService, times(2)).getProperties(BOB);
+	}
+
+	@Test
+	public void testAvatar() {
+		when(nodeService.getTargetAssocs(BOB, ContentModel.ASSOC_AVATAR))
+				.thenReturn(Collections.singletonList(null));
+
+		String avatarUrl = profileCache.get("bob").getAvatarUrl();
+		assertTrue(avatarUrl, avatarUrl.startsWith("http://localhost:8080/alfresco/api/"));
+	}
+}
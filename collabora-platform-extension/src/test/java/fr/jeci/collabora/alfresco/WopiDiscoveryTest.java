@@ -5,6 +5,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -62,4 +66,24 @@ public class WopiDiscoveryTest {
 		assertEquals("pdf", action.get(0).getExt());
 	}
 
+	@Test
+	public void testSnapshot() throws XMLStreamException, IOException {
+		File discoveryFile = new File("src/test/resources/discovery_collabora_online.xml");
+		FileInputStream in = new FileInputStream(discoveryFile);
+		wopiDiscovery.loadDiscoveryXML(in);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		wopiDiscovery.writeSnapshot(new DataOutputStream(bytes));
+
+		WopiDiscovery snapshot = new WopiDiscovery();
+		snapshot.readSnapshot(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		assertEquals(wopiDiscovery.getActions().keySet(), snapshot.getActions().keySet());
+		assertEquals(wopiDiscovery.getApplications().size(), snapshot.getApplications().size());
+		assertEquals("http://localhost:9980/loleaflet/1430151/loleaflet.html?",
+				snapshot.getAction("ods").get(0).getUrlsrc());
+		assertEquals("http://localhost:9980/loleaflet/1430151/loleaflet.html?",
+				snapshot.getSrcURL("application/vnd.ms-excel", "edit"));
+	}
+
 }
@@ -0,0 +1,80 @@
+package fr.jeci.collabora.wopi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveLimitTest {
+
+	@Test
+	public void testLimitAndShare() {
+		AdaptiveLimit limit = new AdaptiveLimit("test", 2, 8);
+		assertEquals(4, limit.getLimit());
+
+		// background requests only use half of the pool
+		assertTrue(limit.tryAcquire(0.5));
+		assertTrue(limit.tryAcquire(0.5));
+		assertFalse(limit.tryAcquire(0.5));
+
+		assertTrue(limit.tryAcquire(1));
+		assertTrue(limit.tryAcquire(1));
+		assertFalse(limit.tryAcquire(1));
+		assertEquals(4, limit.getInFlight());
+	}
+
+	@Test
+	public void testAdapt() {
+		AdaptiveLimit limit = new AdaptiveLimit("test", 2, 8);
+
+		// fast requests under load: the limit grows up to max
+		for (int i = 0; i < 20; ++i) {
+			while (limit.tryAcquire(1)) {
+				// fill the pool
+			}
+			limit.release(1_000_000, -1);
+		}
+		assertEquals(8, limit.getLimit());
+
+		// slow requests: the limit shrinks down to min
+		for (int i = 0; i < 40; ++i) {
+			limit.tryAcquire(1);
+			limit.release(100_000_000, -1);
+		}
+		assertEquals(2, limit.getLimit());
+	}
+
+	@Test
+	public void testMixedGetFile() {
+		AdaptiveLimit limit = new AdaptiveLimit("GetFile", 8, 64);
+
+		// small documents in 2 ms, large ones (20 MB) in 400 ms, under load
+		for (int i = 0; i < 1000; ++i) {
+			while (limit.tryAcquire(1)) {
+				// fill the pool
+			}
+			if (i % 3 == 0) {
+				limit.release(400_000_000, 20L * 1024 * 1024);
+			} else {
+				limit.release(2_000_000, 10 * 1024);
+			}
+		}
+		assertEquals(64, limit.getLimit());
+	}
+
+	@Test
+	public void testBaselineDecays() {
+		AdaptiveLimit limit = new AdaptiveLimit("test", 2, 8);
+		// one very fast request is not the baseline forever
+		limit.tryAcquire(1);
+		limit.release(1_000, -1);
+		for (int i = 0; i < 2000; ++i) {
+			while (limit.tryAcquire(1)) {
+				// fill the pool
+			}
+			limit.release(10_000_000, -1);
+		}
+		assertEquals(8, limit.getLimit());
+	}
+}
@@ -0,0 +1,82 @@
+package fr.jeci.collabora.wopi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.version.Version;
+import org.alfresco.service.cmr.version.VersionService;
+import org.junit.Test;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+public class AutosaveVersionTest {
+	static final long HOUR = 3_600_000L;
+
+	@Test
+	public void testSnapshotAfterExplicitSave() {
+		// no marker, or the marker of an older version
+		assertNull(AutosaveMarker.of("1.3", null, null, null));
+		assertNull(AutosaveMarker.of("1.3", "1.2", true, 1000L));
+		assertNull(AutosaveMarker.of(null, "1.2", true, 1000L));
+	}
+
+	@Test
+	public void testWindow() {
+		AutosaveMarker snapshot = AutosaveMarker.of("1.2", "1.2", true, 1000L);
+		assertEquals(Long.valueOf(1000L), snapshot.window(1000L + HOUR - 1, HOUR));
+		assertNull(snapshot.window(1000L + HOUR, HOUR));
+	}
+
+	@Test
+	public void testIntermediate() {
+		assertTrue(AutosaveMarker.of("1.2", "1.2", false, 1000L).isIntermediate());
+		assertFalse(AutosaveMarker.of("1.2", "1.2", true, 1000L).isIntermediate());
+	}
+
+	@Test
+	public void testExplicitSave() {
+		NodeRef nodeRef = new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, "test-collabora");
+		NodeService nodeService = mock(NodeService.class);
+		VersionService versionService = mock(VersionService.class);
+		Version version = mock(Version.class);
+		when(version.getVersionLabel()).thenReturn("1.3");
+		when(versionService.createVersion(any(NodeRef.class), anyMap())).thenReturn(version);
+
+		AbstractWopiWebScript webScript = new AbstractWopiWebScript() {
+			@Override
+			public void executeAsUser(WebScriptRequest req, WebScriptResponse res, NodeRef nodeRef) {
+			}
+
+			@Override
+			protected String operation(WebScriptRequest req) {
+				return "PutFile";
+			}
+		};
+		webScript.setNodeService(nodeService);
+		webScript.setVersionService(versionService);
+		webScript.setBehaviourFilter(mock(BehaviourFilter.class));
+		webScript.setAutosaveRetentionIntervalMs(HOUR);
+
+		// an explicit save neither reads the retention state nor removes the previous version
+		assertSame(version, webScript.createVersion(false, false, nodeRef));
+		// nor an exit save, sent as an autosave
+		assertSame(version, webScript.createVersion(true, false, nodeRef));
+		verify(nodeService, never()).getProperties(nodeRef);
+		verify(nodeService, never()).addProperties(any(NodeRef.class), anyMap());
+		verify(versionService, never()).getCurrentVersion(nodeRef);
+		verify(versionService, never()).deleteVersion(any(NodeRef.class), any(Version.class));
+	}
+}
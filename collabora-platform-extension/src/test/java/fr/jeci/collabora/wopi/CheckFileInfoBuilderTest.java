@@ -0,0 +1,96 @@
+package fr.jeci.collabora.wopi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.joda.time.LocalDateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.jeci.collabora.alfresco.WOPIAccessTokenInfo;
+import fr.jeci.collabora.wopi.CheckFileInfoBuilder.Precomputed;
+
+public class CheckFileInfoBuilderTest {
+	static final NodeRef NODE = new NodeRef("workspace://SpacesStore/file-a");
+	static final Date MODIFIED = new Date(1700000000000L);
+
+	CheckFileInfoBuilder builder = null;
+	SimpleCache<String, VersionStamp> lastSaveCache = null;
+	SimpleCache<String, Precomputed> precomputedCache = null;
+	NodeService nodeService = null;
+	Map<QName, Serializable> properties = null;
+	WOPIAccessTokenInfo token = null;
+
+	@SuppressWarnings("unchecked")
+	@Before
+	public void setUp() {
+		lastSaveCache = mock(SimpleCache.class);
+		precomputedCache = mock(SimpleCache.class);
+		nodeService = mock(NodeService.class);
+		properties = new HashMap<>();
+		properties.put(ContentModel.PROP_MODIFIED, MODIFIED);
+		when(nodeService.getProperties(NODE)).thenReturn(properties);
+		builder = new CheckFileInfoBuilder();
+		builder.setNodeService(nodeService);
+		builder.setLastSaveCache(lastSaveCache);
+		builder.setPrecomputedCache(precomputedCache);
+
+		LocalDateTime now = LocalDateTime.now();
+		token = new WOPIAccessTokenInfo("t1", now, now.plusHours(1), "file-a", "bob");
+	}
+
+	private HashMap<String, String> precomputed(String version) {
+		HashMap<String, String> model = new HashMap<>();
+		model.put(CheckFileInfoBuilder.VERSION, version);
+		model.put(CheckFileInfoBuilder.USER_CAN_WRITE, "true");
+		when(precomputedCache.get("t1")).thenReturn(new Precomputed(model, MODIFIED, null));
+		return model;
+	}
+
+	@Test
+	public void testTakeOnce() {
+		precomputed("1.2");
+		token.setCanWrite(false);
+
+		HashMap<String, String> model = builder.takePrecomputed(NODE, token);
+		assertEquals("1.2", model.get(CheckFileInfoBuilder.VERSION));
+		assertEquals("false", model.get(CheckFileInfoBuilder.USER_CAN_WRITE));
+		verify(precomputedCache).remove("t1");
+	}
+
+	@Test
+	public void testOutdated() {
+		precomputed("1.2");
+		when(lastSaveCache.get("file-a")).thenReturn(new VersionStamp("1.3", 0L));
+
+		assertNull(builder.takePrecomputed(NODE, token));
+		verify(precomputedCache).remove("t1");
+	}
+
+	@Test
+	public void testModifiedSince() {
+		precomputed("1.2");
+		properties.put(ContentModel.PROP_MODIFIED, new Date(MODIFIED.getTime() + 1000));
+
+		assertNull(builder.takePrecomputed(NODE, token));
+		verify(precomputedCache).remove("t1");
+	}
+
+	@Test
+	public void testNone() {
+		assertNull(builder.takePrecomputed(NODE, token));
+	}
+}
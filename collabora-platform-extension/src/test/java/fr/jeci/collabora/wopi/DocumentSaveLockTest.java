@@ -0,0 +1,59 @@
+package fr.jeci.collabora.wopi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.junit.Test;
+import org.springframework.extensions.webscripts.WebScriptException;
+
+public class DocumentSaveLockTest {
+	private static NodeRef node(String id) {
+		return new NodeRef(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE, id);
+	}
+
+	@Test
+	public void testRemovedWhenFree() {
+		DocumentSaveLock saveLock = new DocumentSaveLock();
+		try (DocumentSaveLock.Lock a = saveLock.acquire(node("a"));
+				DocumentSaveLock.Lock b = saveLock.acquire(node("b"))) {
+			assertEquals(2, saveLock.size());
+		}
+		assertEquals(0, saveLock.size());
+	}
+
+	@Test
+	public void testOtherDocumentNotBlocked() throws InterruptedException {
+		DocumentSaveLock saveLock = new DocumentSaveLock();
+		saveLock.setWaitTimeoutMs(50);
+		CountDownLatch saved = new CountDownLatch(1);
+		AtomicBoolean rejected = new AtomicBoolean();
+
+		try (DocumentSaveLock.Lock a = saveLock.acquire(node("a"))) {
+			new Thread(() -> {
+				try (DocumentSaveLock.Lock b = saveLock.acquire(node("b"))) {
+					saved.countDown();
+				}
+			}).start();
+			assertTrue(saved.await(5, TimeUnit.SECONDS));
+
+			// the same document waits, then gives up
+			Thread other = new Thread(() -> {
+				try (DocumentSaveLock.Lock again = saveLock.acquire(node("a"))) {
+					rejected.set(false);
+				} catch (WebScriptException e) {
+					rejected.set(true);
+				}
+			});
+			other.start();
+			other.join(5000);
+			assertTrue(rejected.get());
+		}
+		assertEquals(0, saveLock.size());
+	}
+}
@@ -0,0 +1,82 @@
+package fr.jeci.collabora.wopi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.junit.Test;
+
+import fr.jeci.collabora.wopi.SavePolicy.SaveKind;
+import fr.jeci.collabora.wopi.SavePolicy.VersionMode;
+
+public class SavePolicyTest {
+
+	@Test
+	public void testSaveKind() {
+		assertEquals(SaveKind.AUTOSAVE, SaveKind.of(true, null, null));
+		assertEquals(SaveKind.EXPLICIT, SaveKind.of(false, null, null));
+		assertEquals(SaveKind.EXPLICIT, SaveKind.of(false, "false", "true"));
+		assertEquals(SaveKind.EXIT, SaveKind.of(true, "true", "true"));
+		assertEquals(SaveKind.UNMODIFIED, SaveKind.of(true, "true", "false"));
+		assertEquals(SaveKind.UNMODIFIED, SaveKind.of(false, null, " false"));
+	}
+
+	@Test
+	public void testUnmodifiedExitSave() {
+		SavePolicy policy = new SavePolicy();
+		policy.setExit("minor,renditions,release");
+		policy.setUnmodified("none");
+
+		// the exit save of a document not modified by the user follows the unmodified rule
+		SaveKind kind = SaveKind.of(true, "true", "false");
+		assertEquals(SaveKind.UNMODIFIED, kind);
+		assertEquals(VersionMode.NONE, policy.rule(kind).getVersion());
+		assertFalse(policy.rule(kind).isRelease());
+		assertFalse(policy.rule(kind).isRenditions());
+
+		assertTrue(policy.rule(SaveKind.of(true, "true", "true")).isRelease());
+	}
+
+	@Test
+	public void testDefaults() {
+		SavePolicy policy = new SavePolicy();
+		assertEquals(VersionMode.THINNED, policy.rule(SaveKind.AUTOSAVE).getVersion());
+		assertFalse(policy.rule(SaveKind.AUTOSAVE).isRenditions());
+		assertEquals(VersionMode.MINOR, policy.rule(SaveKind.EXPLICIT).getVersion());
+		assertTrue(policy.rule(SaveKind.EXPLICIT).isRenditions());
+		assertFalse(policy.rule(SaveKind.EXIT).isRelease());
+		// the retention never removes the version of an exit or unmodified save
+		assertEquals(VersionMode.MINOR, policy.rule(SaveKind.EXIT).getVersion());
+		assertEquals(VersionMode.MINOR, policy.rule(SaveKind.UNMODIFIED).getVersion());
+	}
+
+	@Test(expected = AlfrescoRuntimeException.class)
+	public void testThinnedExitSave() {
+		new SavePolicy().setExit("thinned");
+	}
+
+	@Test
+	public void testParse() {
+		SavePolicy policy = new SavePolicy();
+		policy.setExit(" Minor, renditions ,release");
+		policy.setUnmodified("none");
+
+		SavePolicy.Rule exit = policy.rule(SaveKind.EXIT);
+		assertEquals(VersionMode.MINOR, exit.getVersion());
+		assertTrue(exit.isRenditions());
+		assertTrue(exit.isRelease());
+		assertEquals("minor,renditions,release", exit.toString());
+		assertEquals(VersionMode.NONE, policy.rule(SaveKind.UNMODIFIED).getVersion());
+	}
+
+	@Test(expected = AlfrescoRuntimeException.class)
+	public void testUnknownVersion() {
+		new SavePolicy().setAutosave("major");
+	}
+
+	@Test(expected = AlfrescoRuntimeException.class)
+	public void testUnknownOption() {
+		new SavePolicy().setAutosave("minor,thumbnails");
+	}
+}
@@ -0,0 +1,48 @@
+package fr.jeci.collabora.wopi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WopiBulkheadTest {
+
+	@Test
+	public void testPoolCap() {
+		WopiBulkhead bulkhead = new WopiBulkhead();
+		bulkhead.setReadMaxConcurrency(8);
+
+		// each operation starts at half of the pool, together they can't exceed it
+		for (int i = 0; i < 4; ++i) {
+			assertTrue(bulkhead.tryAcquire(WopiBulkhead.Pool.READ, "CheckFileInfo", false));
+		}
+		for (int i = 0; i < 4; ++i) {
+			assertTrue(bulkhead.tryAcquire(WopiBulkhead.Pool.READ, "GetFile", false));
+		}
+		assertEquals(8, bulkhead.getInFlight(WopiBulkhead.Pool.READ));
+
+		// the limit of GetFile grows while the pool is busy, the pool stays full
+		for (int i = 0; i < 4; ++i) {
+			bulkhead.release(WopiBulkhead.Pool.READ, "GetFile", 1_000_000, -1);
+			assertTrue(bulkhead.tryAcquire(WopiBulkhead.Pool.READ, "GetFile", false));
+		}
+		assertTrue(bulkhead.getLimit(WopiBulkhead.Pool.READ, "GetFile") > 4);
+		assertFalse(bulkhead.tryAcquire(WopiBulkhead.Pool.READ, "GetFile", false));
+		assertEquals(4, bulkhead.getInFlight(WopiBulkhead.Pool.READ, "GetFile"));
+		assertEquals(8, bulkhead.getInFlight(WopiBulkhead.Pool.READ));
+	}
+
+	@Test
+	public void testAutosaveShare() {
+		WopiBulkhead bulkhead = new WopiBulkhead();
+		bulkhead.setSaveMaxConcurrency(4);
+		bulkhead.setAutosaveShare(0.5);
+
+		assertTrue(bulkhead.tryAcquire(WopiBulkhead.Pool.SAVE, "PutFile", true));
+		assertFalse(bulkhead.tryAcquire(WopiBulkhead.Pool.SAVE, "PutFile", true));
+		assertTrue(bulkhead.tryAcquire(WopiBulkhead.Pool.SAVE, "PutFile", false));
+		assertFalse(bulkhead.tryAcquire(WopiBulkhead.Pool.SAVE, "PutRelativeFile", true));
+		assertEquals(2, bulkhead.getInFlight(WopiBulkhead.Pool.SAVE));
+	}
+}
@@ -0,0 +1,34 @@
+package fr.jeci.collabora.wopi;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.format.ISODateTimeFormat;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WopiTimestampTest {
+
+	private static long joda(String timestamp) {
+		return LocalDateTime.parse(timestamp, ISODateTimeFormat.dateTimeParser()).toDate().getTime();
+	}
+
+	@Test
+	public void testParseLikeJoda() {
+		String[] timestamps = { "2022-04-08T08:29:01.355", "2011-02-24T16:16:37.300000Z", "2011-02-24T16:16:37Z",
+				"2022-04-08T08:29:01.3+02:00", "2022-04-08T08:29:01", "2022-04-08", "2022-04-08T08:29" };
+		for (String timestamp : timestamps) {
+			assertEquals(timestamp, joda(timestamp), WopiTimestamp.parse(timestamp));
+		}
+	}
+
+	@Test
+	public void testPrintParse() {
+		long now = System.currentTimeMillis();
+		assertEquals(now, WopiTimestamp.parse(WopiTimestamp.print(now)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalid() {
+		WopiTimestamp.parse("2022-04-08T08:29:0x.355");
+	}
+}
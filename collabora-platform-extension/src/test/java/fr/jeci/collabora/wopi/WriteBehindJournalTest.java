@@ -0,0 +1,191 @@
+package fr.jeci.collabora.wopi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.webscripts.WebScriptException;
+
+import fr.jeci.collabora.alfresco.CollaboraOnlineModel;
+
+public class WriteBehindJournalTest {
+	static final NodeRef NODE = new NodeRef("workspace://SpacesStore/file-a");
+	static final String TIMESTAMP = "2022-04-08T08:29:01.355Z";
+
+	File dir = null;
+	WriteBehindJournal journal = null;
+	List<String> applied = new CopyOnWriteArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("journal").toFile();
+		journal = newJournal();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		journal.shutdown();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private WriteBehindJournal newJournal() throws IOException {
+		WriteBehindJournal j = new WriteBehindJournal();
+		j.setEnabled(true);
+		j.setDir(dir.getAbsolutePath());
+		j.setApplier(record -> {
+			try (InputStream in = record.openBody()) {
+				String body = new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+				if ("fail".equals(body)) {
+					throw new IOException("not applied");
+				}
+				applied.add(body);
+			}
+			return "1." + applied.size();
+		});
+		j.init();
+		return j;
+	}
+
+	@Test(expected = AlfrescoRuntimeException.class)
+	public void testClusterWithoutAffinity() throws IOException {
+		WriteBehindJournal j = new WriteBehindJournal();
+		j.setEnabled(true);
+		j.setCluster(true);
+		j.setDir(dir.getAbsolutePath());
+		j.init();
+	}
+
+	@Test
+	public void testClusterWithAffinity() throws IOException {
+		WriteBehindJournal j = new WriteBehindJournal();
+		j.setEnabled(true);
+		j.setCluster(true);
+		j.setAffinity(true);
+		j.setDir(dir.getAbsolutePath());
+		j.setApplier(record -> "1.0");
+		j.init();
+		j.shutdown();
+	}
+
+	private WriteBehindJournal.Record write(String body) throws IOException {
+		return journal.write(NODE, "bob", TIMESTAMP, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private String[] records() {
+		return dir.list((d, name) -> name.endsWith(".wal") || name.endsWith(".tmp"));
+	}
+
+	@Test
+	public void testApplyInOrder() throws IOException {
+		journal.commit(write("first"));
+		journal.commit(write("second"));
+		journal.flush(NODE);
+
+		assertEquals(2, applied.size());
+		assertEquals("first", applied.get(0));
+		assertEquals("second", applied.get(1));
+		assertEquals(0, records().length);
+	}
+
+	@Test
+	public void testJournaledVersion() {
+		Map<QName, Serializable> properties = new HashMap<>();
+		properties.put(CollaboraOnlineModel.PROP_JOURNALED_LABEL, "1.2");
+		properties.put(CollaboraOnlineModel.PROP_JOURNALED_TIMESTAMP, TIMESTAMP);
+
+		// kept on the node, so it is still accepted after a restart
+		assertTrue(WopiPutFileWebScript.isJournaledVersion("2022-04-08T08:29:01.355", "1.2", properties));
+		assertFalse(WopiPutFileWebScript.isJournaledVersion(TIMESTAMP, "1.3", properties));
+		assertFalse(WopiPutFileWebScript.isJournaledVersion("2022-04-08T08:29:02Z", "1.2", properties));
+		assertFalse(WopiPutFileWebScript.isJournaledVersion(TIMESTAMP, "1.2", new HashMap<>()));
+	}
+
+	@Test
+	public void testFailedRecord() throws IOException {
+		journal.commit(write("fail"));
+		try {
+			journal.flush(NODE);
+			fail("the autosave is lost, Collabora Online must send the document again");
+		} catch (WebScriptException e) {
+			assertEquals(500, e.getStatus());
+		}
+		assertEquals(1, new File(dir, "failed").list().length);
+
+		// once
+		journal.flush(NODE);
+
+		// cleared by a later autosave
+		journal.commit(write("fail"));
+		journal.commit(write("whole document"));
+		journal.flush(NODE);
+		assertEquals("whole document", applied.get(applied.size() - 1));
+	}
+
+	@Test
+	public void testDiscard() throws IOException {
+		journal.discard(write("not acknowledged"));
+		assertEquals(0, records().length);
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		WriteBehindJournal.Record record = write("after crash");
+		// committed, not applied before the crash
+		File wal = new File(dir, "0000000000000000007.wal");
+		assertTrue(record.getFile().renameTo(wal));
+		write("never acknowledged");
+
+		journal.shutdown();
+		journal = newJournal();
+		assertArrayEquals(new String[] { wal.getName() }, records());
+
+		journal.onBootstrap(null);
+		journal.flush(NODE);
+		assertEquals(1, applied.size());
+		assertEquals("after crash", applied.get(0));
+
+		// sequence continues after the records found
+		journal.commit(write("next"));
+		journal.flush(NODE);
+		assertEquals("next", applied.get(1));
+	}
+
+	@Test
+	public void testCorruptedRecord() throws IOException {
+		WriteBehindJournal.Record record = write("body");
+		File wal = new File(dir, "0000000000000000001.wal");
+		assertTrue(record.getFile().renameTo(wal));
+		try (RandomAccessFile raf = new RandomAccessFile(wal, "rw")) {
+			raf.seek(raf.length() - 20);
+			raf.write('X');
+		}
+
+		journal.onBootstrap(null);
+		journal.flush(NODE);
+		assertTrue(applied.isEmpty());
+		assertTrue(new File(new File(dir, "failed"), wal.getName()).exists());
+	}
+}
@@ -3,32 +3,16 @@
 
     function main() {
 
-        var wopi_host_url = '';
         var nodeRef = url.args.nodeRef,
             connector = remote.connect("alfresco");
-        //try and get the Wopi service url first
-        var result = connector.get('/lool/host/url');
-        if (result.status.code == status.STATUS_OK) {
-            wopi_host_url = JSON.parse(result.response).lool_host_url;
-            if(wopi_host_url.charAt(wopi_host_url.length - 1) == '/')
-                wopi_host_url = wopi_host_url.substring(0, wopi_host_url.length -1);
-            logger.log("\n\t\t wopi host url resolved: " + wopi_host_url);
-        }
-        else {
-            throw ("\t\twopi service url host returned: "+ result.status.code);
-        }
-
-        var result = connector.get('/lool/token?nodeRef=' + encodeURI(nodeRef) + '&action=edit');
+        // token, WOPI host and iframe URLs in one request
+        var result = connector.get('/lool/open?nodeRef=' + encodeURIComponent(nodeRef) + '&action=edit&lang=' + locale.substring(0,2));
         if (result.status.code == status.STATUS_OK) {
             var post = JSON.parse(result.response);
-            var wopi_src_url = post.wopi_src_url;
-            var fileId = nodeRef.substring(nodeRef.lastIndexOf('/') + 1);
-            var wopiFileURL = wopi_host_url + "/wopi/files/" + fileId;
-            var params = "WOPISrc=" + encodeURI(wopiFileURL) + "&lang=" + locale.substring(0,2);
-            params += "&closebutton=1";
+            logger.log("\n\t\t wopi host url resolved: " + post.lool_host_url);
 
-            model.wopiFileURL = wopiFileURL;
-            model.iFrameURL = wopi_src_url + params;
+            model.wopiFileURL = post.wopi_file_url;
+            model.iFrameURL = post.action_url + "&closebutton=1";
             model.access_token = post.access_token;
             model.access_token_ttl = post.access_token_ttl;
         }